@@ -0,0 +1,269 @@
+package io.vertigo.ai.llm.plugin.lc4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * Runs many independent LLM requests, as fast as the provider quota allows.
+ * <ul>
+ * <li>the concurrency adapts (AIMD) : +1 after a window of successes, halved when the provider throttles, between 1 and maxConcurrency</li>
+ * <li>optional token buckets of requests and tokens per minute keep under the quota, instead of waiting for throttled responses</li>
+ * <li>throttled requests are retried after an exponential backoff, up to maxRetries times</li>
+ * </ul>
+ * Inputs are read as requests start (a lazy stream is not loaded in memory),
+ * results are delivered as soon as available, not in input order, one at a time.
+ */
+public final class Lc4jBulkRunner {
+	private static final int INITIAL_CONCURRENCY = 4;
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+	private final Config config;
+	private final Predicate<Throwable> throttledPredicate;
+
+	/**
+	 * @param maxConcurrency the maximum number of requests running at the same time
+	 * @param requestsPerMinute the requests quota, 0 if unlimited
+	 * @param tokensPerMinute the tokens quota, 0 if unlimited
+	 * @param maxRetries the maximum number of retries of a throttled request
+	 */
+	public record Config(int maxConcurrency, int requestsPerMinute, int tokensPerMinute, int maxRetries) {
+		public Config {
+			Assertion.check()
+					.isTrue(maxConcurrency > 0, "maxConcurrency must be positive")
+					.isTrue(requestsPerMinute >= 0, "requestsPerMinute must be positive or 0")
+					.isTrue(tokensPerMinute >= 0, "tokensPerMinute must be positive or 0")
+					.isTrue(maxRetries >= 0, "maxRetries must be positive or 0");
+		}
+	}
+
+	/**
+	 * Result of one request.
+	 *
+	 * @param <I> the input type
+	 * @param <R> the result type
+	 * @param index the index of the input in the stream
+	 * @param input the input
+	 * @param result the result, null if failed
+	 * @param error the error, null if succeeded
+	 */
+	public record BulkResult<I, R>(long index, I input, R result, RuntimeException error) {
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param config the limits
+	 * @param throttledPredicate tells if an error is a throttled response of the provider (HTTP 429)
+	 */
+	public Lc4jBulkRunner(final Config config, final Predicate<Throwable> throttledPredicate) {
+		Assertion.check()
+				.isNotNull(config)
+				.isNotNull(throttledPredicate);
+		//---
+		this.config = config;
+		this.throttledPredicate = throttledPredicate;
+	}
+
+	/**
+	 * Runs a request per input, returns when all are done.
+	 *
+	 * @param <I> the input type
+	 * @param <R> the result type
+	 * @param inputs the inputs
+	 * @param request the blocking request
+	 * @param tokenEstimator estimates the tokens of a request, for the tokens quota
+	 * @param resultHandler receives the results
+	 */
+	public <I, R> void run(final Stream<I> inputs, final Function<I, R> request, final ToIntFunction<I> tokenEstimator,
+			final Consumer<BulkResult<I, R>> resultHandler) {
+		Assertion.check()
+				.isNotNull(inputs)
+				.isNotNull(request)
+				.isNotNull(tokenEstimator)
+				.isNotNull(resultHandler);
+		//---
+		final var run = new Run<>(request, resultHandler);
+		final ExecutorService workers = Executors.newFixedThreadPool(config.maxConcurrency(), new NamedThreadFactory("v-lc4j-bulk-"));
+		// one input per worker : inputs are not read ahead, and a retrying request keeps its worker
+		final var freeWorkers = new Semaphore(config.maxConcurrency());
+		try {
+			final var iterator = inputs.iterator();
+			long index = 0;
+			while (iterator.hasNext()) {
+				final var input = iterator.next();
+				final long inputIndex = index++;
+				final int tokens = config.tokensPerMinute() > 0 ? tokenEstimator.applyAsInt(input) : 0;
+				freeWorkers.acquire();
+				workers.execute(() -> {
+					try {
+						run.execute(inputIndex, input, tokens);
+					} finally {
+						freeWorkers.release();
+					}
+				});
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw WrappedException.wrap(e);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private final class Run<I, R> {
+		private final Function<I, R> request;
+		private final Consumer<BulkResult<I, R>> resultHandler;
+		private final AdaptiveLimit limit = new AdaptiveLimit(Math.min(INITIAL_CONCURRENCY, config.maxConcurrency()), config.maxConcurrency());
+		private final TokenBucket requestBucket = config.requestsPerMinute() > 0 ? new TokenBucket(config.requestsPerMinute()) : null;
+		private final TokenBucket tokenBucket = config.tokensPerMinute() > 0 ? new TokenBucket(config.tokensPerMinute()) : null;
+
+		Run(final Function<I, R> request, final Consumer<BulkResult<I, R>> resultHandler) {
+			this.request = request;
+			this.resultHandler = resultHandler;
+		}
+
+		long acquire(final int tokens) throws InterruptedException {
+			if (requestBucket != null) {
+				requestBucket.acquire(1);
+			}
+			if (tokenBucket != null) {
+				tokenBucket.acquire(tokens);
+			}
+			return limit.acquire();
+		}
+
+		void execute(final long index, final I input, final int tokens) {
+			for (int attempt = 0;; attempt++) {
+				final long generation;
+				try {
+					if (attempt > 0) {
+						final long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (attempt - 1));
+						Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1)); // jitter, throttled requests don't retry together
+					}
+					generation = acquire(tokens);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					deliver(new BulkResult<>(index, input, null, WrappedException.wrap(e)));
+					return;
+				}
+				try {
+					final var result = request.apply(input);
+					limit.onSuccess();
+					deliver(new BulkResult<>(index, input, result, null));
+					return;
+				} catch (final RuntimeException e) {
+					if (!throttledPredicate.test(e) || attempt == config.maxRetries()) {
+						limit.onError();
+						deliver(new BulkResult<>(index, input, null, e));
+						return;
+					}
+					limit.onThrottled(generation);
+				}
+			}
+		}
+
+		private synchronized void deliver(final BulkResult<I, R> bulkResult) {
+			resultHandler.accept(bulkResult);
+		}
+	}
+
+	/**
+	 * AIMD concurrency limit.
+	 * Requests started before a decrease belong to the previous generation : their throttled responses don't decrease the limit again.
+	 */
+	private static final class AdaptiveLimit {
+		private final int maxLimit;
+		private double limit;
+		private int inFlight;
+		private long generation;
+
+		AdaptiveLimit(final int initialLimit, final int maxLimit) {
+			this.maxLimit = maxLimit;
+			limit = initialLimit;
+		}
+
+		synchronized long acquire() throws InterruptedException {
+			while (inFlight >= (int) limit) {
+				wait();
+			}
+			inFlight++;
+			return generation;
+		}
+
+		synchronized void onSuccess() {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+			release();
+		}
+
+		synchronized void onThrottled(final long requestGeneration) {
+			if (requestGeneration == generation) {
+				limit = Math.max(1, limit / 2);
+				generation++;
+			}
+			release();
+		}
+
+		synchronized void onError() {
+			release();
+		}
+
+		private void release() {
+			inFlight--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Quota per minute, refilled continuously. Starts full : the first minute may use the whole quota at once.
+	 */
+	private static final class TokenBucket {
+		private final double capacity;
+		private final double refillPerNano;
+		private double available;
+		private long lastRefillNanos = System.nanoTime();
+
+		TokenBucket(final int perMinute) {
+			capacity = perMinute;
+			refillPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+			available = perMinute;
+		}
+
+		void acquire(final int amount) throws InterruptedException {
+			// a request bigger than the quota waits for a full bucket
+			final double needed = Math.min(amount, capacity);
+			while (true) {
+				final long waitNanos;
+				synchronized (this) {
+					final long now = System.nanoTime();
+					available = Math.min(capacity, available + (now - lastRefillNanos) * refillPerNano);
+					lastRefillNanos = now;
+					if (available >= needed) {
+						available -= needed;
+						return;
+					}
+					waitNanos = (long) Math.ceil((needed - available) / refillPerNano);
+				}
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			}
+		}
+	}
+}
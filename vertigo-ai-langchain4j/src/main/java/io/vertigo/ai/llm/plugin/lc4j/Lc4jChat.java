@@ -4,6 +4,8 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import dev.langchain4j.memory.chat.TokenWindowChatMemory;
 import dev.langchain4j.model.Tokenizer;
@@ -18,6 +20,8 @@ import io.vertigo.ai.llm.model.VLlmMessageStreamConfig;
 import io.vertigo.ai.llm.model.VPromptContext;
 import io.vertigo.ai.llm.model.rag.VLlmDocumentSource;
 import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource.Reranking;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource.RetrievalConfig;
 import io.vertigo.core.lang.Assertion;
 import io.vertigo.core.lang.VSystemException;
 
@@ -25,10 +29,13 @@ public class Lc4jChat extends LlmStandardChat {
 
 	private final Assistant assistant;
 	private final AssistantStream assistantStream;
+	private final Lc4jRequestExecutor requestExecutor;
 
 	protected Lc4jChat(final VLlmDocumentSource documentSource, final Map<String, Object> metadataFilter, final VPromptContext context,
-			final ChatLanguageModel chatModel, final StreamingChatLanguageModel chatModelStream, final Tokenizer tokenizer) {
+			final ChatLanguageModel chatModel, final StreamingChatLanguageModel chatModelStream, final Tokenizer tokenizer, final RetrievalConfig retrievalConfig,
+			final Optional<Reranking> rerankingOpt, final Lc4jRequestExecutor requestExecutor) {
 		super(documentSource, context);
+		this.requestExecutor = requestExecutor;
 
 		final var chatMemory = TokenWindowChatMemory.withMaxTokens(4000, tokenizer);
 
@@ -51,15 +58,26 @@ public class Lc4jChat extends LlmStandardChat {
 					.isTrue(documentSource instanceof Lc4jDocumentSource, "Only Lc4jDocumentSource is supported");
 
 			// add access to our documents
-			final var contentRetriever = ((Lc4jDocumentSource) documentSource).getContentRetriever(metadataFilter, 10, 0.5d);
-			assistantBuilder.contentRetriever(contentRetriever);
-			assistantStreamBuilder.contentRetriever(contentRetriever);
+			final var retrievalAugmentor = ((Lc4jDocumentSource) documentSource).getRetrievalAugmentor(metadataFilter, retrievalConfig, rerankingOpt);
+			assistantBuilder.retrievalAugmentor(retrievalAugmentor);
+			assistantStreamBuilder.retrievalAugmentor(retrievalAugmentor);
 		}
 
 		assistant = assistantBuilder.build();
 		assistantStream = assistantStreamBuilder.build();
 	}
 
+	/**
+	 * Asynchronous chat, limited by the maxConcurrentRequests of the plugin.
+	 * Messages of a chat share its memory : wait for an answer before sending the next message.
+	 *
+	 * @param instructions the instructions
+	 * @return the future answer, cancel it to abandon the request
+	 */
+	public CompletableFuture<VLlmMessage> chatAsync(final String instructions) {
+		return requestExecutor.submit(() -> chat(instructions));
+	}
+
 	@Override
 	protected VLlmMessage doChat(final String instructions) {
 		Result<String> llmResponse;
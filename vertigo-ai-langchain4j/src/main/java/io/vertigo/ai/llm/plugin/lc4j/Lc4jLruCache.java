@@ -0,0 +1,99 @@
+package io.vertigo.ai.llm.plugin.lc4j;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * Simple thread safe, size bounded, LRU cache.
+ * Entries can expire after a time to live, checked when read.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public final class Lc4jLruCache<K, V> {
+
+	private final Map<K, CacheEntry<V>> entries;
+	private final long timeToLiveNanos;
+
+	private record CacheEntry<V>(V value, long expirationNanos) {
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize the maximum number of entries kept in the cache
+	 */
+	public Lc4jLruCache(final int maxSize) {
+		this(maxSize, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize the maximum number of entries kept in the cache
+	 * @param timeToLive the time an entry is kept after being put, null to keep it until evicted
+	 */
+	public Lc4jLruCache(final int maxSize, final Duration timeToLive) {
+		Assertion.check()
+				.isTrue(maxSize > 0, "Cache size must be positive")
+				.isTrue(timeToLive == null || !timeToLive.isNegative() && !timeToLive.isZero(), "Time to live must be positive");
+		//---
+		entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, CacheEntry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+		timeToLiveNanos = timeToLive == null ? -1 : timeToLive.toNanos();
+	}
+
+	/**
+	 * @param key the key
+	 * @return the cached value or null if absent or expired
+	 */
+	public synchronized V get(final K key) {
+		final var entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (timeToLiveNanos >= 0 && System.nanoTime() - entry.expirationNanos() > 0) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value();
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value to cache
+	 */
+	public synchronized void put(final K key, final V value) {
+		entries.put(key, new CacheEntry<>(value, timeToLiveNanos >= 0 ? System.nanoTime() + timeToLiveNanos : 0));
+	}
+
+	/**
+	 * @param key the key to evict
+	 */
+	public synchronized void remove(final K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Evicts all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of cached entries (expired ones included until read)
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
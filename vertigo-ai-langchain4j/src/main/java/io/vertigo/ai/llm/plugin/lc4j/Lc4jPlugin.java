@@ -17,21 +17,32 @@
  */
 package io.vertigo.ai.llm.plugin.lc4j;
 
+import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import dev.ai4j.openai4j.OpenAiHttpException;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.Tokenizer;
 import dev.langchain4j.model.chat.ChatLanguageModel;
@@ -46,21 +57,39 @@ import dev.langchain4j.model.output.Response;
 import dev.langchain4j.service.AiServices;
 import dev.langchain4j.service.Result;
 import dev.langchain4j.service.output.ServiceOutputParser;
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
 import io.vertigo.ai.llm.LlmChat;
 import io.vertigo.ai.llm.LlmPlugin;
 import io.vertigo.ai.llm.model.VLlmMessage;
 import io.vertigo.ai.llm.model.VPrompt;
 import io.vertigo.ai.llm.model.VPromptContext;
 import io.vertigo.ai.llm.model.rag.VLlmDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jBulkRunner.BulkResult;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jSemanticCache.CacheKey;
+import io.vertigo.ai.llm.plugin.lc4j.balancing.Lc4jBalancedChatModel;
+import io.vertigo.ai.llm.plugin.lc4j.balancing.Lc4jBalancedStreamingChatModel;
+import io.vertigo.ai.llm.plugin.lc4j.balancing.Lc4jEndpointBalancer;
+import io.vertigo.ai.llm.plugin.lc4j.cache.Lc4jResultCachePlugin;
 import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource.Reranking;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource.RetrievalConfig;
 import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jInMemoryDocumentSource;
 import io.vertigo.ai.llm.plugin.lc4j.rag.embedding.Lc4jEmbeddingPlugin;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.Lc4jInMemoryEmbeddingStore.HnswConfig;
+import io.vertigo.ai.llm.plugin.lc4j.rag.scoring.Lc4jScoringPlugin;
 import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jStoragePlugin;
+import io.vertigo.ai.llm.plugin.lc4j.tier.Lc4jModelTierPlugin;
+import io.vertigo.core.analytics.metric.Metric;
+import io.vertigo.core.analytics.metric.Metrics;
 import io.vertigo.core.lang.Assertion;
 import io.vertigo.core.lang.VSystemException;
 import io.vertigo.core.lang.VUserException;
+import io.vertigo.core.lang.WrappedException;
 import io.vertigo.core.node.Node;
+import io.vertigo.core.node.component.Activeable;
 import io.vertigo.core.param.ParamValue;
+import io.vertigo.datastore.filestore.model.FileInfo;
+import io.vertigo.datastore.filestore.model.FileInfoURI;
 import io.vertigo.vega.engines.webservice.json.JsonEngine;
 
 /**
@@ -68,29 +97,102 @@ import io.vertigo.vega.engines.webservice.json.JsonEngine;
  *
  * @author skerdudou
  */
-public final class Lc4jPlugin implements LlmPlugin {
+public final class Lc4jPlugin implements LlmPlugin, Activeable {
 	private static final Logger LOG = LogManager.getLogger(Lc4jPlugin.class);
+	private static final int DEFAULT_ASSISTANT_CACHE_SIZE = 100;
+	private static final int DEFAULT_OPENAI_MAX_CONCURRENT_REQUESTS = 16;
+	private static final int DEFAULT_OLLAMA_MAX_CONCURRENT_REQUESTS = 2;
+	private static final int DEFAULT_QUEUE_TIMEOUT_SECONDS = 60;
+	private static final int DEFAULT_BULK_MAX_RETRIES = 5;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static final int HTTP_SERVER_ERROR = 500;
 
 	private final String modelName;
 	private final Tokenizer tokenizer;
 	private final ChatLanguageModel chatModel;
 	private final StreamingChatLanguageModel chatModelStream;
+	private final Optional<Lc4jEndpointBalancer<ChatLanguageModel>> chatModelBalancerOpt;
 
 	private final ServiceOutputParser serviceOutputParser = new VServiceOutputParser();
 	private final Lc4jEmbeddingPlugin embeddingPlugin;
 	private final Optional<Lc4jStoragePlugin> storagePlugin;
+	private final Optional<HnswConfig> temporaryHnswConfigOpt;
+	private final RetrievalConfig retrievalConfig;
+	private final Optional<Reranking> rerankingOpt;
+	private final Optional<Lc4jSemanticCache<VLlmMessage>> answerCacheOpt;
+	private final Optional<Lc4jResultCachePlugin> resultCachePlugin;
+	// assistants hold no chat memory, they are shared between threads
+	private final Lc4jLruCache<CacheKey, Assistant> assistantCache;
+	private final Lc4jRequestExecutor requestExecutor;
+	private final Lc4jBulkRunner bulkRunner;
+	// cheaper models tried first by ask, the model of this plugin is the last tier
+	private final List<ModelTier> modelTiers;
+	private final LongAdder lastTierAnswers = new LongAdder();
+
+	private record ModelTier(String name, ChatLanguageModel chatModel, LongAdder answers, LongAdder escalations) {
+	}
+
+	private record ParsedAnswer<T>(T result, String text) {
+	}
 
+	/**
+	 * Constructor.
+	 * If one of hnswM, hnswEfConstruction or hnswEfSearch is set, temporary document sources are searched with an HNSW index
+	 * (missing values are taken from {@link HnswConfig#defaults()}).
+	 * Segments given to the LLM are retrieved with hybridRetrieval, retrievalMaxResults and retrievalMinScore
+	 * (defaults from {@link RetrievalConfig#defaults()}) : hybrid retrieval finds exact terms, so fewer segments are needed.
+	 * With a scoring plugin, more segments are retrieved then reranked, retrievalMaxResults is the number of segments kept.
+	 * If answerCacheSize is set, askOnFiles answers are cached (see Lc4jSemanticCache) for answerCacheSize keys,
+	 * matched above answerCacheMinSimilarity (default 0.95) during answerCacheTtlSeconds (default 3600).
+	 * With a result cache plugin, results of ask are cached by model name, system message, instructions and result type.
+	 * The assistants of askOnFiles are built once per system message, document source and metadata filter,
+	 * and kept in a cache of assistantCacheSize entries (default {@value #DEFAULT_ASSISTANT_CACHE_SIZE}).
+	 * Async requests run at most maxConcurrentRequests at a time for this provider (default {@value #DEFAULT_OPENAI_MAX_CONCURRENT_REQUESTS} for openai,
+	 * {@value #DEFAULT_OLLAMA_MAX_CONCURRENT_REQUESTS} for ollama), others wait at most queueTimeoutSeconds (default {@value #DEFAULT_QUEUE_TIMEOUT_SECONDS}).
+	 * Bulk asks (askAll) run up to maxConcurrentRequests at a time, within the optional requestsPerMinute and tokensPerMinute quotas,
+	 * throttled requests are retried bulkMaxRetries times (default {@value #DEFAULT_BULK_MAX_RETRIES}).
+	 * The url can be a comma separated list of endpoints serving the model, balanced with endpointMaxFailures, endpointEjectionSeconds
+	 * and hedgingPercentile (see {@link Lc4jEndpointBalancer}).
+	 * With model tier plugins, ask tries their models first, in declaration order, and escalates to the next tier
+	 * (this plugin model being the last one) when the answer can't be parsed or is incomplete (a record component is null, other than an Optional).
+	 */
 	@Inject
 	public Lc4jPlugin(
 			@ParamValue("apiKey") final Optional<String> apiKeyOpt,
 			@ParamValue("modelName") final Optional<String> modelNameOpt,
 			@ParamValue("url") final Optional<String> urlOpt,
 			@ParamValue("apiType") final Optional<String> apiTypeOpt,
+			@ParamValue("hnswM") final Optional<Integer> hnswMOpt,
+			@ParamValue("hnswEfConstruction") final Optional<Integer> hnswEfConstructionOpt,
+			@ParamValue("hnswEfSearch") final Optional<Integer> hnswEfSearchOpt,
+			@ParamValue("hybridRetrieval") final Optional<Boolean> hybridRetrievalOpt,
+			@ParamValue("retrievalMaxResults") final Optional<Integer> retrievalMaxResultsOpt,
+			@ParamValue("retrievalMinScore") final Optional<String> retrievalMinScoreOpt, // params are not parsed as double
+			@ParamValue("answerCacheSize") final Optional<Integer> answerCacheSizeOpt,
+			@ParamValue("answerCacheMinSimilarity") final Optional<String> answerCacheMinSimilarityOpt,
+			@ParamValue("answerCacheTtlSeconds") final Optional<Integer> answerCacheTtlSecondsOpt,
+			@ParamValue("assistantCacheSize") final Optional<Integer> assistantCacheSizeOpt,
+			@ParamValue("maxConcurrentRequests") final Optional<Integer> maxConcurrentRequestsOpt,
+			@ParamValue("queueTimeoutSeconds") final Optional<Integer> queueTimeoutSecondsOpt,
+			@ParamValue("requestsPerMinute") final Optional<Integer> requestsPerMinuteOpt,
+			@ParamValue("tokensPerMinute") final Optional<Integer> tokensPerMinuteOpt,
+			@ParamValue("bulkMaxRetries") final Optional<Integer> bulkMaxRetriesOpt,
+			@ParamValue("endpointMaxFailures") final Optional<Integer> endpointMaxFailuresOpt,
+			@ParamValue("endpointEjectionSeconds") final Optional<Integer> endpointEjectionSecondsOpt,
+			@ParamValue("hedgingPercentile") final Optional<Integer> hedgingPercentileOpt,
 			final Lc4jEmbeddingPlugin embeddingPlugin,
-			final Optional<Lc4jStoragePlugin> storagePlugin) {
+			final Optional<Lc4jStoragePlugin> storagePlugin,
+			final Optional<Lc4jScoringPlugin> scoringPlugin,
+			final Optional<Lc4jResultCachePlugin> resultCachePlugin,
+			final List<Lc4jModelTierPlugin> modelTierPlugins) {
 
 		//---
 		final var apiType = apiTypeOpt.orElse("openai");
+		final int defaultMaxConcurrentRequests;
+		final Predicate<Throwable> throttledPredicate;
+		final Predicate<Throwable> serverErrorPredicate;
+		final Function<String, ChatLanguageModel> chatModelFactory; // by url, null for the default url
+		final Function<String, StreamingChatLanguageModel> chatModelStreamFactory;
 
 		switch (apiType.toLowerCase()) {
 			case "openai" -> {
@@ -99,26 +201,34 @@ public final class Lc4jPlugin implements LlmPlugin {
 						.isNotBlank(apiKeyOpt.get()); // langchain4j can use "demo" api key with a 5000 tokens limit (with langchain4j server acting as a proxy)
 				// --
 
-				modelName = modelNameOpt.orElse("gpt-4o-mini");
+				final var openAiModelName = modelNameOpt.orElse("gpt-4o-mini");
+				modelName = openAiModelName;
+				defaultMaxConcurrentRequests = DEFAULT_OPENAI_MAX_CONCURRENT_REQUESTS;
+				throttledPredicate = Lc4jPlugin::isOpenAiThrottled;
+				serverErrorPredicate = Lc4jPlugin::isOpenAiServerError;
 
 				tokenizer = new OpenAiTokenizer(modelName);
 
-				chatModel = OpenAiChatModel.builder()
-						.baseUrl(urlOpt.orElse(null)) // null => default url
+				chatModelFactory = url -> OpenAiChatModel.builder()
+						.baseUrl(url) // null => default url
 						.apiKey(apiKeyOpt.get())
-						.modelName(modelName)
+						.modelName(openAiModelName)
 						.temperature(0d)
 						.build();
 
-				chatModelStream = OpenAiStreamingChatModel.builder()
-						.baseUrl(urlOpt.orElse(null)) // null => default url
+				chatModelStreamFactory = url -> OpenAiStreamingChatModel.builder()
+						.baseUrl(url) // null => default url
 						.apiKey(apiKeyOpt.get())
-						.modelName(modelName)
+						.modelName(openAiModelName)
 						.temperature(0d)
 						.build();
 			}
 			case "ollama" -> {
-				modelName = modelNameOpt.orElse("qwen2.5:7b");
+				final var ollamaModelName = modelNameOpt.orElse("qwen2.5:7b");
+				modelName = ollamaModelName;
+				defaultMaxConcurrentRequests = DEFAULT_OLLAMA_MAX_CONCURRENT_REQUESTS; // a local server answers a few requests at a time
+				throttledPredicate = e -> false; // no quota, the concurrency limit protects the server
+				serverErrorPredicate = Lc4jUtils::isOllamaServerError;
 
 				tokenizer = new HuggingFaceTokenizer(); // Using Bert tokenizer estimation (used only to estimate the number of tokens in the prompt)
 
@@ -127,16 +237,16 @@ public final class Lc4jPlugin implements LlmPlugin {
 						.map(key -> Map.of("Authorization", "Bearer " + key))
 						.orElseGet(Collections::emptyMap);
 
-				chatModel = OllamaChatModel.builder()
-						.baseUrl(urlOpt.orElse(null)) // null => default url
-						.modelName(modelName)
+				chatModelFactory = url -> OllamaChatModel.builder()
+						.baseUrl(url) // null => default url
+						.modelName(ollamaModelName)
 						.customHeaders(customHeaders)
 						.temperature(0d)
 						.build();
 
-				chatModelStream = OllamaStreamingChatModel.builder()
-						.baseUrl(urlOpt.orElse(null)) // null => default url
-						.modelName(modelName)
+				chatModelStreamFactory = url -> OllamaStreamingChatModel.builder()
+						.baseUrl(url) // null => default url
+						.modelName(ollamaModelName)
 						.customHeaders(customHeaders)
 						.temperature(0d)
 						.build();
@@ -144,28 +254,130 @@ public final class Lc4jPlugin implements LlmPlugin {
 			default -> throw new IllegalArgumentException("Unsupported API type: " + apiType);
 		}
 
+		final var urls = urlOpt.map(Lc4jEndpointBalancer::parseUrls).orElseGet(List::of);
+		if (urls.size() > 1) {
+			final var balancingConfig = Lc4jEndpointBalancer.Config.of(endpointMaxFailuresOpt, endpointEjectionSecondsOpt, hedgingPercentileOpt);
+			chatModelBalancerOpt = Optional.of(new Lc4jEndpointBalancer<>(urls, chatModelFactory, serverErrorPredicate, balancingConfig));
+			chatModel = new Lc4jBalancedChatModel(chatModelBalancerOpt.get());
+			chatModelStream = new Lc4jBalancedStreamingChatModel(new Lc4jEndpointBalancer<>(urls, chatModelStreamFactory, serverErrorPredicate, balancingConfig.withoutHedging()));
+		} else {
+			chatModelBalancerOpt = Optional.empty();
+			chatModel = chatModelFactory.apply(urls.isEmpty() ? null : urls.get(0));
+			chatModelStream = chatModelStreamFactory.apply(urls.isEmpty() ? null : urls.get(0));
+		}
+
 		this.embeddingPlugin = embeddingPlugin;
 		this.storagePlugin = storagePlugin;
+		this.resultCachePlugin = resultCachePlugin;
+		modelTiers = modelTierPlugins.stream()
+				.map(plugin -> new ModelTier(plugin.getTierName(), plugin.getChatModel(), new LongAdder(), new LongAdder()))
+				.toList();
+
+		if (hnswMOpt.isPresent() || hnswEfConstructionOpt.isPresent() || hnswEfSearchOpt.isPresent()) {
+			final var defaults = HnswConfig.defaults();
+			temporaryHnswConfigOpt = Optional.of(new HnswConfig(
+					hnswMOpt.orElse(defaults.m()),
+					hnswEfConstructionOpt.orElse(defaults.efConstruction()),
+					hnswEfSearchOpt.orElse(defaults.efSearch())));
+		} else {
+			temporaryHnswConfigOpt = Optional.empty();
+		}
+
+		final var defaultRetrievalConfig = RetrievalConfig.defaults();
+		retrievalConfig = new RetrievalConfig(
+				hybridRetrievalOpt.orElse(defaultRetrievalConfig.hybrid()),
+				retrievalMaxResultsOpt.orElse(defaultRetrievalConfig.maxResults()),
+				retrievalMinScoreOpt.map(Double::valueOf).orElse(defaultRetrievalConfig.minScore()));
+		rerankingOpt = scoringPlugin.map(plugin -> new Reranking(plugin.getScoringModel(), plugin.getCandidateCount()));
+		answerCacheOpt = answerCacheSizeOpt.map(cacheSize -> new Lc4jSemanticCache<>(cacheSize,
+				answerCacheMinSimilarityOpt.map(Double::valueOf).orElse(0.95d),
+				Duration.ofSeconds(answerCacheTtlSecondsOpt.orElse(3600))));
+		assistantCache = new Lc4jLruCache<>(assistantCacheSizeOpt.orElse(DEFAULT_ASSISTANT_CACHE_SIZE));
+		final int maxConcurrentRequests = maxConcurrentRequestsOpt.orElse(defaultMaxConcurrentRequests);
+		requestExecutor = new Lc4jRequestExecutor(apiType.toLowerCase(), maxConcurrentRequests,
+				Duration.ofSeconds(queueTimeoutSecondsOpt.orElse(DEFAULT_QUEUE_TIMEOUT_SECONDS)));
+		bulkRunner = new Lc4jBulkRunner(new Lc4jBulkRunner.Config(
+				maxConcurrentRequests,
+				requestsPerMinuteOpt.orElse(0),
+				tokensPerMinuteOpt.orElse(0),
+				bulkMaxRetriesOpt.orElse(DEFAULT_BULK_MAX_RETRIES)),
+				throttledPredicate);
+	}
+
+	@Override
+	public void start() {
+		// nothing
+	}
+
+	@Override
+	public void stop() {
+		requestExecutor.shutdown();
+		chatModelBalancerOpt.ifPresent(Lc4jEndpointBalancer::close);
 	}
 
 	@Override
 	public VLlmMessage askOnFiles(final VPrompt prompt, final VLlmDocumentSource documentSource, final Map<String, Object> metadataFilter) {
-		final var assistantBuilder = AiServices.builder(Assistant.class)
-				.chatLanguageModel(chatModel);
+		if (answerCacheOpt.isEmpty()) {
+			return doAskOnFiles(prompt, documentSource, metadataFilter);
+		}
+		final var answerCache = answerCacheOpt.get();
+		final var lc4jDocumentSource = documentSource instanceof final Lc4jDocumentSource source && !source.isEmpty() ? source : null;
+		final var cacheKey = new CacheKey(
+				Lc4jUtils.getSystemMessageFromContext(prompt.getContext()).map(SystemMessage::text).orElse(""),
+				lc4jDocumentSource == null ? "" : lc4jDocumentSource.getSourceId(),
+				metadataFilter);
+		// read before answering : an answer computed while documents change is stored for the previous version
+		final long sourceVersion = lc4jDocumentSource == null ? 0 : lc4jDocumentSource.getVersion();
+		final var query = embeddingPlugin.getEmbeddingModel().embed(prompt.getInstructions()).content().vector();
+		final var cachedAnswer = answerCache.get(cacheKey, query, sourceVersion);
+		if (cachedAnswer != null) {
+			return cachedAnswer;
+		}
+		final var answer = doAskOnFiles(prompt, documentSource, metadataFilter);
+		answerCache.put(cacheKey, query, sourceVersion, answer);
+		return answer;
+	}
 
-		final var context = prompt.getContext();
-		Lc4jUtils.getSystemMessageFromContext(context)
-				.ifPresent(systemMessage -> assistantBuilder.systemMessageProvider(memId -> systemMessage.text()));
+	/**
+	 * Asynchronous askOnFiles, limited by maxConcurrentRequests.
+	 *
+	 * @param prompt the prompt
+	 * @param documentSource the document source
+	 * @param metadataFilter the metadata filter
+	 * @return the future answer, cancel it to abandon the request
+	 */
+	public CompletableFuture<VLlmMessage> askOnFilesAsync(final VPrompt prompt, final VLlmDocumentSource documentSource, final Map<String, Object> metadataFilter) {
+		return requestExecutor.submit(() -> askOnFiles(prompt, documentSource, metadataFilter));
+	}
 
+	private VLlmMessage doAskOnFiles(final VPrompt prompt, final VLlmDocumentSource documentSource, final Map<String, Object> metadataFilter) {
+		final Lc4jDocumentSource lc4jDocumentSource;
 		if (documentSource != null && !documentSource.isEmpty()) {
 			Assertion.check()
 					.isTrue(documentSource instanceof Lc4jDocumentSource, "Only Lc4jDocumentSource is supported");
-
-			// add access to our documents
-			final var contentRetriever = ((Lc4jDocumentSource) documentSource).getContentRetriever(metadataFilter, 10, 0.5d);
-			assistantBuilder.contentRetriever(contentRetriever);
+			lc4jDocumentSource = (Lc4jDocumentSource) documentSource;
+		} else {
+			lc4jDocumentSource = null;
+		}
+		final var systemMessageOpt = Lc4jUtils.getSystemMessageFromContext(prompt.getContext());
+
+		final Assistant assistant;
+		if (lc4jDocumentSource instanceof Lc4jInMemoryDocumentSource) {
+			// temporary sources are usually asked once, the cache would only keep them in memory
+			assistant = buildAssistant(systemMessageOpt, lc4jDocumentSource, metadataFilter);
+		} else {
+			final var cacheKey = new CacheKey(
+					systemMessageOpt.map(SystemMessage::text).orElse(""),
+					lc4jDocumentSource == null ? "" : lc4jDocumentSource.getSourceId(),
+					metadataFilter);
+			final var cachedAssistant = assistantCache.get(cacheKey);
+			if (cachedAssistant != null) {
+				assistant = cachedAssistant;
+			} else {
+				assistant = buildAssistant(systemMessageOpt, lc4jDocumentSource, metadataFilter);
+				assistantCache.put(cacheKey, assistant);
+			}
 		}
-		final Assistant assistant = assistantBuilder.build();
 
 		Result<String> llmResponse;
 		try {
@@ -177,26 +389,201 @@ public final class Lc4jPlugin implements LlmPlugin {
 		return new Lc4jMessage(llmResponse);
 	}
 
+	private Assistant buildAssistant(final Optional<SystemMessage> systemMessageOpt, final Lc4jDocumentSource lc4jDocumentSource, final Map<String, Object> metadataFilter) {
+		final var assistantBuilder = AiServices.builder(Assistant.class)
+				.chatLanguageModel(chatModel);
+
+		systemMessageOpt
+				.ifPresent(systemMessage -> assistantBuilder.systemMessageProvider(memId -> systemMessage.text()));
+
+		if (lc4jDocumentSource != null) {
+			// add access to our documents
+			assistantBuilder.retrievalAugmentor(lc4jDocumentSource.getRetrievalAugmentor(metadataFilter, retrievalConfig, rerankingOpt));
+		}
+		return assistantBuilder.build();
+	}
+
+	/**
+	 * Exposes answer cache hit/miss counters.
+	 *
+	 * @return the metrics of the answer cache
+	 */
+	@Metrics
+	public List<Metric> getAnswerCacheMetrics() {
+		return answerCacheOpt
+				.map(answerCache -> List.of(
+						toMetric("answerCacheHits", answerCache.getHitCount()),
+						toMetric("answerCacheMisses", answerCache.getMissCount())))
+				.orElseGet(Collections::emptyList);
+	}
+
+	private static Metric toMetric(final String name, final double value) {
+		return Metric.builder()
+				.withName(name)
+				.withFeature(LlmManagerImpl.LLM_CATEGORY)
+				.withValue(value)
+				.withSuccess()
+				.build();
+	}
+
 	@Override
 	public <T> T ask(final VPrompt prompt, final Class<T> clazz) {
 		final var chatMessages = new ArrayList<ChatMessage>();
-		final var context = prompt.getContext();
-
-		Lc4jUtils.getSystemMessageFromContext(context)
-				.ifPresent(chatMessages::add);
+		final var systemMessageOpt = Lc4jUtils.getSystemMessageFromContext(prompt.getContext());
+		systemMessageOpt.ifPresent(chatMessages::add);
 
 		// append additional instructions as in dev.langchain4j.service.DefaultAiServices
 		// don't know why it is not done in the system message
 		final var additionalInstructions = serviceOutputParser.outputFormatInstructions(clazz);
 		chatMessages.add(UserMessage.from(prompt.getInstructions() + "\n" + additionalInstructions));
 
+		if (resultCachePlugin.isEmpty()) {
+			return generateAndParse(chatMessages, clazz).result();
+		}
+		// the model runs at temperature 0 : the same ask gets the same answer
+		final var cacheKey = Lc4jUtils.sha256Hex(String.join("\0",
+				modelName,
+				systemMessageOpt.map(SystemMessage::text).orElse(""),
+				prompt.getInstructions(),
+				clazz.getTypeName()));
+		final Optional<T> cachedResult = resultCachePlugin.get().get(cacheKey,
+				answer -> (T) serviceOutputParser.parse(Response.from(AiMessage.from(answer)), clazz));
+		if (cachedResult.isPresent()) {
+			return cachedResult.get();
+		}
+		final var parsedAnswer = generateAndParse(chatMessages, clazz);
+		resultCachePlugin.get().put(cacheKey, parsedAnswer.result(), parsedAnswer.text());
+		return parsedAnswer.result();
+	}
+
+	private <T> ParsedAnswer<T> generateAndParse(final List<ChatMessage> chatMessages, final Class<T> clazz) {
+		for (final var modelTier : modelTiers) {
+			try {
+				final var llmResponse = modelTier.chatModel().generate(chatMessages);
+				final var result = (T) serviceOutputParser.parse(llmResponse, clazz);
+				if (isComplete(result)) {
+					modelTier.answers().increment();
+					return new ParsedAnswer<>(result, llmResponse.content().text());
+				}
+				LOG.debug("Incomplete answer from model tier {}, escalating", modelTier.name());
+			} catch (final RuntimeException e) {
+				// unparsable answer (VUserException) or unavailable model : the next tier may do better
+				LOG.debug("Model tier {} failed, escalating", modelTier.name(), e);
+			}
+			modelTier.escalations().increment();
+		}
 		final var llmResponse = chatModel.generate(chatMessages);
-		return (T) serviceOutputParser.parse(llmResponse, clazz);
+		final var result = (T) serviceOutputParser.parse(llmResponse, clazz);
+		lastTierAnswers.increment();
+		return new ParsedAnswer<>(result, llmResponse.content().text());
+	}
+
+	/**
+	 * Checks that an answer has all its required fields, else the next model tier is asked.
+	 * The format instructions ask for every field of a record, so a record component is required unless its type is an Optional
+	 * (an absent value is then a valid answer). Primitive components are never null : a missing one can't be detected.
+	 * Other results are always complete.
+	 *
+	 * @param result the parsed answer
+	 * @return true if no required record component is null
+	 */
+	private static boolean isComplete(final Object result) {
+		if (result == null) {
+			return false;
+		}
+		if (!result.getClass().isRecord()) {
+			return true;
+		}
+		for (final var recordComponent : result.getClass().getRecordComponents()) {
+			if (recordComponent.getType() == Optional.class || recordComponent.getType().isPrimitive()) {
+				continue;
+			}
+			final var accessor = recordComponent.getAccessor();
+			try {
+				if (accessor.trySetAccessible() && accessor.invoke(result) == null) {
+					return false;
+				}
+			} catch (final ReflectiveOperationException e) {
+				throw WrappedException.wrap(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Exposes the number of asks answered by each model tier, and escalated from it.
+	 *
+	 * @return the metrics of the model tiers
+	 */
+	@Metrics
+	public List<Metric> getModelTierMetrics() {
+		if (modelTiers.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final var metrics = new ArrayList<Metric>();
+		for (final var modelTier : modelTiers) {
+			metrics.add(toMetric("modelTierAnswers." + modelTier.name(), modelTier.answers().sum()));
+			metrics.add(toMetric("modelTierEscalations." + modelTier.name(), modelTier.escalations().sum()));
+		}
+		metrics.add(toMetric("modelTierAnswers." + modelName, lastTierAnswers.sum()));
+		return metrics;
+	}
+
+	/**
+	 * Asynchronous ask, limited by maxConcurrentRequests.
+	 *
+	 * @param <T> the result type
+	 * @param prompt the prompt
+	 * @param clazz the result type
+	 * @return the future result, cancel it to abandon the request
+	 */
+	public <T> CompletableFuture<T> askAsync(final VPrompt prompt, final Class<T> clazz) {
+		return requestExecutor.submit(() -> ask(prompt, clazz));
+	}
+
+	/**
+	 * Asks each prompt, with an adaptive concurrency (see Lc4jBulkRunner), returns when all are answered.
+	 * Results are cached as ask results are.
+	 *
+	 * @param <T> the result type
+	 * @param prompts the prompts, read as requests start
+	 * @param clazz the result type
+	 * @param resultHandler receives each result as soon as available, not in prompts order
+	 */
+	public <T> void askAll(final Stream<VPrompt> prompts, final Class<T> clazz, final Consumer<BulkResult<VPrompt, T>> resultHandler) {
+		bulkRunner.run(prompts, prompt -> ask(prompt, clazz), this::estimateTokenCount, resultHandler);
+	}
+
+	// answers are not known before : only the prompt is counted, tokensPerMinute must keep a margin for them
+	private int estimateTokenCount(final VPrompt prompt) {
+		return Lc4jUtils.getSystemMessageFromContext(prompt.getContext())
+				.map(tokenizer::estimateTokenCountInMessage)
+				.orElse(0)
+				+ tokenizer.estimateTokenCountInText(prompt.getInstructions());
+	}
+
+	private static boolean isOpenAiThrottled(final Throwable throwable) {
+		// the model wraps the http exception after its own retries
+		for (var cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause instanceof final OpenAiHttpException httpException && httpException.code() == HTTP_TOO_MANY_REQUESTS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isOpenAiServerError(final Throwable throwable) {
+		for (var cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause instanceof final OpenAiHttpException httpException && httpException.code() >= HTTP_SERVER_ERROR) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	@Override
 	public LlmChat newChat(final VLlmDocumentSource documentSource, final Map<String, Object> metadataFilter, final VPromptContext context) {
-		return new Lc4jChat(documentSource, metadataFilter, context, chatModel, chatModelStream, tokenizer);
+		return new Lc4jChat(documentSource, metadataFilter, context, chatModel, chatModelStream, tokenizer, retrievalConfig, rerankingOpt, requestExecutor);
 	}
 
 	public static class VServiceOutputParser extends ServiceOutputParser {
@@ -256,6 +643,17 @@ public final class Lc4jPlugin implements LlmPlugin {
 
 	@Override
 	public VLlmDocumentSource getTemporaryDocumentSource() {
-		return new Lc4jInMemoryDocumentSource(embeddingPlugin.getEmbeddingModel());
+		return new Lc4jInMemoryDocumentSource(embeddingPlugin.getEmbeddingModel(), temporaryHnswConfigOpt);
+	}
+
+	/**
+	 * Restores a temporary document source from a snapshot written by {@link Lc4jInMemoryDocumentSource#writeSnapshot}.
+	 *
+	 * @param snapshot the snapshot
+	 * @param fileInfoReader reads the file of each document (usually FileStoreManager::read)
+	 * @return the document source
+	 */
+	public VLlmDocumentSource restoreTemporaryDocumentSource(final InputStream snapshot, final Function<FileInfoURI, FileInfo> fileInfoReader) {
+		return Lc4jInMemoryDocumentSource.readSnapshot(snapshot, embeddingPlugin.getEmbeddingModel(), temporaryHnswConfigOpt, fileInfoReader);
 	}
 }
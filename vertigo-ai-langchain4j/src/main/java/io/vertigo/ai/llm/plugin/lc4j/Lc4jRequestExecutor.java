@@ -0,0 +1,125 @@
+package io.vertigo.ai.llm.plugin.lc4j;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.VSystemException;
+
+/**
+ * Runs LLM requests asynchronously, at most maxConcurrentRequests at a time, started in submission order.
+ * A request not started within the queue timeout fails without being sent to the provider.
+ * Cancelling a future removes its request from the queue, or interrupts it if already running.
+ * <p>
+ * Requests run on a fixed pool of platform threads sized to the limit (no virtual threads before Java 21) :
+ * waiting requests only hold a queue slot, not a thread.
+ */
+public final class Lc4jRequestExecutor {
+
+	private final ThreadPoolExecutor executor;
+	private final Duration queueTimeout;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the name of the provider, used for the thread names
+	 * @param maxConcurrentRequests the maximum number of requests running at the same time
+	 * @param queueTimeout the maximum time a request waits before running
+	 */
+	public Lc4jRequestExecutor(final String name, final int maxConcurrentRequests, final Duration queueTimeout) {
+		Assertion.check()
+				.isNotBlank(name)
+				.isTrue(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive")
+				.isNotNull(queueTimeout);
+		//---
+		executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), new NamedThreadFactory("v-lc4j-" + name + "-"));
+		this.queueTimeout = queueTimeout;
+	}
+
+	/**
+	 * Queues a request.
+	 *
+	 * @param <T> the result type
+	 * @param request the blocking request
+	 * @return the future result
+	 */
+	public <T> CompletableFuture<T> submit(final Supplier<T> request) {
+		final var result = new CompletableFuture<T>();
+		// claimed once, by the worker starting the request, the queue timeout, a cancellation or the shutdown
+		final var started = new AtomicBoolean();
+		final var task = new RequestTask(() -> {
+			if (started.compareAndSet(false, true)) {
+				try {
+					result.complete(request.get());
+				} catch (final Throwable e) {
+					result.completeExceptionally(e);
+				}
+			}
+		}, () -> {
+			if (started.compareAndSet(false, true)) {
+				result.completeExceptionally(new CancellationException("LLM request executor stopped"));
+			}
+		});
+		try {
+			executor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			task.abort.run();
+			return result;
+		}
+
+		CompletableFuture.delayedExecutor(queueTimeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+			if (started.compareAndSet(false, true)) {
+				executor.remove(task);
+				result.completeExceptionally(new VSystemException("LLM request not started after {0} ms, too many concurrent requests", queueTimeout.toMillis()));
+			}
+		});
+		result.whenComplete((value, error) -> {
+			if (result.isCancelled()) {
+				if (started.compareAndSet(false, true)) {
+					executor.remove(task);
+				} else {
+					task.cancel(true);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return the number of requests waiting to run
+	 */
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops the threads, running requests are interrupted and waiting ones fail with a CancellationException.
+	 */
+	public void shutdown() {
+		for (final var runnable : executor.shutdownNow()) {
+			((RequestTask) runnable).abort.run();
+		}
+	}
+
+	/**
+	 * A queued request, with the action failing it if it never runs.
+	 */
+	private static final class RequestTask extends FutureTask<Void> {
+		private final Runnable abort;
+
+		RequestTask(final Runnable request, final Runnable abort) {
+			super(request, null);
+			this.abort = abort;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package io.vertigo.ai.llm.plugin.lc4j;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.VectorMath;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * Cache of answers matched on the similarity of the question, for near duplicate questions.
+ * Answers are grouped by key (system message, document source, metadata filter) and are valid for one version of the document source :
+ * an answer is returned if its question embedding is similar enough to the asked one and the documents have not changed since.
+ * Keys are evicted LRU, each key keeps its last {@value #MAX_ENTRIES_PER_KEY} answers.
+ *
+ * @param <V> the answer type
+ */
+public final class Lc4jSemanticCache<V> {
+	private static final int MAX_ENTRIES_PER_KEY = 32;
+
+	private final Lc4jLruCache<CacheKey, Deque<CacheEntry<V>>> entriesByKey;
+	private final double minSimilarity;
+	private final long timeToLiveNanos;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Key of a group of answers.
+	 *
+	 * @param systemMessage the system message, empty if none
+	 * @param sourceId the id of the document source, empty if none
+	 * @param metadataFilter the metadata filter, empty if none
+	 */
+	public record CacheKey(String systemMessage, String sourceId, Map<String, Object> metadataFilter) {
+		public CacheKey {
+			Assertion.check()
+					.isNotNull(systemMessage)
+					.isNotNull(sourceId);
+			//---
+			metadataFilter = metadataFilter == null ? Map.of() : new HashMap<>(metadataFilter);
+		}
+	}
+
+	private record CacheEntry<V>(float[] normalizedQuery, long sourceVersion, long expirationNanos, V value) {
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxKeys the maximum number of keys kept in the cache
+	 * @param minSimilarity the minimum cosine similarity of the questions
+	 * @param timeToLive the time an answer is kept, also bounds the staleness when the documents change on another node
+	 */
+	public Lc4jSemanticCache(final int maxKeys, final double minSimilarity, final Duration timeToLive) {
+		Assertion.check()
+				.isTrue(minSimilarity > 0 && minSimilarity <= 1, "minSimilarity must be in ]0, 1]")
+				.isNotNull(timeToLive);
+		//---
+		entriesByKey = new Lc4jLruCache<>(maxKeys);
+		this.minSimilarity = minSimilarity;
+		timeToLiveNanos = timeToLive.toNanos();
+	}
+
+	/**
+	 * @param key the key
+	 * @param query the embedding of the question
+	 * @param sourceVersion the current version of the document source
+	 * @return the answer of the most similar question, or null
+	 */
+	public V get(final CacheKey key, final float[] query, final long sourceVersion) {
+		final var entries = entriesByKey.get(key);
+		if (entries != null) {
+			final var normalizedQuery = VectorMath.normalizedCopy(query);
+			final long now = System.nanoTime();
+			V best = null;
+			double bestSimilarity = minSimilarity;
+			synchronized (entries) {
+				// stale answers will never match again
+				entries.removeIf(entry -> entry.sourceVersion() != sourceVersion || now - entry.expirationNanos() > 0);
+				for (final var entry : entries) {
+					if (entry.normalizedQuery().length != normalizedQuery.length) {
+						continue; // another embedding model
+					}
+					final double similarity = VectorMath.dot(normalizedQuery, 0, entry.normalizedQuery(), 0, normalizedQuery.length);
+					if (similarity >= bestSimilarity) {
+						bestSimilarity = similarity;
+						best = entry.value();
+					}
+				}
+			}
+			if (best != null) {
+				hitCount.increment();
+				return best;
+			}
+		}
+		missCount.increment();
+		return null;
+	}
+
+	/**
+	 * @param key the key
+	 * @param query the embedding of the question
+	 * @param sourceVersion the version of the document source read before computing the answer
+	 * @param value the answer
+	 */
+	public void put(final CacheKey key, final float[] query, final long sourceVersion, final V value) {
+		final var entry = new CacheEntry<>(VectorMath.normalizedCopy(query), sourceVersion, System.nanoTime() + timeToLiveNanos, value);
+		Deque<CacheEntry<V>> entries;
+		synchronized (entriesByKey) {
+			entries = entriesByKey.get(key);
+			if (entries == null) {
+				entries = new ArrayDeque<>();
+				entriesByKey.put(key, entries);
+			}
+		}
+		synchronized (entries) {
+			if (entries.size() == MAX_ENTRIES_PER_KEY) {
+				entries.removeFirst();
+			}
+			entries.addLast(entry);
+		}
+	}
+
+	/**
+	 * Evicts all answers.
+	 */
+	public void clear() {
+		entriesByKey.clear();
+	}
+
+	/**
+	 * @return the number of questions answered from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return the number of questions not found in the cache
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+}
@@ -1,17 +1,41 @@
 package io.vertigo.ai.llm.plugin.lc4j;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Optional;
+import java.util.regex.Pattern;
 
 import dev.langchain4j.data.message.SystemMessage;
 import io.vertigo.ai.llm.model.VPromptContext;
+import io.vertigo.core.lang.WrappedException;
 import io.vertigo.core.util.StringUtil;
 
 public class Lc4jUtils {
+	private static final Pattern OLLAMA_SERVER_ERROR_PATTERN = Pattern.compile("status code: 5\\d\\d\\b"); // message of OllamaClient http errors
 
 	private Lc4jUtils() {
 		// private constructor
 	}
 
+	/**
+	 * Tells if an error is a server error response (HTTP 5xx) of an Ollama server : OllamaClient only reports the status in the message.
+	 *
+	 * @param throwable the error
+	 * @return true for a server error
+	 */
+	public static boolean isOllamaServerError(final Throwable throwable) {
+		for (var cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause.getMessage() != null && OLLAMA_SERVER_ERROR_PATTERN.matcher(cause.getMessage()).lookingAt()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public static Optional<SystemMessage> getSystemMessageFromContext(final VPromptContext context) {
 		final var persona = context.getPersona();
 		final var userPersona = context.getUserPersona();
@@ -53,4 +77,42 @@ public class Lc4jUtils {
 		return Optional.of(SystemMessage.from(personaInstructions.toString()));
 	}
 
+	/**
+	 * Computes the SHA-256 hash of a text.
+	 *
+	 * @param text the text to hash
+	 * @return the hash as an hexadecimal string
+	 */
+	public static String sha256Hex(final String text) {
+		return HexFormat.of().formatHex(newSha256Digest().digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Computes the SHA-256 hash of a stream content. The stream is read but not closed.
+	 *
+	 * @param inputStream the stream to hash
+	 * @return the hash as an hexadecimal string
+	 * @throws IOException if the stream can't be read
+	 */
+	public static String sha256Hex(final InputStream inputStream) throws IOException {
+		final var digest = newSha256Digest();
+		final var buffer = new byte[8192];
+		int read;
+		while ((read = inputStream.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * @return a new SHA-256 digest
+	 */
+	public static MessageDigest newSha256Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
 }
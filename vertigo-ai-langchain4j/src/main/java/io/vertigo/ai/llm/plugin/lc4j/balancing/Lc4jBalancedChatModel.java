@@ -0,0 +1,48 @@
+package io.vertigo.ai.llm.plugin.lc4j.balancing;
+
+import java.util.List;
+import java.util.Set;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * ChatLanguageModel spreading requests over several endpoints (see Lc4jEndpointBalancer).
+ */
+public final class Lc4jBalancedChatModel implements ChatLanguageModel {
+
+	private final Lc4jEndpointBalancer<ChatLanguageModel> balancer;
+	private final ChatLanguageModel firstModel;
+
+	public Lc4jBalancedChatModel(final Lc4jEndpointBalancer<ChatLanguageModel> balancer) {
+		Assertion.check().isNotNull(balancer);
+		//---
+		this.balancer = balancer;
+		firstModel = balancer.getModels().get(0);
+	}
+
+	@Override
+	public Response<AiMessage> generate(final List<ChatMessage> messages) {
+		return balancer.execute(model -> model.generate(messages));
+	}
+
+	@Override
+	public Response<AiMessage> generate(final List<ChatMessage> messages, final List<ToolSpecification> toolSpecifications) {
+		return balancer.execute(model -> model.generate(messages, toolSpecifications));
+	}
+
+	@Override
+	public Response<AiMessage> generate(final List<ChatMessage> messages, final ToolSpecification toolSpecification) {
+		return balancer.execute(model -> model.generate(messages, toolSpecification));
+	}
+
+	@Override
+	public Set<Capability> supportedCapabilities() {
+		return firstModel.supportedCapabilities();
+	}
+}
@@ -0,0 +1,34 @@
+package io.vertigo.ai.llm.plugin.lc4j.balancing;
+
+import java.util.List;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * EmbeddingModel spreading requests over several endpoints (see Lc4jEndpointBalancer).
+ */
+public final class Lc4jBalancedEmbeddingModel implements EmbeddingModel {
+
+	private final Lc4jEndpointBalancer<EmbeddingModel> balancer;
+
+	public Lc4jBalancedEmbeddingModel(final Lc4jEndpointBalancer<EmbeddingModel> balancer) {
+		Assertion.check().isNotNull(balancer);
+		//---
+		this.balancer = balancer;
+	}
+
+	@Override
+	public Response<List<Embedding>> embedAll(final List<TextSegment> textSegments) {
+		return balancer.execute(model -> model.embedAll(textSegments));
+	}
+
+	@Override
+	public int dimension() {
+		// all the endpoints serve the same model
+		return balancer.execute(EmbeddingModel::dimension);
+	}
+}
@@ -0,0 +1,78 @@
+package io.vertigo.ai.llm.plugin.lc4j.balancing;
+
+import java.util.List;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.StreamingResponseHandler;
+import dev.langchain4j.model.chat.StreamingChatLanguageModel;
+import dev.langchain4j.model.output.Response;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * StreamingChatLanguageModel spreading requests over several endpoints (see Lc4jEndpointBalancer).
+ * Streams are never hedged : tokens already sent can't be taken back.
+ */
+public final class Lc4jBalancedStreamingChatModel implements StreamingChatLanguageModel {
+
+	private final Lc4jEndpointBalancer<StreamingChatLanguageModel> balancer;
+
+	public Lc4jBalancedStreamingChatModel(final Lc4jEndpointBalancer<StreamingChatLanguageModel> balancer) {
+		Assertion.check().isNotNull(balancer);
+		//---
+		this.balancer = balancer;
+	}
+
+	@Override
+	public void generate(final List<ChatMessage> messages, final StreamingResponseHandler<AiMessage> handler) {
+		final var lease = balancer.lease();
+		start(lease, () -> lease.model().generate(messages, new LeaseHandler(lease, handler)));
+	}
+
+	@Override
+	public void generate(final List<ChatMessage> messages, final List<ToolSpecification> toolSpecifications, final StreamingResponseHandler<AiMessage> handler) {
+		final var lease = balancer.lease();
+		start(lease, () -> lease.model().generate(messages, toolSpecifications, new LeaseHandler(lease, handler)));
+	}
+
+	@Override
+	public void generate(final List<ChatMessage> messages, final ToolSpecification toolSpecification, final StreamingResponseHandler<AiMessage> handler) {
+		final var lease = balancer.lease();
+		start(lease, () -> lease.model().generate(messages, toolSpecification, new LeaseHandler(lease, handler)));
+	}
+
+	private static void start(final Lc4jEndpointBalancer.Lease<StreamingChatLanguageModel> lease, final Runnable generation) {
+		try {
+			generation.run();
+		} catch (final RuntimeException e) {
+			// failed before streaming
+			lease.failed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Completes the lease with the stream.
+	 */
+	private record LeaseHandler(Lc4jEndpointBalancer.Lease<StreamingChatLanguageModel> lease, StreamingResponseHandler<AiMessage> handler)
+			implements StreamingResponseHandler<AiMessage> {
+
+		@Override
+		public void onNext(final String token) {
+			handler.onNext(token);
+		}
+
+		@Override
+		public void onComplete(final Response<AiMessage> response) {
+			lease.succeeded();
+			handler.onComplete(response);
+		}
+
+		@Override
+		public void onError(final Throwable error) {
+			lease.failed(error);
+			handler.onError(error);
+		}
+	}
+}
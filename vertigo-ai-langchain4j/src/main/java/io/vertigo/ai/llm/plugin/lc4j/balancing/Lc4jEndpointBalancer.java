@@ -0,0 +1,381 @@
+package io.vertigo.ai.llm.plugin.lc4j.balancing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * Spreads the requests of a model over several endpoints serving it.
+ * <ul>
+ * <li>each request goes to the endpoint with the least outstanding requests (ties are broken randomly)</li>
+ * <li>an endpoint failing maxConsecutiveFailures times in a row is ejected for ejectionTime, then receives requests again
+ * (one more failure ejects it again). If all endpoints are ejected, the first one back is used.
+ * Only transport errors are failures (IO errors, timeouts, and server errors recognized by the provider predicate) :
+ * not rejected requests (HTTP 4xx) nor cancelled calls</li>
+ * <li>with a hedgingPercentile, a request still running after this percentile of the recent latencies is sent to a second endpoint,
+ * the first answer is kept and the other request is cancelled</li>
+ * </ul>
+ *
+ * @param <M> the model type, one instance per endpoint
+ */
+public final class Lc4jEndpointBalancer<M> implements AutoCloseable {
+	private static final Logger LOG = LogManager.getLogger(Lc4jEndpointBalancer.class);
+	private static final int LATENCY_WINDOW_SIZE = 256;
+	private static final int MIN_LATENCY_SAMPLES = 32;
+
+	private final List<Endpoint<M>> endpoints;
+	private final Config config;
+	private final Predicate<Throwable> serverErrorPredicate;
+	private final LatencyWindow latencyWindow = new LatencyWindow();
+	private final Optional<ExecutorService> hedgingExecutorOpt;
+
+	/**
+	 * @param maxConsecutiveFailures the number of failures in a row ejecting an endpoint
+	 * @param ejectionTime the time an endpoint is ejected
+	 * @param hedgingPercentile the latency percentile after which a request is hedged, 0 for no hedging
+	 * @param minHedgingDelay the minimum time before a request is hedged
+	 */
+	public record Config(int maxConsecutiveFailures, Duration ejectionTime, int hedgingPercentile, Duration minHedgingDelay) {
+		public Config {
+			Assertion.check()
+					.isTrue(maxConsecutiveFailures > 0, "maxConsecutiveFailures must be positive")
+					.isNotNull(ejectionTime)
+					.isTrue(hedgingPercentile >= 0 && hedgingPercentile < 100, "hedgingPercentile must be in [0, 100[")
+					.isNotNull(minHedgingDelay);
+		}
+
+		public static Config defaults() {
+			return new Config(3, Duration.ofSeconds(30), 0, Duration.ofMillis(100));
+		}
+
+		/**
+		 * @return this config without hedging (for streams)
+		 */
+		public Config withoutHedging() {
+			return new Config(maxConsecutiveFailures, ejectionTime, 0, minHedgingDelay);
+		}
+
+		/**
+		 * Config from plugin params, missing values are taken from the defaults.
+		 *
+		 * @param maxFailuresOpt the endpointMaxFailures param
+		 * @param ejectionSecondsOpt the endpointEjectionSeconds param
+		 * @param hedgingPercentileOpt the hedgingPercentile param
+		 * @return the config
+		 */
+		public static Config of(final Optional<Integer> maxFailuresOpt, final Optional<Integer> ejectionSecondsOpt, final Optional<Integer> hedgingPercentileOpt) {
+			final var defaults = defaults();
+			return new Config(
+					maxFailuresOpt.orElse(defaults.maxConsecutiveFailures()),
+					ejectionSecondsOpt.map(Duration::ofSeconds).orElse(defaults.ejectionTime()),
+					hedgingPercentileOpt.orElse(defaults.hedgingPercentile()),
+					defaults.minHedgingDelay());
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param urls the urls of the endpoints
+	 * @param modelFactory creates the model of an endpoint from its url
+	 * @param serverErrorPredicate tells if an error is a server error response of the provider (HTTP 5xx)
+	 * @param config the balancing config
+	 */
+	public Lc4jEndpointBalancer(final List<String> urls, final Function<String, M> modelFactory, final Predicate<Throwable> serverErrorPredicate,
+			final Config config) {
+		Assertion.check()
+				.isFalse(urls.isEmpty(), "At least one endpoint url is needed")
+				.isNotNull(modelFactory)
+				.isNotNull(serverErrorPredicate)
+				.isNotNull(config);
+		//---
+		endpoints = urls.stream()
+				.map(url -> new Endpoint<>(url, modelFactory.apply(url)))
+				.toList();
+		this.config = config;
+		this.serverErrorPredicate = serverErrorPredicate;
+		hedgingExecutorOpt = config.hedgingPercentile() > 0 && endpoints.size() > 1
+				? Optional.of(Executors.newCachedThreadPool(new NamedThreadFactory("v-lc4j-hedging-")))
+				: Optional.empty();
+	}
+
+	/**
+	 * Parses a comma separated list of urls.
+	 *
+	 * @param urls the urls
+	 * @return the list of urls
+	 */
+	public static List<String> parseUrls(final String urls) {
+		return Arrays.stream(urls.split(","))
+				.map(String::trim)
+				.filter(url -> !url.isEmpty())
+				.toList();
+	}
+
+	/**
+	 * Runs a blocking call, hedged if configured.
+	 *
+	 * @param <R> the result type
+	 * @param call the call of a model
+	 * @return the result
+	 */
+	public <R> R execute(final Function<M, R> call) {
+		final long hedgingDelayNanos = hedgingExecutorOpt.isPresent() ? latencyWindow.percentileNanos(config.hedgingPercentile()) : -1;
+		if (hedgingDelayNanos < 0) {
+			// no hedging yet (or at all) : no thread hop
+			return executeOn(select(null), call, null);
+		}
+		return executeHedged(call, Math.max(hedgingDelayNanos, config.minHedgingDelay().toNanos()));
+	}
+
+	/**
+	 * Starts a call completing later (streaming) : the returned lease must be completed by succeeded or failed.
+	 *
+	 * @return the lease of an endpoint
+	 */
+	public Lease<M> lease() {
+		final var endpoint = select(null);
+		endpoint.outstanding.incrementAndGet();
+		return new Lease<>(this, endpoint, System.nanoTime());
+	}
+
+	/**
+	 * @return the models of the endpoints, in urls order
+	 */
+	public List<M> getModels() {
+		return endpoints.stream()
+				.map(endpoint -> endpoint.model)
+				.toList();
+	}
+
+	@Override
+	public void close() {
+		hedgingExecutorOpt.ifPresent(ExecutorService::shutdownNow);
+	}
+
+	private <R> R executeHedged(final Function<M, R> call, final long hedgingDelayNanos) {
+		final var hedgedCall = new HedgedCall<R>();
+		final var primaryEndpoint = select(null);
+		final Future<?> primary = hedgedCall.launch(primaryEndpoint, call);
+		Future<?> hedge = null;
+		try {
+			try {
+				return hedgedCall.result.get(hedgingDelayNanos, TimeUnit.NANOSECONDS);
+			} catch (final TimeoutException e) {
+				final var hedgeEndpoint = select(primaryEndpoint);
+				if (hedgeEndpoint != primaryEndpoint) {
+					hedge = hedgedCall.launch(hedgeEndpoint, call);
+				}
+				return hedgedCall.result.get();
+			}
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof final RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw WrappedException.wrap(e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw WrappedException.wrap(e);
+		} finally {
+			// the slowest request is abandoned
+			primary.cancel(true);
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+	}
+
+	// a hedged request failing once the other one answered was cancelled, the endpoint is not at fault
+	private <R> R executeOn(final Endpoint<M> endpoint, final Function<M, R> call, final CompletableFuture<R> hedgedResult) {
+		endpoint.outstanding.incrementAndGet();
+		final long start = System.nanoTime();
+		boolean success = false;
+		Throwable error = null;
+		try {
+			final var result = call.apply(endpoint.model);
+			success = true;
+			return result;
+		} catch (final RuntimeException e) {
+			error = e;
+			throw e;
+		} finally {
+			final boolean abandoned = hedgedResult != null && hedgedResult.isDone();
+			complete(endpoint, start, success, !abandoned && error != null && isEndpointFailure(error));
+		}
+	}
+
+	private void complete(final Endpoint<M> endpoint, final long start, final boolean success, final boolean endpointFailure) {
+		endpoint.outstanding.decrementAndGet();
+		if (success) {
+			// abandoned requests are recorded too, else hedging would only keep the fast latencies and hedge more and more
+			endpoint.consecutiveFailures.set(0);
+			latencyWindow.add(System.nanoTime() - start);
+		} else if (endpointFailure && endpoint.consecutiveFailures.incrementAndGet() >= config.maxConsecutiveFailures()) {
+			endpoint.ejectedUntilNanos = System.nanoTime() + config.ejectionTime().toNanos();
+			LOG.warn("Endpoint {} ejected for {} after {} failures", endpoint.url, config.ejectionTime(), endpoint.consecutiveFailures.get());
+		}
+	}
+
+	/*
+	 * The endpoint is at fault if unreachable, too slow or failing (HTTP 5xx, told by the provider predicate).
+	 * A rejected request (HTTP 4xx) would fail on any endpoint, and an interrupted call was cancelled by the caller.
+	 */
+	private boolean isEndpointFailure(final Throwable error) {
+		for (var cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InterruptedException || cause instanceof ClosedByInterruptException
+					|| cause instanceof InterruptedIOException && !(cause instanceof SocketTimeoutException)) {
+				return false;
+			}
+		}
+		for (var cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException || cause instanceof TimeoutException) {
+				return true;
+			}
+		}
+		return serverErrorPredicate.test(error);
+	}
+
+	private Endpoint<M> select(final Endpoint<M> excluded) {
+		final long now = System.nanoTime();
+		final int size = endpoints.size();
+		final int offset = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+		Endpoint<M> best = null;
+		Endpoint<M> firstBack = null;
+		for (int i = 0; i < size; i++) {
+			final var endpoint = endpoints.get((offset + i) % size);
+			if (endpoint == excluded) {
+				continue;
+			}
+			if (now - endpoint.ejectedUntilNanos < 0) {
+				if (firstBack == null || endpoint.ejectedUntilNanos - firstBack.ejectedUntilNanos < 0) {
+					firstBack = endpoint;
+				}
+			} else if (best == null || endpoint.outstanding.get() < best.outstanding.get()) {
+				best = endpoint;
+			}
+		}
+		if (best != null) {
+			return best;
+		}
+		return firstBack != null ? firstBack : excluded;
+	}
+
+	private static final class Endpoint<M> {
+		private final String url;
+		private final M model;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger consecutiveFailures = new AtomicInteger();
+		private volatile long ejectedUntilNanos = System.nanoTime();
+
+		Endpoint(final String url, final M model) {
+			this.url = url;
+			this.model = model;
+		}
+	}
+
+	/**
+	 * An endpoint used by a call completing later.
+	 *
+	 * @param <M> the model type
+	 */
+	public static final class Lease<M> {
+		private final Lc4jEndpointBalancer<M> balancer;
+		private final Endpoint<M> endpoint;
+		private final long start;
+
+		private Lease(final Lc4jEndpointBalancer<M> balancer, final Endpoint<M> endpoint, final long start) {
+			this.balancer = balancer;
+			this.endpoint = endpoint;
+			this.start = start;
+		}
+
+		public M model() {
+			return endpoint.model;
+		}
+
+		public void succeeded() {
+			balancer.complete(endpoint, start, true, false);
+		}
+
+		/**
+		 * @param error the error of the call
+		 */
+		public void failed(final Throwable error) {
+			balancer.complete(endpoint, start, false, balancer.isEndpointFailure(error));
+		}
+	}
+
+	/**
+	 * Result of the first succeeding request, or the last error if all failed.
+	 */
+	private final class HedgedCall<R> {
+		private final CompletableFuture<R> result = new CompletableFuture<>();
+		private int launched;
+		private int failed;
+
+		Future<?> launch(final Endpoint<M> endpoint, final Function<M, R> call) {
+			synchronized (this) {
+				launched++;
+			}
+			return hedgingExecutorOpt.get().submit(() -> {
+				try {
+					result.complete(executeOn(endpoint, call, result));
+				} catch (final RuntimeException e) {
+					synchronized (this) {
+						failed++;
+						if (failed == launched) {
+							result.completeExceptionally(e);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Latencies of the last successful requests.
+	 */
+	private static final class LatencyWindow {
+		private final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+		private long count;
+
+		synchronized void add(final long latencyNanos) {
+			latencies[(int) (count++ % LATENCY_WINDOW_SIZE)] = latencyNanos;
+		}
+
+		/**
+		 * @return the percentile of the latencies, -1 until enough are known
+		 */
+		synchronized long percentileNanos(final int percentile) {
+			if (count < MIN_LATENCY_SAMPLES) {
+				return -1;
+			}
+			final var sorted = Arrays.copyOf(latencies, (int) Math.min(count, LATENCY_WINDOW_SIZE));
+			Arrays.sort(sorted);
+			return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package io.vertigo.ai.llm.plugin.lc4j.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jLruCache;
+import io.vertigo.core.analytics.metric.Metric;
+import io.vertigo.core.analytics.metric.Metrics;
+import io.vertigo.core.param.ParamValue;
+
+/**
+ * Result cache kept in heap, and optionally in files surviving restarts.
+ * <ul>
+ * <li>cacheSize : the maximum number of results kept in heap, LRU (default {@value #DEFAULT_CACHE_SIZE})</li>
+ * <li>timeToLiveSeconds : the time a result is kept, in both tiers (default {@value #DEFAULT_TIME_TO_LIVE_SECONDS})</li>
+ * <li>cacheDirectory : if set, model answers are also written in this directory (one file per ask) and parsed again when read</li>
+ * </ul>
+ */
+public final class Lc4jLocalResultCachePlugin implements Lc4jResultCachePlugin {
+	private static final Logger LOG = LogManager.getLogger(Lc4jLocalResultCachePlugin.class);
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+	private static final int DEFAULT_TIME_TO_LIVE_SECONDS = 86400;
+
+	private final Lc4jLruCache<String, Object> memoryCache;
+	private final Duration timeToLive;
+	private final Optional<Path> cacheDirectoryOpt;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	@Inject
+	public Lc4jLocalResultCachePlugin(
+			@ParamValue("cacheSize") final Optional<Integer> cacheSizeOpt,
+			@ParamValue("timeToLiveSeconds") final Optional<Integer> timeToLiveSecondsOpt,
+			@ParamValue("cacheDirectory") final Optional<String> cacheDirectoryOpt) {
+		timeToLive = Duration.ofSeconds(timeToLiveSecondsOpt.orElse(DEFAULT_TIME_TO_LIVE_SECONDS));
+		memoryCache = new Lc4jLruCache<>(cacheSizeOpt.orElse(DEFAULT_CACHE_SIZE), timeToLive);
+		this.cacheDirectoryOpt = cacheDirectoryOpt.map(Path::of);
+	}
+
+	@Override
+	public <T> Optional<T> get(final String key, final Function<String, T> parser) {
+		var result = (T) memoryCache.get(key);
+		if (result == null && cacheDirectoryOpt.isPresent()) {
+			final var answer = readFromFile(key);
+			if (answer != null) {
+				result = parser.apply(answer);
+				memoryCache.put(key, result);
+			}
+		}
+		if (result == null) {
+			missCount.increment();
+			return Optional.empty();
+		}
+		hitCount.increment();
+		return Optional.of(result);
+	}
+
+	@Override
+	public void put(final String key, final Object result, final String answer) {
+		memoryCache.put(key, result);
+		if (cacheDirectoryOpt.isPresent()) {
+			writeToFile(key, answer);
+		}
+	}
+
+	/**
+	 * Exposes result cache hit/miss counters.
+	 *
+	 * @return the metrics of the result cache
+	 */
+	@Metrics
+	public List<Metric> getResultCacheMetrics() {
+		return List.of(
+				toMetric("resultCacheHits", hitCount.sum()),
+				toMetric("resultCacheMisses", missCount.sum()),
+				toMetric("resultCacheSize", memoryCache.size()));
+	}
+
+	private static Metric toMetric(final String name, final double value) {
+		return Metric.builder()
+				.withName(name)
+				.withFeature(LlmManagerImpl.LLM_CATEGORY)
+				.withValue(value)
+				.withSuccess()
+				.build();
+	}
+
+	private Path toPath(final String key) {
+		// split files in sub directories to avoid huge directories
+		return cacheDirectoryOpt.get().resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	private String readFromFile(final String key) {
+		final var path = toPath(key);
+		try {
+			if (!Files.exists(path)) {
+				return null;
+			}
+			// the file date is the date of the answer
+			if (Files.getLastModifiedTime(path).toInstant().plus(timeToLive).isBefore(Instant.now())) {
+				Files.deleteIfExists(path);
+				return null;
+			}
+			return Files.readString(path, StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			// the file tier is only a cache, a corrupted entry is a miss
+			LOG.warn("Unable to read cached result {}", path, e);
+			return null;
+		}
+	}
+
+	private void writeToFile(final String key, final String answer) {
+		final var path = toPath(key);
+		try {
+			Files.createDirectories(path.getParent());
+			final var tmpPath = Files.createTempFile(path.getParent(), key, ".tmp");
+			Files.writeString(tmpPath, answer, StandardCharsets.UTF_8);
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			LOG.warn("Unable to write cached result {}", path, e);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package io.vertigo.ai.llm.plugin.lc4j.cache;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+import io.vertigo.core.node.component.Plugin;
+
+/**
+ * Plugin caching the results of structured asks, keyed by a hash of everything the answer depends on
+ * (model, system message, instructions and result type : the model runs at temperature 0).
+ * Cached results are shared between callers and must not be modified.
+ */
+public interface Lc4jResultCachePlugin extends Plugin {
+
+	/**
+	 * @param <T> the result type
+	 * @param key the key of the ask
+	 * @param parser parses the model answer, for results kept as text (persistent tiers)
+	 * @return the cached result
+	 */
+	<T> Optional<T> get(String key, Function<String, T> parser);
+
+	/**
+	 * @param key the key of the ask
+	 * @param result the parsed result
+	 * @param answer the model answer the result was parsed from
+	 */
+	void put(String key, Object result, String answer);
+
+}
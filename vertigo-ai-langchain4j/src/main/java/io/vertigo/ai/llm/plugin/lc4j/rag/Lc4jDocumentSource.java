@@ -1,19 +1,35 @@
 package io.vertigo.ai.llm.plugin.lc4j.rag;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.splitter.DocumentByParagraphSplitter;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.scoring.ScoringModel;
+import dev.langchain4j.rag.DefaultRetrievalAugmentor;
+import dev.langchain4j.rag.RetrievalAugmentor;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.aggregator.ReRankingContentAggregator;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
 import dev.langchain4j.store.embedding.filter.Filter;
 import dev.langchain4j.store.embedding.filter.MetadataFilterBuilder;
 import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
@@ -22,67 +38,383 @@ import io.vertigo.ai.impl.llm.LlmManagerImpl;
 import io.vertigo.ai.llm.model.rag.VLlmDocument;
 import io.vertigo.ai.llm.model.rag.VLlmDocumentSearchResult;
 import io.vertigo.ai.llm.model.rag.VLlmDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jUtils;
 import io.vertigo.core.analytics.AnalyticsManager;
+import io.vertigo.core.lang.Assertion;
 import io.vertigo.core.lang.VUserException;
 import io.vertigo.core.node.Node;
 import io.vertigo.datastore.filestore.model.FileInfoURI;
 
 public abstract class Lc4jDocumentSource implements VLlmDocumentSource {
+	private static final int HYBRID_CANDIDATES_FACTOR = 4;
+	private static final int HYBRID_MIN_CANDIDATES = 20;
+
+	/** Metadata holding the fingerprint of the whole file, on each segment of the file. */
+	public static final String FILE_HASH_METADATA = "file_hash";
+	/** Metadata holding the fingerprint of the segment text. */
+	public static final String CHUNK_HASH_METADATA = "chunk_hash";
+	// set by the splitter, shifted when a previous segment is added or removed
+	private static final String SEGMENT_INDEX_METADATA = "index";
 
 	protected final EmbeddingStore<TextSegment> embeddingStore;
 	protected final EmbeddingModel embeddingModel;
-	protected final EmbeddingStoreIngestor ingestor;
+	protected final DocumentSplitter documentSplitter;
+	private final String sourceId = UUID.randomUUID().toString();
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Retrieval of the segments given to the LLM.
+	 *
+	 * @param hybrid true to fuse the vector search with a lexical search (exact terms such as codes or references)
+	 * @param maxResults the maximum number of segments
+	 * @param minScore the minimum score of the vector search
+	 */
+	public record RetrievalConfig(boolean hybrid, int maxResults, double minScore) {
+		public RetrievalConfig {
+			Assertion.check()
+					.isTrue(maxResults > 0, "maxResults must be positive")
+					.isTrue(minScore >= 0 && minScore <= 1, "minScore must be between 0 and 1");
+		}
+
+		public static RetrievalConfig defaults() {
+			return new RetrievalConfig(false, 10, 0.5d);
+		}
+	}
+
+	/**
+	 * Reranking of the retrieved segments : candidateCount segments are retrieved, scored by the model, the best ones are kept.
+	 *
+	 * @param scoringModel the model scoring a segment against the query
+	 * @param candidateCount the number of segments retrieved and scored
+	 */
+	public record Reranking(ScoringModel scoringModel, int candidateCount) {
+		public Reranking {
+			Assertion.check()
+					.isNotNull(scoringModel)
+					.isTrue(candidateCount > 0, "candidateCount must be positive");
+		}
+	}
 
 	protected Lc4jDocumentSource(final EmbeddingStore<TextSegment> embeddingStore, final EmbeddingModel embeddingModel) {
 		this.embeddingStore = embeddingStore;
 		this.embeddingModel = embeddingModel;
 
-		ingestor = EmbeddingStoreIngestor.builder()
-				.documentSplitter(new DocumentByParagraphSplitter(1024, 64))
-				.embeddingStore(embeddingStore)
-				.embeddingModel(embeddingModel)
-				.build();
+		final var paragraphSplitter = new DocumentByParagraphSplitter(1024, 64);
+		documentSplitter = document -> addChunkHashes(paragraphSplitter.split(document));
 	}
 
 	@Override
 	public void addDocument(final VLlmDocument vLlmDocument) {
 		getAnalyticsManager().trace(LlmManagerImpl.LLM_CATEGORY, "addDocument", t -> {
-			final var fileUrn = vLlmDocument.fileInfo().getURI().toURN();
-			vLlmDocument.metadatas().put(FILE_URN_METADATA, fileUrn);
+			prepareMetadatas(vLlmDocument);
 
-			final var document = VFileDocumentLoader.loadDocument(vLlmDocument);
-			if (document == null) {
-				throw new VUserException("Unable to read text from the document.");
+			final var document = loadDocument(vLlmDocument);
+			final var segmentCount = getAnalyticsManager().traceWithReturn(LlmManagerImpl.LLM_CATEGORY, "ingestDocument", t2 -> {
+				// split and embedded here rather than with an EmbeddingStoreIngestor, to keep the segments count
+				final var segments = documentSplitter.split(document);
+				embeddingStore.addAll(embeddingModel.embedAll(segments).content(), segments);
+				return segments.size();
+			});
+			onDocumentAdded(vLlmDocument, segmentCount);
+			documentsChanged();
+		});
+	}
+
+	/**
+	 * Adds or re-ingests a document, replacing removeDocument + addDocument.
+	 * Nothing is done if the file content is unchanged since last ingestion, otherwise only the segments whose text or metadata changed
+	 * are removed and added (embedded again if their text is new), the other stored segments are kept as they are.
+	 *
+	 * @param vLlmDocument the document to update
+	 * @return true if the document has been (re)ingested, false if it was unchanged
+	 */
+	public boolean updateDocument(final VLlmDocument vLlmDocument) {
+		return getAnalyticsManager().traceWithReturn(LlmManagerImpl.LLM_CATEGORY, "updateDocument", t -> {
+			prepareMetadatas(vLlmDocument);
+			final var fileUrn = vLlmDocument.metadatas().get(FILE_URN_METADATA).toString();
+			final var fileHash = VFileDocumentLoader.computeFileHash(vLlmDocument);
+
+			final var previousSegments = findSegments(fileUrn);
+			if (!previousSegments.isEmpty() && previousSegments.stream()
+					.allMatch(match -> fileHash.equals(match.embedded().metadata().getString(FILE_HASH_METADATA)))) {
+				t.setTag("status", "unchanged");
+				return false;
+			}
+
+			final var segments = documentSplitter.split(loadDocument(vLlmDocument, fileHash));
+
+			// a stored segment with the same text and metadata is kept (several identical segments are matched one to one)
+			final Map<Map<String, Object>, Deque<EmbeddingMatch<TextSegment>>> previousSegmentsByContent = new HashMap<>();
+			final Map<String, Embedding> previousEmbeddings = new HashMap<>();
+			for (final var match : previousSegments) {
+				previousSegmentsByContent.computeIfAbsent(contentKey(match.embedded()), key -> new ArrayDeque<>()).add(match);
+				final var chunkHash = match.embedded().metadata().getString(CHUNK_HASH_METADATA);
+				if (chunkHash != null) {
+					previousEmbeddings.putIfAbsent(chunkHash, match.embedding());
+				}
 			}
-			getAnalyticsManager().trace(LlmManagerImpl.LLM_CATEGORY, "ingestDocument",
-					t2 -> ingestor.ingest(document));
+			final var addedSegments = new ArrayList<TextSegment>();
+			for (final var segment : segments) {
+				final var sameSegments = previousSegmentsByContent.get(contentKey(segment));
+				if (sameSegments == null || sameSegments.poll() == null) {
+					addedSegments.add(segment);
+				}
+			}
+			final var removedIds = previousSegmentsByContent.values().stream()
+					.flatMap(Collection::stream)
+					.map(EmbeddingMatch::embeddingId)
+					.toList();
+			if (addedSegments.isEmpty() && removedIds.isEmpty()) {
+				// same segments, kept with the fingerprint of the file they come from
+				t.setTag("status", "unchanged");
+				return false;
+			}
+
+			// reuse embeddings of moved segments, embed the others
+			final var segmentsToEmbed = addedSegments.stream()
+					.filter(segment -> !previousEmbeddings.containsKey(segment.metadata().getString(CHUNK_HASH_METADATA)))
+					.toList();
+			final var newEmbeddings = segmentsToEmbed.isEmpty() ? List.<Embedding> of() : embeddingModel.embedAll(segmentsToEmbed).content();
+
+			final var embeddings = new ArrayList<Embedding>(addedSegments.size());
+			int newEmbeddingIndex = 0;
+			for (final var segment : addedSegments) {
+				final var previousEmbedding = previousEmbeddings.get(segment.metadata().getString(CHUNK_HASH_METADATA));
+				embeddings.add(previousEmbedding != null ? previousEmbedding : newEmbeddings.get(newEmbeddingIndex++));
+			}
+
+			// add new segments before removing old ones, so the document is always searchable
+			if (!addedSegments.isEmpty()) {
+				embeddingStore.addAll(embeddings, addedSegments);
+			}
+			if (!removedIds.isEmpty()) {
+				embeddingStore.removeAll(removedIds);
+			}
+			onDocumentUpdated(vLlmDocument, segments.size());
+			documentsChanged();
+
+			t.setTag("status", previousSegments.isEmpty() ? "added" : "updated");
+			t.setMeasure("segments", segments.size());
+			t.setMeasure("addedSegments", addedSegments.size());
+			t.setMeasure("removedSegments", removedIds.size());
+			t.setMeasure("embeddedSegments", segmentsToEmbed.size());
+			return true;
 		});
 	}
 
+	/**
+	 * Finds all the stored segments of a file.
+	 * Default implementation uses a search without minimum score, stores able to list segments directly should override it.
+	 *
+	 * @param fileUrn the file urn
+	 * @return the segments of the file, with their embedding
+	 */
+	protected List<EmbeddingMatch<TextSegment>> findSegments(final String fileUrn) {
+		final var probe = new float[embeddingModel.dimension()];
+		Arrays.fill(probe, 1f);
+		final EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
+				.queryEmbedding(Embedding.from(probe))
+				.maxResults(Integer.MAX_VALUE)
+				.minScore(0d)
+				.filter(MetadataFilterBuilder.metadataKey(FILE_URN_METADATA).isEqualTo(fileUrn))
+				.build();
+		return embeddingStore.search(searchRequest).matches();
+	}
+
+	static void prepareMetadatas(final VLlmDocument vLlmDocument) {
+		final var fileUrn = vLlmDocument.fileInfo().getURI().toURN();
+		vLlmDocument.metadatas().put(FILE_URN_METADATA, fileUrn);
+	}
+
+	/*
+	 * Loads the document, its file is read once : the file hash is computed while parsing,
+	 * then put in the metadatas of the document (copied to its segments by the splitter).
+	 */
+	static Document loadDocument(final VLlmDocument vLlmDocument) {
+		final var hashedDocument = VFileDocumentLoader.loadHashedDocument(vLlmDocument);
+		final var document = checkText(hashedDocument.document());
+		vLlmDocument.metadatas().put(FILE_HASH_METADATA, hashedDocument.fileHash());
+		document.metadata().put(FILE_HASH_METADATA, hashedDocument.fileHash());
+		return document;
+	}
+
+	// the file hash is already known
+	private static Document loadDocument(final VLlmDocument vLlmDocument, final String fileHash) {
+		vLlmDocument.metadatas().put(FILE_HASH_METADATA, fileHash);
+		return checkText(VFileDocumentLoader.loadDocument(vLlmDocument));
+	}
+
+	private static Document checkText(final Document document) {
+		if (document == null) {
+			throw new VUserException("Unable to read text from the document.");
+		}
+		return document;
+	}
+
+	// the content of a segment, without the metadata changing when another segment of the file changes
+	private static Map<String, Object> contentKey(final TextSegment segment) {
+		final var key = new HashMap<>(segment.metadata().toMap());
+		key.remove(FILE_HASH_METADATA);
+		key.remove(SEGMENT_INDEX_METADATA);
+		return key;
+	}
+
+	private static List<TextSegment> addChunkHashes(final List<TextSegment> segments) {
+		for (final var segment : segments) {
+			segment.metadata().put(CHUNK_HASH_METADATA, Lc4jUtils.sha256Hex(segment.text()));
+		}
+		return segments;
+	}
+
+	/**
+	 * Adds documents in bulk, parsing, splitting, embedding and storing documents concurrently.
+	 *
+	 * @param vLlmDocuments the documents to add
+	 */
+	public void addDocuments(final Stream<VLlmDocument> vLlmDocuments) {
+		addDocuments(vLlmDocuments, Lc4jIngestionPipeline.Config.defaults());
+	}
+
+	/**
+	 * Adds documents in bulk, parsing, splitting, embedding and storing documents concurrently.
+	 *
+	 * @param vLlmDocuments the documents to add
+	 * @param config the sizing of the ingestion pipeline
+	 */
+	public void addDocuments(final Stream<VLlmDocument> vLlmDocuments, final Lc4jIngestionPipeline.Config config) {
+		new Lc4jIngestionPipeline(documentSplitter, embeddingModel, this::storeEmbeddedDocument, config)
+				.ingest(vLlmDocuments);
+	}
+
+	/**
+	 * Stores a document embedded by the ingestion pipeline.
+	 *
+	 * @param embeddedDocument the document with its segments and embeddings
+	 */
+	protected void storeEmbeddedDocument(final Lc4jIngestionPipeline.EmbeddedDocument embeddedDocument) {
+		embeddingStore.addAll(embeddedDocument.embeddings(), embeddedDocument.segments());
+		onDocumentAdded(embeddedDocument.document(), embeddedDocument.segments().size());
+		documentsChanged();
+	}
+
+	/**
+	 * Called when the segments of a document have been stored, in addition to the already stored ones.
+	 *
+	 * @param vLlmDocument the added document
+	 * @param segmentCount the number of stored segments
+	 */
+	protected void onDocumentAdded(final VLlmDocument vLlmDocument, final int segmentCount) {
+		// nothing by default
+	}
+
+	/**
+	 * Called when the segments of a document have been stored, replacing the previous ones.
+	 *
+	 * @param vLlmDocument the updated document
+	 * @param segmentCount the number of stored segments
+	 */
+	protected void onDocumentUpdated(final VLlmDocument vLlmDocument, final int segmentCount) {
+		onDocumentAdded(vLlmDocument, segmentCount);
+	}
+
 	@Override
 	public void removeDocument(final FileInfoURI fileInfoURI) {
 		final var fileUrn = fileInfoURI.toURN();
 		embeddingStore.removeAll(MetadataFilterBuilder.metadataKey(FILE_URN_METADATA).isEqualTo(fileUrn));
+		documentsChanged();
+	}
+
+	/**
+	 * @return the unique id of this source
+	 */
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	/**
+	 * Version of the stored documents, changed each time a document is added, updated or removed through this source
+	 * (changes made by other nodes on a shared store are not seen).
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Must be called after the stored documents changed, outside of add, update and remove.
+	 */
+	protected final void documentsChanged() {
+		version.incrementAndGet();
 	}
 
 	@Override
 	public List<VLlmDocumentSearchResult> search(final String query, final Map<String, Object> metadataFilter, final Integer maxResults, final Double minScore) {
+		final EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(toSearchRequest(query, metadataFilter, maxResults, minScore));
+		return toSearchResults(searchResult);
+	}
+
+	protected EmbeddingSearchRequest toSearchRequest(final String query, final Map<String, Object> metadataFilter, final Integer maxResults, final Double minScore) {
 		final Embedding embeddedQuery = embeddingModel.embed(query).content();
 
-		final EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
+		return EmbeddingSearchRequest.builder()
 				.queryEmbedding(embeddedQuery)
 				.maxResults(maxResults)
 				.minScore(minScore)
 				.filter(toFilter(metadataFilter))
 				.build();
+	}
 
-		final EmbeddingSearchResult<TextSegment> searchResult = embeddingStore.search(searchRequest);
-
+	protected List<VLlmDocumentSearchResult> toSearchResults(final EmbeddingSearchResult<TextSegment> searchResult) {
 		return searchResult.matches().stream()
 				.map(m -> new VLlmDocumentSearchResult(retreriveDocument(m.embedded()), m.embedded().text(), m.score()))
 				.toList();
 	}
 
+	/**
+	 * Hybrid search : the vector search and the lexical search are fused by reciprocal rank,
+	 * so segments found by both come first. Scores are fusion scores, not similarities.
+	 * Sources without lexical search return the vector search results.
+	 *
+	 * @param query the query
+	 * @param metadataFilter the metadata filter
+	 * @param maxResults the maximum number of results
+	 * @param minScore the minimum score of the vector search
+	 * @return the results
+	 */
+	public List<VLlmDocumentSearchResult> hybridSearch(final String query, final Map<String, Object> metadataFilter, final int maxResults, final double minScore) {
+		return toSearchResults(new EmbeddingSearchResult<>(hybridMatches(query, toFilter(metadataFilter), maxResults, minScore)));
+	}
+
+	private List<EmbeddingMatch<TextSegment>> hybridMatches(final String query, final Filter filter, final int maxResults, final double minScore) {
+		// each ranking brings more candidates than needed, the fusion keeps the best of both
+		final int candidateCount = Math.max(maxResults * HYBRID_CANDIDATES_FACTOR, HYBRID_MIN_CANDIDATES);
+		final var vectorMatches = embeddingStore.search(EmbeddingSearchRequest.builder()
+				.queryEmbedding(embeddingModel.embed(query).content())
+				.maxResults(candidateCount)
+				.minScore(minScore)
+				.filter(filter)
+				.build())
+				.matches();
+		final var lexicalMatches = lexicalSearch(query, filter, candidateCount);
+		if (lexicalMatches.isEmpty()) {
+			return vectorMatches.stream().limit(maxResults).toList();
+		}
+		return Lc4jRankFusion.fuse(List.of(vectorMatches, lexicalMatches), maxResults);
+	}
+
+	/**
+	 * Lexical search used by the hybrid search, none by default.
+	 *
+	 * @param query the query text
+	 * @param filter the metadata filter, null for none
+	 * @param maxResults the maximum number of results
+	 * @return the matches, best first
+	 */
+	protected List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+		return List.of();
+	}
+
 	/**
 	 * Returns the lc4j content retriever.
 	 *
@@ -105,7 +437,58 @@ public abstract class Lc4jDocumentSource implements VLlmDocumentSource {
 				.build();
 	}
 
+	/**
+	 * Returns the lc4j content retriever, hybrid or vector only.
+	 *
+	 * @param metadataFilter the metadata filter
+	 * @param retrievalConfig the retrieval parameters
+	 * @return the contentRetriever
+	 */
+	public ContentRetriever getContentRetriever(final Map<String, Object> metadataFilter, final RetrievalConfig retrievalConfig) {
+		Assertion.check().isNotNull(retrievalConfig);
+		//---
+		if (!retrievalConfig.hybrid()) {
+			return getContentRetriever(metadataFilter, retrievalConfig.maxResults(), retrievalConfig.minScore());
+		}
+		final var filter = toFilter(metadataFilter);
+		return query -> hybridMatches(query.text(), filter, retrievalConfig.maxResults(), retrievalConfig.minScore()).stream()
+				.map(match -> Content.from(match.embedded()))
+				.toList();
+	}
+
+	/**
+	 * Returns the lc4j retrieval augmentor : segments retrieved as configured, reranked if a reranking is set.
+	 *
+	 * @param metadataFilter the metadata filter
+	 * @param retrievalConfig the retrieval parameters, maxResults is the number of segments kept after reranking
+	 * @param rerankingOpt the optional reranking
+	 * @return the retrievalAugmentor
+	 */
+	public RetrievalAugmentor getRetrievalAugmentor(final Map<String, Object> metadataFilter, final RetrievalConfig retrievalConfig, final Optional<Reranking> rerankingOpt) {
+		Assertion.check()
+				.isNotNull(retrievalConfig)
+				.isNotNull(rerankingOpt);
+		//---
+		if (rerankingOpt.isEmpty()) {
+			return DefaultRetrievalAugmentor.builder()
+					.contentRetriever(getContentRetriever(metadataFilter, retrievalConfig))
+					.build();
+		}
+		final var reranking = rerankingOpt.get();
+		final var candidatesConfig = new RetrievalConfig(retrievalConfig.hybrid(), reranking.candidateCount(), retrievalConfig.minScore());
+		return DefaultRetrievalAugmentor.builder()
+				.contentRetriever(getContentRetriever(metadataFilter, candidatesConfig))
+				.contentAggregator(ReRankingContentAggregator.builder()
+						.scoringModel(reranking.scoringModel())
+						.maxResults(retrievalConfig.maxResults())
+						.build())
+				.build();
+	}
+
 	private Filter toFilter(final Map<String, Object> metadataFilter) {
+		if (metadataFilter == null) {
+			return null;
+		}
 		Filter curentFilter = null;
 		for (final var entry : metadataFilter.entrySet()) {
 			final Filter newFilter;
@@ -139,7 +522,7 @@ public abstract class Lc4jDocumentSource implements VLlmDocumentSource {
 
 	protected abstract VLlmDocument retreriveDocument(final TextSegment segment);
 
-	private static AnalyticsManager getAnalyticsManager() {
+	protected static AnalyticsManager getAnalyticsManager() {
 		return Node.getNode().getComponentSpace().resolve(AnalyticsManager.class);
 	}
 }
@@ -1,26 +1,66 @@
 package io.vertigo.ai.llm.plugin.lc4j.rag;
 
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.MetadataFilterBuilder;
 import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.ai.llm.model.rag.VLlmDocumentSearchResult;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.Lc4jInMemoryEmbeddingStore;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.Lc4jInMemoryEmbeddingStore.HnswConfig;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.Lc4jInMemoryEmbeddingStore.RecallReport;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+import io.vertigo.datastore.filestore.model.FileInfo;
 import io.vertigo.datastore.filestore.model.FileInfoURI;
 
-public class Lc4jInMemoryDocumentSource extends Lc4jDocumentSource {
+public class Lc4jInMemoryDocumentSource extends Lc4jDocumentSource implements AutoCloseable {
+	private static final int SNAPSHOT_MAGIC = 0x564C4453; // VLDS
+	private static final int SNAPSHOT_VERSION = 1;
+	// hashes are unique per segment or per file, indexing them would cost more than scanning
+	private static final Set<String> UNINDEXED_METADATA_KEYS = Set.of(CHUNK_HASH_METADATA, FILE_HASH_METADATA);
 
-	private final Map<String, VLlmDocument> docMap = new HashMap<>();
+	private final Lc4jInMemoryEmbeddingStore inMemoryEmbeddingStore;
+	private final Map<String, VLlmDocument> docMap = new ConcurrentHashMap<>();
 
 	public Lc4jInMemoryDocumentSource(final EmbeddingModel embeddingModel) {
-		super(new InMemoryEmbeddingStore<>(), embeddingModel);
+		this(embeddingModel, Optional.empty());
 	}
 
-	@Override
-	public void addDocument(final VLlmDocument document) {
-		super.addDocument(document);
+	/**
+	 * Constructor.
+	 *
+	 * @param embeddingModel the embedding model
+	 * @param hnswConfigOpt the HNSW parameters if searches must use an HNSW index instead of scanning all segments
+	 */
+	public Lc4jInMemoryDocumentSource(final EmbeddingModel embeddingModel, final Optional<HnswConfig> hnswConfigOpt) {
+		this(new Lc4jInMemoryEmbeddingStore(hnswConfigOpt, UNINDEXED_METADATA_KEYS), embeddingModel);
+	}
+
+	private Lc4jInMemoryDocumentSource(final Lc4jInMemoryEmbeddingStore inMemoryEmbeddingStore, final EmbeddingModel embeddingModel) {
+		super(inMemoryEmbeddingStore, embeddingModel);
+		this.inMemoryEmbeddingStore = inMemoryEmbeddingStore;
+	}
 
+	@Override
+	protected void onDocumentAdded(final VLlmDocument document, final int segmentCount) {
 		final var fileUrn = document.metadatas().get(FILE_URN_METADATA).toString();
 		docMap.put(fileUrn, document);
 	}
@@ -32,6 +72,111 @@ public class Lc4jInMemoryDocumentSource extends Lc4jDocumentSource {
 		docMap.remove(fileInfoURI.toURN());
 	}
 
+	@Override
+	protected List<EmbeddingMatch<TextSegment>> findSegments(final String fileUrn) {
+		return inMemoryEmbeddingStore.findAll(MetadataFilterBuilder.metadataKey(FILE_URN_METADATA).isEqualTo(fileUrn));
+	}
+
+	/**
+	 * Searches with a specific efSearch (size of the candidate list of the HNSW index, ignored without index).
+	 *
+	 * @param query the query
+	 * @param metadataFilter the metadata filter
+	 * @param maxResults the maximum number of results
+	 * @param minScore the minimum score
+	 * @param efSearch the efSearch for this query
+	 * @return the results
+	 */
+	public List<VLlmDocumentSearchResult> search(final String query, final Map<String, Object> metadataFilter, final Integer maxResults, final Double minScore, final int efSearch) {
+		return toSearchResults(inMemoryEmbeddingStore.search(toSearchRequest(query, metadataFilter, maxResults, minScore), efSearch));
+	}
+
+	/**
+	 * Measures the recall and latency of the HNSW index against the exact scan.
+	 *
+	 * @param queries sample queries
+	 * @param maxResults the number of results of each query
+	 * @param efSearchValues the efSearch values to measure
+	 * @return one report per efSearch value
+	 */
+	public List<RecallReport> measureIndexRecall(final List<String> queries, final int maxResults, final List<Integer> efSearchValues) {
+		final List<Embedding> queryEmbeddings = embeddingModel.embedAll(queries.stream()
+				.map(TextSegment::from)
+				.toList())
+				.content();
+		return inMemoryEmbeddingStore.measureRecall(queryEmbeddings, maxResults, efSearchValues);
+	}
+
+	/**
+	 * Writes the source in a binary snapshot : embeddings, segments, HNSW graph and documents.
+	 * Restoring it with {@link #readSnapshot(InputStream, EmbeddingModel, Optional, Function)} is a sequential read,
+	 * documents are neither parsed nor embedded again. The stream is not closed.
+	 *
+	 * @param output the output
+	 */
+	public void writeSnapshot(final OutputStream output) {
+		try {
+			final var out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			inMemoryEmbeddingStore.writeSnapshot(out);
+			// documents only keep their urn : files are read again from their store when restoring
+			final var documents = List.copyOf(docMap.values());
+			out.writeInt(documents.size());
+			for (final var document : documents) {
+				Lc4jSegmentCodec.writeString(out, document.metadatas().get(FILE_URN_METADATA).toString());
+				Lc4jSegmentCodec.writeMetadata(out, document.metadatas());
+			}
+			out.flush();
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	/**
+	 * Restores a source written by {@link #writeSnapshot(OutputStream)}.
+	 *
+	 * @param input the input (not closed)
+	 * @param embeddingModel the embedding model, must be the one used to build the snapshot
+	 * @param hnswConfigOpt the HNSW parameters if searches must use an HNSW index
+	 * @param fileInfoReader reads the file of each document (usually FileStoreManager::read)
+	 * @return the restored source
+	 */
+	public static Lc4jInMemoryDocumentSource readSnapshot(final InputStream input, final EmbeddingModel embeddingModel,
+			final Optional<HnswConfig> hnswConfigOpt, final Function<FileInfoURI, FileInfo> fileInfoReader) {
+		try {
+			final var in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				throw new VSystemException("Invalid document source snapshot");
+			}
+			final var store = Lc4jInMemoryEmbeddingStore.readSnapshot(in, hnswConfigOpt, UNINDEXED_METADATA_KEYS);
+			final var documentSource = new Lc4jInMemoryDocumentSource(store, embeddingModel);
+			final int documentCount = in.readInt();
+			for (int i = 0; i < documentCount; i++) {
+				final var fileUrn = Lc4jSegmentCodec.readString(in);
+				final var metadatas = Lc4jSegmentCodec.readMetadata(in);
+				documentSource.docMap.put(fileUrn, new VLlmDocument(fileInfoReader.apply(FileInfoURI.fromURN(fileUrn)), metadatas));
+			}
+			return documentSource;
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	@Override
+	protected List<VLlmDocumentSearchResult> toSearchResults(final EmbeddingSearchResult<TextSegment> searchResult) {
+		// searches don't lock : a document may be added or removed while its segments are visible
+		return searchResult.matches().stream()
+				.map(m -> new VLlmDocumentSearchResult(retreriveDocument(m.embedded()), m.embedded().text(), m.score()))
+				.filter(result -> result.document() != null)
+				.toList();
+	}
+
+	@Override
+	protected List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+		return inMemoryEmbeddingStore.lexicalSearch(query, filter, maxResults);
+	}
+
 	@Override
 	protected VLlmDocument retreriveDocument(final TextSegment segment) {
 		return docMap.get(segment.metadata().getString(FILE_URN_METADATA));
@@ -42,4 +187,12 @@ public class Lc4jInMemoryDocumentSource extends Lc4jDocumentSource {
 		return docMap.isEmpty();
 	}
 
+	/**
+	 * Stops the background compaction of the store (its thread also stops by itself when idle).
+	 */
+	@Override
+	public void close() {
+		inMemoryEmbeddingStore.close();
+	}
+
 }
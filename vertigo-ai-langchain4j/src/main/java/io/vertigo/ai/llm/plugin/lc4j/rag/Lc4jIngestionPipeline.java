@@ -0,0 +1,344 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
+import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.core.analytics.AnalyticsManager;
+import io.vertigo.core.analytics.trace.Tracer;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+import io.vertigo.core.node.Node;
+
+/**
+ * Ingests a stream of documents with parse, split, embed and store stages running concurrently.
+ * Each stage has its own worker pool and stages are linked by bounded queues, so a slow stage slows down the previous ones (backpressure)
+ * instead of accumulating documents in memory.
+ * A document failing in a stage is skipped, failures are reported at the end of the ingestion.
+ */
+public final class Lc4jIngestionPipeline {
+	private static final long POLL_TIMEOUT_MS = 100;
+
+	private final DocumentSplitter documentSplitter;
+	private final EmbeddingModel embeddingModel;
+	private final StoreStage storeStage;
+	private final Config config;
+
+	/**
+	 * Sizing of the pipeline.
+	 *
+	 * @param parseWorkers number of threads reading and parsing files (I/O bound)
+	 * @param splitWorkers number of threads splitting documents in segments (CPU bound)
+	 * @param embedWorkers number of threads computing embeddings (I/O bound for remote models)
+	 * @param storeWorkers number of threads writing in the embedding store
+	 * @param queueCapacity capacity of the queues between stages
+	 */
+	public record Config(int parseWorkers, int splitWorkers, int embedWorkers, int storeWorkers, int queueCapacity) {
+		public Config {
+			Assertion.check()
+					.isTrue(parseWorkers > 0, "parseWorkers must be positive")
+					.isTrue(splitWorkers > 0, "splitWorkers must be positive")
+					.isTrue(embedWorkers > 0, "embedWorkers must be positive")
+					.isTrue(storeWorkers > 0, "storeWorkers must be positive")
+					.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+		}
+
+		public static Config defaults() {
+			return new Config(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 4, 1, 64);
+		}
+	}
+
+	/**
+	 * A document ready to be stored.
+	 *
+	 * @param document the source document
+	 * @param segments the segments of the document
+	 * @param embeddings the embeddings of the segments (same order)
+	 */
+	public record EmbeddedDocument(VLlmDocument document, List<TextSegment> segments, List<Embedding> embeddings) {
+	}
+
+	/**
+	 * Last stage of the pipeline, writing embedded documents.
+	 */
+	@FunctionalInterface
+	public interface StoreStage {
+		void store(EmbeddedDocument embeddedDocument);
+	}
+
+	private record ParsedDocument(VLlmDocument document, Document lc4jDocument) {
+	}
+
+	private record SplitDocument(VLlmDocument document, List<TextSegment> segments) {
+	}
+
+	private record Failure(VLlmDocument document, Exception exception) {
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param documentSplitter the splitter
+	 * @param embeddingModel the embedding model
+	 * @param storeStage the store stage
+	 * @param config the sizing of the pipeline
+	 */
+	public Lc4jIngestionPipeline(final DocumentSplitter documentSplitter, final EmbeddingModel embeddingModel, final StoreStage storeStage, final Config config) {
+		Assertion.check()
+				.isNotNull(documentSplitter)
+				.isNotNull(embeddingModel)
+				.isNotNull(storeStage)
+				.isNotNull(config);
+		//---
+		this.documentSplitter = documentSplitter;
+		this.embeddingModel = embeddingModel;
+		this.storeStage = storeStage;
+		this.config = config;
+	}
+
+	/**
+	 * Ingests all the documents of the stream, returns when all documents are stored.
+	 *
+	 * @param documents the documents to ingest
+	 */
+	public void ingest(final Stream<VLlmDocument> documents) {
+		getAnalyticsManager().trace(LlmManagerImpl.LLM_CATEGORY, "addDocuments", tracer -> {
+			final var run = new PipelineRun();
+			run.execute(documents, tracer);
+		});
+	}
+
+	private static ParsedDocument parse(final VLlmDocument vLlmDocument) {
+		Lc4jDocumentSource.prepareMetadatas(vLlmDocument);
+		return new ParsedDocument(vLlmDocument, Lc4jDocumentSource.loadDocument(vLlmDocument));
+	}
+
+	private SplitDocument split(final ParsedDocument parsedDocument) {
+		return new SplitDocument(parsedDocument.document(), documentSplitter.split(parsedDocument.lc4jDocument()));
+	}
+
+	private EmbeddedDocument embed(final SplitDocument splitDocument) {
+		final var embeddings = embeddingModel.embedAll(splitDocument.segments()).content();
+		return new EmbeddedDocument(splitDocument.document(), splitDocument.segments(), embeddings);
+	}
+
+	private Void store(final EmbeddedDocument embeddedDocument) {
+		storeStage.store(embeddedDocument);
+		return null;
+	}
+
+	/**
+	 * State of one ingestion.
+	 */
+	private final class PipelineRun {
+		private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+		private final AtomicReference<Throwable> fatalError = new AtomicReference<>();
+
+		void execute(final Stream<VLlmDocument> documents, final Tracer tracer) {
+			// an empty item is the end of the stream
+			final BlockingQueue<Optional<VLlmDocument>> parseQueue = new ArrayBlockingQueue<>(config.queueCapacity());
+			final BlockingQueue<Optional<ParsedDocument>> splitQueue = new ArrayBlockingQueue<>(config.queueCapacity());
+			final BlockingQueue<Optional<SplitDocument>> embedQueue = new ArrayBlockingQueue<>(config.queueCapacity());
+			final BlockingQueue<Optional<EmbeddedDocument>> storeQueue = new ArrayBlockingQueue<>(config.queueCapacity());
+
+			final List<Stage<?, ?>> stages = List.of(
+					new Stage<>(this, "parse", config.parseWorkers(), parseQueue, splitQueue, Lc4jIngestionPipeline::parse),
+					new Stage<>(this, "split", config.splitWorkers(), splitQueue, embedQueue, Lc4jIngestionPipeline.this::split),
+					new Stage<>(this, "embed", config.embedWorkers(), embedQueue, storeQueue, Lc4jIngestionPipeline.this::embed),
+					new Stage<EmbeddedDocument, Void>(this, "store", config.storeWorkers(), storeQueue, null, Lc4jIngestionPipeline.this::store));
+
+			final long startNanos = System.nanoTime();
+			final var documentCount = new LongAdder();
+			try {
+				stages.forEach(Stage::start);
+				documents.forEach(document -> {
+					documentCount.increment();
+					put(parseQueue, Optional.of(document));
+				});
+				put(parseQueue, Optional.empty());
+				for (final var stage : stages) {
+					stage.awaitTermination();
+				}
+			} catch (final RuntimeException e) {
+				// report the root cause rather than the abort signal
+				final var fatal = fatalError.get();
+				throw fatal != null ? WrappedException.wrap(fatal) : e;
+			} finally {
+				stages.forEach(Stage::shutdownNow);
+			}
+
+			final double elapsedSeconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9d;
+			tracer.setMeasure("documents", documentCount.sum());
+			tracer.setMeasure("failures", failures.size());
+			for (final var stage : stages) {
+				final long count = stage.processedCount.sum();
+				tracer.setMeasure(stage.name + "Count", count);
+				tracer.setMeasure(stage.name + "BusyMs", stage.busyNanos.sum() / 1_000_000d);
+				tracer.setMeasure(stage.name + "PerSecond", count / elapsedSeconds);
+			}
+
+			final var fatal = fatalError.get();
+			if (fatal != null) {
+				throw WrappedException.wrap(fatal);
+			}
+			if (!failures.isEmpty()) {
+				final var firstFailure = failures.peek();
+				throw new VSystemException(firstFailure.exception(), "{0} documents over {1} could not be ingested, first error on {2}",
+						failures.size(), documentCount.sum(), firstFailure.document().fileInfo().getURI());
+			}
+		}
+
+		<T> void put(final BlockingQueue<T> queue, final T item) {
+			try {
+				while (!queue.offer(item, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					checkNoFatalError();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw WrappedException.wrap(e);
+			}
+		}
+
+		<T> T take(final BlockingQueue<T> queue) throws InterruptedException {
+			T item;
+			do {
+				checkNoFatalError();
+				item = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} while (item == null);
+			return item;
+		}
+
+		private void checkNoFatalError() {
+			if (fatalError.get() != null) {
+				throw new VSystemException("Ingestion aborted");
+			}
+		}
+	}
+
+	/**
+	 * A stage of the pipeline : a pool of workers taking items from an input queue and putting results in an output queue.
+	 * The end of the stream is propagated to the next stage when the last worker of the stage ends.
+	 */
+	private static final class Stage<I, O> {
+		private final PipelineRun run;
+		private final String name;
+		private final int workerCount;
+		private final BlockingQueue<Optional<I>> input;
+		private final BlockingQueue<Optional<O>> output;
+		private final Function<I, O> function;
+
+		private final AtomicInteger runningWorkers;
+		private final LongAdder processedCount = new LongAdder();
+		private final LongAdder busyNanos = new LongAdder();
+		private ExecutorService executor;
+
+		Stage(final PipelineRun run, final String name, final int workerCount, final BlockingQueue<Optional<I>> input, final BlockingQueue<Optional<O>> output,
+				final Function<I, O> function) {
+			this.run = run;
+			this.name = name;
+			this.workerCount = workerCount;
+			this.input = input;
+			this.output = output;
+			this.function = function;
+			runningWorkers = new AtomicInteger(workerCount);
+		}
+
+		void start() {
+			executor = Executors.newFixedThreadPool(workerCount, new NamedThreadFactory("v-lc4j-ingest-" + name + "-"));
+			for (int i = 0; i < workerCount; i++) {
+				executor.execute(this::work);
+			}
+			executor.shutdown();
+		}
+
+		void awaitTermination() {
+			try {
+				while (!executor.awaitTermination(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					run.checkNoFatalError();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw WrappedException.wrap(e);
+			}
+		}
+
+		void shutdownNow() {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+
+		private void work() {
+			try {
+				while (true) {
+					final var item = run.take(input);
+					if (item.isEmpty()) {
+						// let the other workers of this stage see the end of the stream
+						input.put(item);
+						break;
+					}
+					process(item.get());
+				}
+				if (runningWorkers.decrementAndGet() == 0 && output != null) {
+					run.put(output, Optional.empty());
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final Throwable th) {
+				run.fatalError.compareAndSet(null, th);
+			}
+		}
+
+		private void process(final I item) {
+			final long start = System.nanoTime();
+			final O result;
+			try {
+				result = function.apply(item);
+			} catch (final Exception e) {
+				run.failures.add(new Failure(toDocument(item), e));
+				return;
+			} finally {
+				busyNanos.add(System.nanoTime() - start);
+			}
+			processedCount.increment();
+			if (output != null) {
+				run.put(output, Optional.of(result));
+			}
+		}
+
+		private static VLlmDocument toDocument(final Object item) {
+			if (item instanceof final ParsedDocument parsedDocument) {
+				return parsedDocument.document();
+			} else if (item instanceof final SplitDocument splitDocument) {
+				return splitDocument.document();
+			} else if (item instanceof final EmbeddedDocument embeddedDocument) {
+				return embeddedDocument.document();
+			}
+			return (VLlmDocument) item;
+		}
+	}
+
+	private static AnalyticsManager getAnalyticsManager() {
+		return Node.getNode().getComponentSpace().resolve(AnalyticsManager.class);
+	}
+}
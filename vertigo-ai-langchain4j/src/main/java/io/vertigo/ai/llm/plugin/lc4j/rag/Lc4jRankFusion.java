@@ -0,0 +1,63 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * Reciprocal rank fusion : merges rankings whose scores are not comparable (cosine similarity, BM25, ts_rank)
+ * by summing 1 / (K + rank) of each segment in each ranking.
+ * Segments found by several rankings come first, so a few fused results are worth more than many results of one ranking.
+ */
+final class Lc4jRankFusion {
+	// usual constant, lowers the weight of the first ranks
+	private static final int K = 60;
+
+	private Lc4jRankFusion() {
+		//private
+	}
+
+	/**
+	 * Fuses rankings of segments, identified by their embedding id.
+	 *
+	 * @param rankings the rankings, best first
+	 * @param maxResults the maximum number of results
+	 * @return the fused ranking, scored in [0, 1] (1 for a segment first in all rankings)
+	 */
+	static List<EmbeddingMatch<TextSegment>> fuse(final List<List<EmbeddingMatch<TextSegment>>> rankings, final int maxResults) {
+		Assertion.check()
+				.isNotNull(rankings)
+				.isTrue(maxResults > 0, "maxResults must be positive");
+		//---
+		final double maxScore = rankings.size() / (K + 1d);
+		// insertion order breaks ties : first ranking first
+		final Map<String, FusedMatch> fusedMatches = new LinkedHashMap<>();
+		for (final var ranking : rankings) {
+			for (int rank = 0; rank < ranking.size(); rank++) {
+				final var match = ranking.get(rank);
+				fusedMatches.computeIfAbsent(match.embeddingId(), id -> new FusedMatch(match)).score += 1d / (K + rank + 1);
+			}
+		}
+		final var results = new ArrayList<>(fusedMatches.values());
+		results.sort(Comparator.comparingDouble((final FusedMatch fusedMatch) -> fusedMatch.score).reversed());
+		return results.stream()
+				.limit(maxResults)
+				.map(fusedMatch -> new EmbeddingMatch<>(fusedMatch.score / maxScore, fusedMatch.match.embeddingId(), fusedMatch.match.embedding(), fusedMatch.match.embedded()))
+				.toList();
+	}
+
+	private static final class FusedMatch {
+		private final EmbeddingMatch<TextSegment> match;
+		private double score;
+
+		FusedMatch(final EmbeddingMatch<TextSegment> match) {
+			this.match = match;
+		}
+	}
+}
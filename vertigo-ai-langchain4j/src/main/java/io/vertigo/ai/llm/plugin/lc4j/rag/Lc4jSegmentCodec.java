@@ -0,0 +1,156 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import io.vertigo.core.lang.VSystemException;
+
+/**
+ * Binary encoding of text segments, metadata and vectors, shared by the stores writing files.
+ * Metadata values are limited to the types supported by langchain4j : String, UUID, Integer, Long, Float and Double.
+ */
+public final class Lc4jSegmentCodec {
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_UUID = 1;
+	private static final byte TYPE_INTEGER = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_FLOAT = 4;
+	private static final byte TYPE_DOUBLE = 5;
+
+	private static final int FLOAT_CHUNK = 16_384;
+
+	private Lc4jSegmentCodec() {
+		// util
+	}
+
+	/**
+	 * Writes a text segment, null allowed.
+	 */
+	public static void writeSegment(final DataOutputStream out, final TextSegment textSegment) throws IOException {
+		out.writeBoolean(textSegment != null);
+		if (textSegment != null) {
+			writeString(out, textSegment.text());
+			writeMetadata(out, textSegment.metadata().toMap());
+		}
+	}
+
+	/**
+	 * Reads a text segment written by {@link #writeSegment(DataOutputStream, TextSegment)}.
+	 */
+	public static TextSegment readSegment(final DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		final var text = readString(in);
+		return TextSegment.from(text, Metadata.from(readMetadata(in)));
+	}
+
+	public static void writeMetadata(final DataOutputStream out, final Map<String, Object> metadata) throws IOException {
+		out.writeInt(metadata.size());
+		for (final var entry : metadata.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * @return a mutable map of metadata
+	 */
+	public static Map<String, Object> readMetadata(final DataInputStream in) throws IOException {
+		final int metadataSize = in.readInt();
+		final Map<String, Object> metadata = new HashMap<>(metadataSize * 2);
+		for (int i = 0; i < metadataSize; i++) {
+			metadata.put(readString(in), readValue(in));
+		}
+		return metadata;
+	}
+
+	private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+		if (value instanceof final String string) {
+			out.writeByte(TYPE_STRING);
+			writeString(out, string);
+		} else if (value instanceof final UUID uuid) {
+			out.writeByte(TYPE_UUID);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+		} else if (value instanceof final Integer integer) {
+			out.writeByte(TYPE_INTEGER);
+			out.writeInt(integer);
+		} else if (value instanceof final Long longValue) {
+			out.writeByte(TYPE_LONG);
+			out.writeLong(longValue);
+		} else if (value instanceof final Float floatValue) {
+			out.writeByte(TYPE_FLOAT);
+			out.writeFloat(floatValue);
+		} else if (value instanceof final Double doubleValue) {
+			out.writeByte(TYPE_DOUBLE);
+			out.writeDouble(doubleValue);
+		} else {
+			throw new VSystemException("Unsupported metadata type {0}", value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(final DataInputStream in) throws IOException {
+		final byte type = in.readByte();
+		return switch (type) {
+			case TYPE_STRING -> readString(in);
+			case TYPE_UUID -> new UUID(in.readLong(), in.readLong());
+			case TYPE_INTEGER -> in.readInt();
+			case TYPE_LONG -> in.readLong();
+			case TYPE_FLOAT -> in.readFloat();
+			case TYPE_DOUBLE -> in.readDouble();
+			default -> throw new VSystemException("Unknown metadata type {0}", type);
+		};
+	}
+
+	/**
+	 * Writes a string of any length (writeUTF is limited to 64KB).
+	 */
+	public static void writeString(final DataOutputStream out, final String value) throws IOException {
+		final var bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(final DataInputStream in) throws IOException {
+		final var bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes floats in bulk (same big endian encoding as writeFloat, without a call per value).
+	 */
+	public static void writeFloats(final DataOutputStream out, final float[] values, final int offset, final int length) throws IOException {
+		final var buffer = ByteBuffer.allocate(Math.min(length, FLOAT_CHUNK) * Float.BYTES);
+		for (int written = 0; written < length;) {
+			final int count = Math.min(length - written, FLOAT_CHUNK);
+			buffer.clear();
+			buffer.asFloatBuffer().put(values, offset + written, count);
+			out.write(buffer.array(), 0, count * Float.BYTES);
+			written += count;
+		}
+	}
+
+	/**
+	 * Reads floats written by {@link #writeFloats(DataOutputStream, float[], int, int)}.
+	 */
+	public static void readFloats(final DataInputStream in, final float[] values, final int offset, final int length) throws IOException {
+		final var buffer = ByteBuffer.allocate(Math.min(length, FLOAT_CHUNK) * Float.BYTES);
+		for (int read = 0; read < length;) {
+			final int count = Math.min(length - read, FLOAT_CHUNK);
+			in.readFully(buffer.array(), 0, count * Float.BYTES);
+			buffer.clear();
+			buffer.asFloatBuffer().get(values, offset + read, count);
+			read += count;
+		}
+	}
+}
@@ -1,6 +1,10 @@
 package io.vertigo.ai.llm.plugin.lc4j.rag;
 
+import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Optional;
 
 import dev.langchain4j.data.document.BlankDocumentException;
 import dev.langchain4j.data.document.Document;
@@ -12,6 +16,7 @@ import dev.langchain4j.spi.ServiceHelper;
 import dev.langchain4j.spi.data.document.parser.DocumentParserFactory;
 import io.vertigo.ai.impl.llm.LlmManagerImpl;
 import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jUtils;
 import io.vertigo.core.analytics.AnalyticsManager;
 import io.vertigo.core.lang.VSystemException;
 import io.vertigo.core.node.Node;
@@ -22,12 +27,37 @@ public final class VFileDocumentLoader {
 	private VFileDocumentLoader() {
 	}
 
+	/**
+	 * A loaded document with the fingerprint of its file.
+	 *
+	 * @param document the document, null if the file has no text
+	 * @param fileHash the SHA-256 of the file content
+	 */
+	public record HashedDocument(Document document, String fileHash) {
+	}
+
 	public static Document loadDocument(final VLlmDocument document) {
+		return load(document, Optional.empty());
+	}
+
+	/**
+	 * Loads the document and computes the fingerprint of the file content in the same read (see {@link #computeFileHash(VLlmDocument)}).
+	 *
+	 * @param document the document
+	 * @return the loaded document with the fingerprint of its file
+	 */
+	public static HashedDocument loadHashedDocument(final VLlmDocument document) {
+		final var digest = Lc4jUtils.newSha256Digest();
+		final var lc4jDocument = load(document, Optional.of(digest));
+		return new HashedDocument(lc4jDocument, HexFormat.of().formatHex(digest.digest()));
+	}
+
+	private static Document load(final VLlmDocument document, final Optional<MessageDigest> digestOpt) {
 		return getAnalyticsManager().traceWithReturn(LlmManagerImpl.LLM_CATEGORY, "readFile",
 				t -> {
 					try {
 						t.setTag("isEmpty", "false");
-						return DocumentLoader.load(new VFileDocumentSource(document.fileInfo().getVFile(), document.metadatas()), DEFAULT_DOCUMENT_PARSER);
+						return DocumentLoader.load(new VFileDocumentSource(document.fileInfo().getVFile(), document.metadatas(), digestOpt), DEFAULT_DOCUMENT_PARSER);
 					} catch (final BlankDocumentException e) {
 						t.setTag("isEmpty", "true");
 						return null;
@@ -37,6 +67,20 @@ public final class VFileDocumentLoader {
 				});
 	}
 
+	/**
+	 * Computes the fingerprint of the file content.
+	 *
+	 * @param document the document
+	 * @return the SHA-256 of the file content
+	 */
+	public static String computeFileHash(final VLlmDocument document) {
+		try (var inputStream = document.fileInfo().getVFile().createInputStream()) {
+			return Lc4jUtils.sha256Hex(inputStream);
+		} catch (final IOException e) {
+			throw new VSystemException(e, "Unable to read the document: {0}", document.fileInfo().getURI());
+		}
+	}
+
 	private static DocumentParser loadDocumentParser() {
 
 		final Collection<DocumentParserFactory> factories = ServiceHelper.loadFactories(DocumentParserFactory.class);
@@ -2,7 +2,11 @@ package io.vertigo.ai.llm.plugin.lc4j.rag;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 
 import dev.langchain4j.data.document.Document;
@@ -15,13 +19,27 @@ final class VFileDocumentSource implements DocumentSource {
 
 	private final VFile vFile;
 	private final Metadata metadatas;
+	private final Optional<MessageDigest> digestOpt;
 
 	public VFileDocumentSource(final VFile vFile, final Map<String, Object> metadatas) {
+		this(vFile, metadatas, Optional.empty());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param vFile the file
+	 * @param metadatas the metadatas of the document
+	 * @param digestOpt the digest updated with the whole file content while it is read
+	 */
+	public VFileDocumentSource(final VFile vFile, final Map<String, Object> metadatas, final Optional<MessageDigest> digestOpt) {
 		Assertion.check()
 				.isNotNull(vFile)
-				.isNotNull(metadatas);
+				.isNotNull(metadatas)
+				.isNotNull(digestOpt);
 		//---
 		this.vFile = vFile;
+		this.digestOpt = digestOpt;
 		this.metadatas = new Metadata();
 		for (final Map.Entry<String, Object> entry : metadatas.entrySet()) {
 			final var key = entry.getKey();
@@ -46,7 +64,26 @@ final class VFileDocumentSource implements DocumentSource {
 
 	@Override
 	public InputStream inputStream() throws IOException {
-		return vFile.createInputStream();
+		if (digestOpt.isEmpty()) {
+			return vFile.createInputStream();
+		}
+		return new DigestInputStream(vFile.createInputStream(), digestOpt.get()) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				// the parser may stop before the end of the file, the digest covers the whole content
+				try {
+					transferTo(OutputStream.nullOutputStream());
+				} finally {
+					super.close();
+				}
+			}
+		};
 	}
 
 	@Override
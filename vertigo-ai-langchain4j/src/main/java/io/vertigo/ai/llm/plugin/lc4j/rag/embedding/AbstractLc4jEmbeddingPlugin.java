@@ -0,0 +1,113 @@
+/*
+ * vertigo - application development platform
+ *
+ * Copyright (C) 2013-2024, Vertigo.io, team@vertigo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertigo.ai.llm.plugin.lc4j.rag.embedding;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
+import io.vertigo.core.analytics.metric.Metric;
+import io.vertigo.core.analytics.metric.Metrics;
+import io.vertigo.core.node.component.Activeable;
+
+/**
+ * Base class of embedding plugins, wrapping the provider embedding model with the optional features common to all providers.
+ * <ul>
+ * <li>embeddingCacheSize : if set, embeddings are cached in heap (LRU) keyed by model name and text hash</li>
+ * <li>embeddingCacheDirectory : if set (with embeddingCacheSize), embeddings are also cached on disk</li>
+ * <li>embeddingBatchMaxSize / embeddingBatchMaxWaitMs : if one is set, concurrent embedding requests are grouped in batches
+ * of at most embeddingBatchMaxSize texts (default {@value #DEFAULT_BATCH_MAX_SIZE}), waiting at most embeddingBatchMaxWaitMs
+ * (default {@value #DEFAULT_BATCH_MAX_WAIT_MS}ms)</li>
+ * </ul>
+ * Cache is applied before batching, so only cache misses are batched.
+ */
+public abstract class AbstractLc4jEmbeddingPlugin implements Lc4jEmbeddingPlugin, Activeable {
+	private static final int DEFAULT_BATCH_MAX_SIZE = 32;
+	private static final int DEFAULT_BATCH_MAX_WAIT_MS = 5;
+
+	private final EmbeddingModel embeddingModel;
+	private final Optional<CachedEmbeddingModel> cachedEmbeddingModelOpt;
+	private final Optional<BatchingEmbeddingModel> batchingEmbeddingModelOpt;
+
+	protected AbstractLc4jEmbeddingPlugin(
+			final EmbeddingModel providerEmbeddingModel,
+			final String modelName,
+			final Optional<Integer> cacheSizeOpt,
+			final Optional<String> cacheDirectoryOpt,
+			final Optional<Integer> batchMaxSizeOpt,
+			final Optional<Integer> batchMaxWaitMsOpt) {
+		if (batchMaxSizeOpt.isPresent() || batchMaxWaitMsOpt.isPresent()) {
+			batchingEmbeddingModelOpt = Optional.of(new BatchingEmbeddingModel(providerEmbeddingModel,
+					batchMaxSizeOpt.orElse(DEFAULT_BATCH_MAX_SIZE),
+					batchMaxWaitMsOpt.orElse(DEFAULT_BATCH_MAX_WAIT_MS)));
+		} else {
+			batchingEmbeddingModelOpt = Optional.empty();
+		}
+		final EmbeddingModel batchedEmbeddingModel = batchingEmbeddingModelOpt
+				.<EmbeddingModel> map(batching -> batching)
+				.orElse(providerEmbeddingModel);
+
+		cachedEmbeddingModelOpt = cacheSizeOpt
+				.map(cacheSize -> new CachedEmbeddingModel(batchedEmbeddingModel, modelName, cacheSize, cacheDirectoryOpt.map(Path::of)));
+		embeddingModel = cachedEmbeddingModelOpt
+				.<EmbeddingModel> map(cached -> cached)
+				.orElse(batchedEmbeddingModel);
+	}
+
+	@Override
+	public void start() {
+		// nothing
+	}
+
+	@Override
+	public void stop() {
+		batchingEmbeddingModelOpt.ifPresent(BatchingEmbeddingModel::shutdown);
+	}
+
+	@Override
+	public final EmbeddingModel getEmbeddingModel() {
+		return embeddingModel;
+	}
+
+	/**
+	 * Exposes embedding cache hit/miss counters.
+	 *
+	 * @return the metrics of the embedding cache
+	 */
+	@Metrics
+	public List<Metric> getEmbeddingCacheMetrics() {
+		return cachedEmbeddingModelOpt
+				.map(cached -> List.of(
+						toMetric("embeddingCacheHits", cached.getHitCount()),
+						toMetric("embeddingCacheMisses", cached.getMissCount()),
+						toMetric("embeddingCacheSize", cached.getMemorySize())))
+				.orElseGet(Collections::emptyList);
+	}
+
+	private static Metric toMetric(final String name, final double value) {
+		return Metric.builder()
+				.withName(name)
+				.withFeature(LlmManagerImpl.LLM_CATEGORY)
+				.withValue(value)
+				.withSuccess()
+				.build();
+	}
+}
@@ -0,0 +1,181 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.embedding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * EmbeddingModel decorator grouping small concurrent requests into a single embedAll call.
+ * Requests are held until maxBatchSize texts are pending or until maxWaitMillis has elapsed since the first pending one.
+ * Requests already larger than maxBatchSize are sent directly, as are requests made after {@link #shutdown()}.
+ * The token usage of a response is the sum of the usages of the batches holding its texts (a batch shared by several requests is counted in each).
+ */
+public final class BatchingEmbeddingModel implements EmbeddingModel {
+	private static final int FLUSH_THREADS = 4;
+
+	private final EmbeddingModel embeddingModel;
+	private final int maxBatchSize;
+	private final long maxWaitMillis;
+	private final ScheduledExecutorService flushExecutor;
+
+	private final Object lock = new Object();
+	private List<PendingSegment> pendingSegments = new ArrayList<>();
+	private ScheduledFuture<?> scheduledFlush;
+	private boolean stopped;
+
+	private record PendingSegment(TextSegment textSegment, CompletableFuture<BatchedEmbedding> future) {
+	}
+
+	// the embedding of a text at index in the response of its batch
+	private record BatchedEmbedding(Response<List<Embedding>> batchResponse, int index) {
+
+		Embedding embedding() {
+			return batchResponse.content().get(index);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param embeddingModel the embedding model to decorate
+	 * @param maxBatchSize the maximum number of texts sent in one call
+	 * @param maxWaitMillis the maximum time a text waits for others before being sent
+	 */
+	public BatchingEmbeddingModel(final EmbeddingModel embeddingModel, final int maxBatchSize, final long maxWaitMillis) {
+		Assertion.check()
+				.isNotNull(embeddingModel)
+				.isTrue(maxBatchSize > 0, "maxBatchSize must be positive")
+				.isTrue(maxWaitMillis > 0, "maxWaitMillis must be positive");
+		//---
+		this.embeddingModel = embeddingModel;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitMillis = maxWaitMillis;
+		flushExecutor = Executors.newScheduledThreadPool(FLUSH_THREADS, new NamedThreadFactory("v-lc4j-embedding-batch-"));
+	}
+
+	@Override
+	public Response<List<Embedding>> embedAll(final List<TextSegment> textSegments) {
+		if (textSegments.size() >= maxBatchSize) {
+			return embeddingModel.embedAll(textSegments);
+		}
+
+		final var futures = new ArrayList<CompletableFuture<BatchedEmbedding>>(textSegments.size());
+		final var fullBatches = new ArrayList<List<PendingSegment>>();
+		final boolean queued;
+		synchronized (lock) {
+			queued = !stopped;
+			if (queued) {
+				for (final var textSegment : textSegments) {
+					final var future = new CompletableFuture<BatchedEmbedding>();
+					futures.add(future);
+					pendingSegments.add(new PendingSegment(textSegment, future));
+				}
+				// never more than maxBatchSize texts per call, the remainder waits for others
+				while (pendingSegments.size() >= maxBatchSize) {
+					fullBatches.add(takePendingSegments(maxBatchSize));
+				}
+				if (!pendingSegments.isEmpty() && scheduledFlush == null) {
+					scheduledFlush = flushExecutor.schedule(this::flushPending, maxWaitMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		if (!queued) {
+			// no more flushes after shutdown
+			return embeddingModel.embedAll(textSegments);
+		}
+		// the batches are full, the caller completing them sends them
+		fullBatches.forEach(this::sendBatch);
+
+		final List<BatchedEmbedding> batchedEmbeddings;
+		try {
+			batchedEmbeddings = futures.stream()
+					.map(CompletableFuture::join)
+					.toList();
+		} catch (final CompletionException e) {
+			throw WrappedException.wrap(e.getCause());
+		}
+		// each batch counted once, even if it holds several texts of the request
+		final var batchResponses = Collections.newSetFromMap(new IdentityHashMap<Response<List<Embedding>>, Boolean>());
+		TokenUsage tokenUsage = null;
+		for (final var batchedEmbedding : batchedEmbeddings) {
+			final var batchResponse = batchedEmbedding.batchResponse();
+			if (batchResponses.add(batchResponse) && batchResponse.tokenUsage() != null) {
+				tokenUsage = tokenUsage == null ? batchResponse.tokenUsage() : tokenUsage.add(batchResponse.tokenUsage());
+			}
+		}
+		return Response.from(batchedEmbeddings.stream()
+				.map(BatchedEmbedding::embedding)
+				.toList(), tokenUsage);
+	}
+
+	@Override
+	public int dimension() {
+		return embeddingModel.dimension();
+	}
+
+	/**
+	 * Sends pending texts and stops the flush threads.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			stopped = true;
+		}
+		flushPending();
+		flushExecutor.shutdown();
+	}
+
+	private void flushPending() {
+		final List<PendingSegment> batch;
+		synchronized (lock) {
+			batch = takePendingSegments(pendingSegments.size());
+		}
+		if (!batch.isEmpty()) {
+			sendBatch(batch);
+		}
+	}
+
+	// must be called while holding the lock
+	private List<PendingSegment> takePendingSegments(final int count) {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		final var batch = List.copyOf(pendingSegments.subList(0, count));
+		pendingSegments = new ArrayList<>(pendingSegments.subList(count, pendingSegments.size()));
+		return batch;
+	}
+
+	private void sendBatch(final List<PendingSegment> batch) {
+		try {
+			final var batchResponse = embeddingModel.embedAll(batch.stream()
+					.map(PendingSegment::textSegment)
+					.toList());
+			final int embeddingCount = batchResponse.content().size();
+			if (embeddingCount != batch.size()) {
+				throw new VSystemException("Embedding model returned {0} embeddings for {1} texts", embeddingCount, batch.size());
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).future().complete(new BatchedEmbedding(batchResponse, i));
+			}
+		} catch (final Exception e) {
+			batch.forEach(pendingSegment -> pendingSegment.future().completeExceptionally(e));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.embedding;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jLruCache;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jUtils;
+import io.vertigo.core.lang.Assertion;
+
+/**
+ * EmbeddingModel decorator caching embeddings, keyed by model name and text hash.
+ * Embeddings are kept in a size bounded in-heap LRU tier, and optionally in a file tier (one file per embedding) surviving restarts.
+ */
+public final class CachedEmbeddingModel implements EmbeddingModel {
+	private static final Logger LOG = LogManager.getLogger(CachedEmbeddingModel.class);
+
+	private final EmbeddingModel embeddingModel;
+	private final String modelName;
+	private final Lc4jLruCache<String, float[]> memoryCache;
+	private final Optional<Path> cacheDirectoryOpt;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param embeddingModel the embedding model to decorate
+	 * @param modelName the model name, part of the cache key
+	 * @param cacheSize the maximum number of embeddings kept in heap
+	 * @param cacheDirectoryOpt the optional directory of the file tier
+	 */
+	public CachedEmbeddingModel(final EmbeddingModel embeddingModel, final String modelName, final int cacheSize, final Optional<Path> cacheDirectoryOpt) {
+		Assertion.check()
+				.isNotNull(embeddingModel)
+				.isNotBlank(modelName)
+				.isNotNull(cacheDirectoryOpt);
+		//---
+		this.embeddingModel = embeddingModel;
+		this.modelName = modelName;
+		memoryCache = new Lc4jLruCache<>(cacheSize);
+		this.cacheDirectoryOpt = cacheDirectoryOpt;
+	}
+
+	@Override
+	public Response<List<Embedding>> embedAll(final List<TextSegment> textSegments) {
+		final var embeddings = new Embedding[textSegments.size()];
+		// texts to embed, by cache key (the same text may appear several times in a batch)
+		final Map<String, List<Integer>> missingIndexesByKey = new LinkedHashMap<>();
+		for (int i = 0; i < textSegments.size(); i++) {
+			final var key = toKey(textSegments.get(i).text());
+			final var vector = lookup(key);
+			if (vector != null) {
+				hitCount.increment();
+				embeddings[i] = Embedding.from(vector.clone());
+			} else {
+				missCount.increment();
+				missingIndexesByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+			}
+		}
+
+		if (missingIndexesByKey.isEmpty()) {
+			return Response.from(Arrays.asList(embeddings));
+		}
+
+		final var missingSegments = missingIndexesByKey.values().stream()
+				.map(indexes -> textSegments.get(indexes.get(0)))
+				.toList();
+		final var response = embeddingModel.embedAll(missingSegments);
+
+		int j = 0;
+		for (final var entry : missingIndexesByKey.entrySet()) {
+			final var vector = response.content().get(j++).vector();
+			store(entry.getKey(), vector);
+			for (final int index : entry.getValue()) {
+				embeddings[index] = Embedding.from(vector.clone());
+			}
+		}
+		return Response.from(Arrays.asList(embeddings), response.tokenUsage());
+	}
+
+	@Override
+	public int dimension() {
+		return embeddingModel.dimension();
+	}
+
+	/**
+	 * @return the number of embeddings served from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return the number of embeddings computed by the underlying model
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return the number of embeddings in the heap tier
+	 */
+	public int getMemorySize() {
+		return memoryCache.size();
+	}
+
+	private String toKey(final String text) {
+		return Lc4jUtils.sha256Hex(modelName + '\n' + text);
+	}
+
+	private float[] lookup(final String key) {
+		final var vector = memoryCache.get(key);
+		if (vector != null || cacheDirectoryOpt.isEmpty()) {
+			return vector;
+		}
+		final var fileVector = readFromFile(key);
+		if (fileVector != null) {
+			memoryCache.put(key, fileVector);
+		}
+		return fileVector;
+	}
+
+	private void store(final String key, final float[] vector) {
+		memoryCache.put(key, vector.clone());
+		if (cacheDirectoryOpt.isPresent()) {
+			writeToFile(key, vector);
+		}
+	}
+
+	private Path toPath(final String key) {
+		// split files in sub directories to avoid huge directories
+		return cacheDirectoryOpt.get().resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	private float[] readFromFile(final String key) {
+		final var path = toPath(key);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			final var vector = new float[in.readInt()];
+			for (int i = 0; i < vector.length; i++) {
+				vector[i] = in.readFloat();
+			}
+			return vector;
+		} catch (final IOException e) {
+			// the file tier is only a cache, a corrupted entry is a miss
+			LOG.warn("Unable to read cached embedding {}", path, e);
+			return null;
+		}
+	}
+
+	private void writeToFile(final String key, final float[] vector) {
+		final var path = toPath(key);
+		try {
+			Files.createDirectories(path.getParent());
+			final var tmpPath = Files.createTempFile(path.getParent(), key, ".tmp");
+			try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+				out.writeInt(vector.length);
+				for (final float value : vector) {
+					out.writeFloat(value);
+				}
+			}
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			LOG.warn("Unable to write cached embedding {}", path, e);
+		}
+	}
+}
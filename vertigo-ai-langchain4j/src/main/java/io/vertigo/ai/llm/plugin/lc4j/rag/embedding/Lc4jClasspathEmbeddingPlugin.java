@@ -20,30 +20,38 @@ package io.vertigo.ai.llm.plugin.lc4j.rag.embedding;
 import static dev.langchain4j.spi.ServiceHelper.loadFactories;
 
 import java.util.Collection;
+import java.util.Optional;
 
 import javax.inject.Inject;
 
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.spi.model.embedding.EmbeddingModelFactory;
 import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.param.ParamValue;
 
 /**
  * Plugin to use autowired embedding model (from dependencies)
  *
  * @author skerdudou
  */
-public final class Lc4jClasspathEmbeddingPlugin implements Lc4jEmbeddingPlugin {
-
-	private final EmbeddingModel embeddingModel;
+public final class Lc4jClasspathEmbeddingPlugin extends AbstractLc4jEmbeddingPlugin {
 
 	@Inject
-	public Lc4jClasspathEmbeddingPlugin() {
-		embeddingModel = loadEmbeddingModel();
+	public Lc4jClasspathEmbeddingPlugin(
+			@ParamValue("embeddingCacheSize") final Optional<Integer> cacheSizeOpt,
+			@ParamValue("embeddingCacheDirectory") final Optional<String> cacheDirectoryOpt,
+			@ParamValue("embeddingBatchMaxSize") final Optional<Integer> batchMaxSizeOpt,
+			@ParamValue("embeddingBatchMaxWaitMs") final Optional<Integer> batchMaxWaitMsOpt) {
+		this(loadEmbeddingModel(), cacheSizeOpt, cacheDirectoryOpt, batchMaxSizeOpt, batchMaxWaitMsOpt);
 	}
 
-	@Override
-	public EmbeddingModel getEmbeddingModel() {
-		return embeddingModel;
+	private Lc4jClasspathEmbeddingPlugin(
+			final EmbeddingModel embeddingModel,
+			final Optional<Integer> cacheSizeOpt,
+			final Optional<String> cacheDirectoryOpt,
+			final Optional<Integer> batchMaxSizeOpt,
+			final Optional<Integer> batchMaxWaitMsOpt) {
+		super(embeddingModel, embeddingModel.getClass().getName(), cacheSizeOpt, cacheDirectoryOpt, batchMaxSizeOpt, batchMaxWaitMsOpt);
 	}
 
 	// from Lc4j source code
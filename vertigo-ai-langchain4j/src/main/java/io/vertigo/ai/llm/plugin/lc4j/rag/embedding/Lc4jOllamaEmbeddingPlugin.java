@@ -25,24 +25,63 @@ import javax.inject.Inject;
 
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jUtils;
+import io.vertigo.ai.llm.plugin.lc4j.balancing.Lc4jBalancedEmbeddingModel;
+import io.vertigo.ai.llm.plugin.lc4j.balancing.Lc4jEndpointBalancer;
 import io.vertigo.core.lang.Assertion;
 import io.vertigo.core.param.ParamValue;
 
 /**
- * Plugin to use Ollama as embedding model
+ * Plugin to use Ollama as embedding model.
+ * The url can be a comma separated list of endpoints serving the model, balanced with endpointMaxFailures, endpointEjectionSeconds
+ * and hedgingPercentile (see {@link Lc4jEndpointBalancer}).
  *
  * @author skerdudou
  */
-public final class Lc4jOllamaEmbeddingPlugin implements Lc4jEmbeddingPlugin {
+public final class Lc4jOllamaEmbeddingPlugin extends AbstractLc4jEmbeddingPlugin {
 
-	private final EmbeddingModel embeddingModel;
+	private static final String DEFAULT_MODEL_NAME = "qwen2.5:7b";
+
+	private final Lc4jEndpointBalancer<EmbeddingModel> balancer;
 
 	@Inject
 	public Lc4jOllamaEmbeddingPlugin(
 			@ParamValue("url") final String url,
 			@ParamValue("modelName") final Optional<String> modelNameOpt,
-			@ParamValue("apiKey") final Optional<String> apiKeyOpt) {
+			@ParamValue("apiKey") final Optional<String> apiKeyOpt,
+			@ParamValue("embeddingCacheSize") final Optional<Integer> cacheSizeOpt,
+			@ParamValue("embeddingCacheDirectory") final Optional<String> cacheDirectoryOpt,
+			@ParamValue("embeddingBatchMaxSize") final Optional<Integer> batchMaxSizeOpt,
+			@ParamValue("embeddingBatchMaxWaitMs") final Optional<Integer> batchMaxWaitMsOpt,
+			@ParamValue("endpointMaxFailures") final Optional<Integer> endpointMaxFailuresOpt,
+			@ParamValue("endpointEjectionSeconds") final Optional<Integer> endpointEjectionSecondsOpt,
+			@ParamValue("hedgingPercentile") final Optional<Integer> hedgingPercentileOpt) {
+		this(createBalancer(url, modelNameOpt.orElse(DEFAULT_MODEL_NAME), apiKeyOpt,
+				Lc4jEndpointBalancer.Config.of(endpointMaxFailuresOpt, endpointEjectionSecondsOpt, hedgingPercentileOpt)),
+				modelNameOpt.orElse(DEFAULT_MODEL_NAME), cacheSizeOpt, cacheDirectoryOpt, batchMaxSizeOpt, batchMaxWaitMsOpt);
+	}
+
+	private Lc4jOllamaEmbeddingPlugin(
+			final Lc4jEndpointBalancer<EmbeddingModel> balancer,
+			final String modelName,
+			final Optional<Integer> cacheSizeOpt,
+			final Optional<String> cacheDirectoryOpt,
+			final Optional<Integer> batchMaxSizeOpt,
+			final Optional<Integer> batchMaxWaitMsOpt) {
+		// a single endpoint is used directly
+		super(balancer.getModels().size() == 1 ? balancer.getModels().get(0) : new Lc4jBalancedEmbeddingModel(balancer),
+				modelName, cacheSizeOpt, cacheDirectoryOpt, batchMaxSizeOpt, batchMaxWaitMsOpt);
+		this.balancer = balancer;
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		balancer.close();
+	}
 
+	private static Lc4jEndpointBalancer<EmbeddingModel> createBalancer(final String url, final String modelName, final Optional<String> apiKeyOpt,
+			final Lc4jEndpointBalancer.Config balancingConfig) {
 		Assertion.check()
 				.isNotBlank(url);
 		// --
@@ -51,15 +90,10 @@ public final class Lc4jOllamaEmbeddingPlugin implements Lc4jEmbeddingPlugin {
 				.map(key -> Map.of("Authorization", "Bearer " + key))
 				.orElseGet(Collections::emptyMap);
 
-		embeddingModel = OllamaEmbeddingModel.builder()
-				.baseUrl(url)
-				.modelName(modelNameOpt.orElse("qwen2.5:7b"))
+		return new Lc4jEndpointBalancer<EmbeddingModel>(Lc4jEndpointBalancer.parseUrls(url), endpointUrl -> OllamaEmbeddingModel.builder()
+				.baseUrl(endpointUrl)
+				.modelName(modelName)
 				.customHeaders(customHeaders)
-				.build();
-	}
-
-	@Override
-	public EmbeddingModel getEmbeddingModel() {
-		return embeddingModel;
+				.build(), Lc4jUtils::isOllamaServerError, balancingConfig);
 	}
 }
@@ -31,24 +31,26 @@ import io.vertigo.core.param.ParamValue;
  *
  * @author skerdudou
  */
-public final class Lc4jOpenAiEmbeddingPlugin implements Lc4jEmbeddingPlugin {
+public final class Lc4jOpenAiEmbeddingPlugin extends AbstractLc4jEmbeddingPlugin {
 
-	private final EmbeddingModel embeddingModel;
+	private static final OpenAiEmbeddingModelName MODEL_NAME = OpenAiEmbeddingModelName.TEXT_EMBEDDING_3_SMALL; // TODO : make this configurable
 
 	@Inject
 	public Lc4jOpenAiEmbeddingPlugin(
 			@ParamValue("apiKey") final String apiKey,
-			@ParamValue("url") final Optional<String> urlOpt) {
+			@ParamValue("url") final Optional<String> urlOpt,
+			@ParamValue("embeddingCacheSize") final Optional<Integer> cacheSizeOpt,
+			@ParamValue("embeddingCacheDirectory") final Optional<String> cacheDirectoryOpt,
+			@ParamValue("embeddingBatchMaxSize") final Optional<Integer> batchMaxSizeOpt,
+			@ParamValue("embeddingBatchMaxWaitMs") final Optional<Integer> batchMaxWaitMsOpt) {
+		super(createEmbeddingModel(apiKey, urlOpt), MODEL_NAME.toString(), cacheSizeOpt, cacheDirectoryOpt, batchMaxSizeOpt, batchMaxWaitMsOpt);
+	}
 
-		embeddingModel = OpenAiEmbeddingModel.builder()
+	private static EmbeddingModel createEmbeddingModel(final String apiKey, final Optional<String> urlOpt) {
+		return OpenAiEmbeddingModel.builder()
 				.apiKey(apiKey)
 				.baseUrl(urlOpt.orElse(null)) // null => default url
-				.modelName(OpenAiEmbeddingModelName.TEXT_EMBEDDING_3_SMALL) // TODO : make this configurable
+				.modelName(MODEL_NAME)
 				.build();
 	}
-
-	@Override
-	public EmbeddingModel getEmbeddingModel() {
-		return embeddingModel;
-	}
 }
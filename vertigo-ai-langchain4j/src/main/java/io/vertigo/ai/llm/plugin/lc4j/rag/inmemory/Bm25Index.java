@@ -0,0 +1,200 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of the segments text, scored with BM25, for the lexical part of hybrid searches
+ * (exact terms such as codes or references that embeddings don't match well).
+ * Terms are lower case words and numbers, without accents.
+ * <p>
+ * One writer at a time : add and remove are applied by publish, like the MetadataIndex.
+ * Postings only grow (appended slots are after the ones already published), so readers never lock and only read up to their count.
+ * Removed slots stay in the postings until the index is rebuilt by a compaction : readers ignore slots deleted in their snapshot.
+ * Document frequencies only count live slots (the writer tokenizes the removed text again), so idf stays positive.
+ */
+final class Bm25Index {
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+	private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{M}+");
+	private static final Pattern SEPARATOR_PATTERN = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private final Map<String, Postings> postingsByTerm = new ConcurrentHashMap<>();
+	private volatile Statistics statistics = new Statistics(new int[0], 0, 0);
+
+	// writer only
+	private final Map<Postings, PendingPostings> pendingPostings = new IdentityHashMap<>();
+	private final Set<Postings> changedFrequencies = Collections.newSetFromMap(new IdentityHashMap<>());
+	private int[] lengths = new int[0];
+	private int documentCount;
+	private long totalLength;
+
+	/**
+	 * @param lengths number of terms of each slot
+	 * @param documentCount number of live segments
+	 * @param totalLength number of terms of the live segments
+	 */
+	private record Statistics(int[] lengths, int documentCount, long totalLength) {
+	}
+
+	void add(final int slot, final String text) {
+		final Map<String, Integer> frequencies = new HashMap<>();
+		int length = 0;
+		for (final var term : tokenize(text)) {
+			frequencies.merge(term, 1, Integer::sum);
+			length++;
+		}
+		if (slot >= lengths.length) {
+			// a new array for readers, the current one may be read
+			final var newLengths = new int[Math.max(slot + 1, lengths.length * 2)];
+			System.arraycopy(lengths, 0, newLengths, 0, lengths.length);
+			lengths = newLengths;
+		}
+		lengths[slot] = length;
+		documentCount++;
+		totalLength += length;
+		for (final var entry : frequencies.entrySet()) {
+			final var postings = postingsByTerm.computeIfAbsent(entry.getKey(), term -> new Postings());
+			pendingPostings.computeIfAbsent(postings, p -> new PendingPostings()).add(slot, entry.getValue());
+			postings.liveCount++;
+			changedFrequencies.add(postings);
+		}
+	}
+
+	void remove(final int slot, final String text) {
+		documentCount--;
+		totalLength -= lengths[slot];
+		for (final var term : new HashSet<>(tokenize(text))) {
+			final var postings = postingsByTerm.get(term);
+			if (postings != null) {
+				postings.liveCount--;
+				changedFrequencies.add(postings);
+			}
+		}
+	}
+
+	/**
+	 * Applies the pending changes.
+	 */
+	void publish() {
+		for (final var entry : pendingPostings.entrySet()) {
+			entry.getKey().append(entry.getValue());
+		}
+		pendingPostings.clear();
+		for (final var postings : changedFrequencies) {
+			postings.documentFrequency = postings.liveCount;
+		}
+		changedFrequencies.clear();
+		statistics = new Statistics(lengths, documentCount, totalLength);
+	}
+
+	/**
+	 * Scores the slots containing terms of the query.
+	 *
+	 * @param query the query text
+	 * @param maxResults the number of results
+	 * @param size the number of slots of the snapshot, later slots are ignored
+	 * @param accept the accepted slots
+	 * @return the best slots with their BM25 score
+	 */
+	TopKCollector search(final String query, final int maxResults, final int size, final IntPredicate accept) {
+		final var collector = TopKCollector.forCurrentThread(maxResults);
+		final var stats = statistics;
+		if (stats.documentCount() == 0) {
+			return collector;
+		}
+		final float averageLength = (float) stats.totalLength() / stats.documentCount();
+		final var scores = new HashMap<Integer, float[]>();
+		for (final var term : new HashSet<>(tokenize(query))) {
+			final var postings = postingsByTerm.get(term);
+			if (postings == null) {
+				continue;
+			}
+			final var content = postings.content;
+			final int documentFrequency = postings.documentFrequency;
+			// frequencies and statistics are published separately, a reader may see a frequency above its document count
+			final float idf = (float) Math.max(0d, Math.log(1d + (stats.documentCount() - documentFrequency + 0.5d) / (documentFrequency + 0.5d)));
+			for (int i = 0; i < content.count(); i++) {
+				final int slot = content.slots()[i];
+				if (slot >= size) {
+					break; // slots are ascending
+				}
+				final int frequency = content.frequencies()[i];
+				final float lengthRatio = stats.lengths()[slot] / averageLength;
+				final float termScore = idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * lengthRatio));
+				scores.computeIfAbsent(slot, s -> new float[1])[0] += termScore;
+			}
+		}
+		for (final var entry : scores.entrySet()) {
+			final float score = entry.getValue()[0];
+			if (score > collector.threshold() && accept.test(entry.getKey())) {
+				collector.offer(entry.getKey(), score);
+			}
+		}
+		return collector;
+	}
+
+	private static List<String> tokenize(final String text) {
+		if (text == null || text.isEmpty()) {
+			return List.of();
+		}
+		final var normalized = DIACRITICS_PATTERN.matcher(Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)).replaceAll("");
+		return SEPARATOR_PATTERN.splitAsStream(normalized)
+				.filter(term -> !term.isEmpty())
+				.toList();
+	}
+
+	private static final class PendingPostings {
+		private int[] slots = new int[4];
+		private int[] frequencies = new int[4];
+		private int count;
+
+		void add(final int slot, final int frequency) {
+			if (count == slots.length) {
+				slots = Arrays.copyOf(slots, count * 2);
+				frequencies = Arrays.copyOf(frequencies, count * 2);
+			}
+			slots[count] = slot;
+			frequencies[count] = frequency;
+			count++;
+		}
+	}
+
+	/**
+	 * Slots containing a term, ascending, with the term frequency.
+	 * Arrays have spare capacity : appends write after the published count, readers only read up to it.
+	 */
+	private static final class Postings {
+		private volatile Content content = new Content(new int[0], new int[0], 0);
+		private volatile int documentFrequency; // live slots containing the term, as of the last publish
+		private int liveCount; // writer only
+
+		private record Content(int[] slots, int[] frequencies, int count) {
+		}
+
+		void append(final PendingPostings pending) {
+			final var current = content;
+			final int newCount = current.count() + pending.count;
+			var slots = current.slots();
+			var frequencies = current.frequencies();
+			if (newCount > slots.length) {
+				slots = Arrays.copyOf(slots, Math.max(newCount, slots.length * 2));
+				frequencies = Arrays.copyOf(frequencies, slots.length);
+			}
+			System.arraycopy(pending.slots, 0, slots, current.count(), pending.count);
+			System.arraycopy(pending.frequencies, 0, frequencies, current.count(), pending.count);
+			content = new Content(slots, frequencies, newCount);
+		}
+	}
+}
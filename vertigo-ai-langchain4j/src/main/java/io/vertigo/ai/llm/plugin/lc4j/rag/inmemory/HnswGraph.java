@@ -0,0 +1,440 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+
+/**
+ * Hierarchical Navigable Small World graph over the slots of a flat vector array (vectors must be normalized).
+ * Inserts must be serialized by the caller, searches can run concurrently with one insert :
+ * neighbor lists are never modified in place but replaced by a new array (copy on write).
+ * A search only follows the slots below the size of its snapshot, from the entry point captured with the snapshot.
+ * Deleted slots are kept in the graph to route searches, callers exclude them from results with the accept predicate.
+ */
+final class HnswGraph {
+	private static final int[] NO_NEIGHBORS = new int[0];
+	private static final int MAX_LEVEL = 16;
+	private static final ThreadLocal<VisitedMarks> THREAD_VISITED = ThreadLocal.withInitial(VisitedMarks::new);
+
+	private final int m;
+	private final int maxNeighborsLayer0;
+	private final int efConstruction;
+	private final double levelMultiplier;
+
+	private volatile Node[] nodes;
+	private volatile EntryPoint entryPoint;
+
+	/**
+	 * Top level node where searches start.
+	 *
+	 * @param slot the slot of the node
+	 * @param level the level of the node
+	 */
+	record EntryPoint(int slot, int level) {
+	}
+
+	private static final class Node {
+		private final int level;
+		private final AtomicReferenceArray<int[]> neighbors;
+
+		Node(final int level) {
+			this.level = level;
+			neighbors = new AtomicReferenceArray<>(level + 1);
+			for (int layer = 0; layer <= level; layer++) {
+				neighbors.set(layer, NO_NEIGHBORS);
+			}
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param m the number of neighbors per node (twice on layer 0)
+	 * @param efConstruction the size of the candidate list when inserting
+	 * @param capacity the initial number of slots
+	 */
+	HnswGraph(final int m, final int efConstruction, final int capacity) {
+		this.m = m;
+		maxNeighborsLayer0 = 2 * m;
+		this.efConstruction = efConstruction;
+		levelMultiplier = 1d / Math.log(m);
+		nodes = new Node[capacity];
+	}
+
+	/**
+	 * @return the current entry point, null if the graph is empty
+	 */
+	EntryPoint entryPoint() {
+		return entryPoint;
+	}
+
+	/**
+	 * Grows the graph. Must not be called concurrently with inserts.
+	 *
+	 * @param capacity the required number of slots
+	 */
+	void ensureCapacity(final int capacity) {
+		if (capacity > nodes.length) {
+			nodes = Arrays.copyOf(nodes, Math.max(capacity, nodes.length * 2));
+		}
+	}
+
+	/**
+	 * Links a slot in the graph.
+	 *
+	 * @param slot the slot, its vector must already be in the array
+	 * @param vectors the flat array of vectors
+	 * @param dimension the dimension of vectors
+	 */
+	void insert(final int slot, final float[] vectors, final int dimension) {
+		final int level = randomLevel();
+		final var node = new Node(level);
+		nodes[slot] = node;
+		final var currentEntry = entryPoint;
+		if (currentEntry == null) {
+			entryPoint = new EntryPoint(slot, level);
+			return;
+		}
+
+		final var query = Arrays.copyOfRange(vectors, slot * dimension, (slot + 1) * dimension);
+		int[] entrySlots = { currentEntry.slot() };
+		for (int layer = currentEntry.level(); layer > level; layer--) {
+			entrySlots[0] = greedyClosest(query, entrySlots[0], layer, vectors, Integer.MAX_VALUE);
+		}
+		for (int layer = Math.min(level, currentEntry.level()); layer >= 0; layer--) {
+			final var collector = searchLayer(query, entrySlots, efConstruction, layer, candidate -> true, vectors, Integer.MAX_VALUE);
+			collector.sortDescending();
+			final int count = collector.size();
+			final var candidates = new int[count];
+			final var scores = new float[count];
+			for (int rank = 0; rank < count; rank++) {
+				candidates[rank] = collector.slotAt(rank);
+				scores[rank] = collector.scoreAt(rank);
+			}
+
+			final var selected = selectNeighbors(candidates, scores, count, m, vectors, dimension);
+			node.neighbors.set(layer, selected);
+			for (final int neighbor : selected) {
+				addReverseLink(neighbor, slot, layer, vectors, dimension);
+			}
+			entrySlots = candidates;
+		}
+		if (level > currentEntry.level()) {
+			entryPoint = new EntryPoint(slot, level);
+		}
+	}
+
+	/**
+	 * Searches the ef best accepted slots.
+	 *
+	 * @param query the normalized query
+	 * @param ef the size of the candidate list
+	 * @param accept the slots that can be returned (others are only used for routing)
+	 * @param vectors the flat array of vectors of the snapshot
+	 * @param startEntry the entry point of the snapshot (null if the graph was empty)
+	 * @param limit the number of slots of the snapshot, newer slots are ignored
+	 * @return the collector holding the best slots (the collector of the current thread)
+	 */
+	TopKCollector search(final float[] query, final int ef, final IntPredicate accept, final float[] vectors, final EntryPoint startEntry, final int limit) {
+		if (startEntry == null) {
+			return TopKCollector.forCurrentThread(0);
+		}
+		int entry = startEntry.slot();
+		for (int layer = startEntry.level(); layer > 0; layer--) {
+			entry = greedyClosest(query, entry, layer, vectors, limit);
+		}
+		return searchLayer(query, new int[] { entry }, ef, 0, accept, vectors, limit);
+	}
+
+	/**
+	 * Writes the nodes of the first slots and their links.
+	 *
+	 * @param out the output
+	 * @param startEntry the entry point of the snapshot (null if the graph was empty)
+	 * @param limit the number of slots of the snapshot, links to newer slots are dropped
+	 */
+	void writeTo(final DataOutputStream out, final EntryPoint startEntry, final int limit) throws IOException {
+		out.writeInt(startEntry == null ? -1 : startEntry.slot());
+		out.writeInt(startEntry == null ? -1 : startEntry.level());
+		for (int slot = 0; slot < limit; slot++) {
+			final var node = nodes[slot];
+			out.writeByte(node == null ? -1 : node.level);
+			if (node == null) {
+				continue;
+			}
+			for (int layer = 0; layer <= node.level; layer++) {
+				final var links = Arrays.stream(node.neighbors.get(layer))
+						.filter(neighbor -> neighbor < limit)
+						.toArray();
+				out.writeShort(links.length);
+				for (final int neighbor : links) {
+					out.writeInt(neighbor);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a graph written by {@link #writeTo(DataOutputStream, EntryPoint, int)}.
+	 *
+	 * @param in the input
+	 * @param m the number of neighbors per node the graph was built with
+	 * @param efConstruction the size of the candidate list for next inserts
+	 * @param capacity the number of slots
+	 * @param limit the number of slots written
+	 * @return the graph
+	 */
+	static HnswGraph readFrom(final DataInputStream in, final int m, final int efConstruction, final int capacity, final int limit) throws IOException {
+		final var graph = new HnswGraph(m, efConstruction, capacity);
+		final int entrySlot = in.readInt();
+		final int entryLevel = in.readInt();
+		final var graphNodes = graph.nodes;
+		for (int slot = 0; slot < limit; slot++) {
+			final int level = in.readByte();
+			if (level < 0) {
+				continue;
+			}
+			final var node = new Node(level);
+			for (int layer = 0; layer <= level; layer++) {
+				final var links = new int[in.readShort()];
+				for (int i = 0; i < links.length; i++) {
+					links[i] = in.readInt();
+				}
+				node.neighbors.set(layer, links);
+			}
+			graphNodes[slot] = node;
+		}
+		graph.entryPoint = entrySlot < 0 ? null : new EntryPoint(entrySlot, entryLevel);
+		return graph;
+	}
+
+	private int greedyClosest(final float[] query, final int start, final int layer, final float[] vectors, final int limit) {
+		final int dimension = query.length;
+		int closest = start;
+		float closestScore = VectorMath.dot(query, vectors, start * dimension);
+		boolean improved = true;
+		while (improved) {
+			improved = false;
+			for (final int neighbor : neighbors(closest, layer)) {
+				if (neighbor >= limit) {
+					continue;
+				}
+				final float score = VectorMath.dot(query, vectors, neighbor * dimension);
+				if (score > closestScore) {
+					closest = neighbor;
+					closestScore = score;
+					improved = true;
+				}
+			}
+		}
+		return closest;
+	}
+
+	private TopKCollector searchLayer(final float[] query, final int[] entrySlots, final int ef, final int layer, final IntPredicate accept, final float[] vectors, final int limit) {
+		final int dimension = query.length;
+		final var results = TopKCollector.forCurrentThread(ef);
+		final var candidates = new CandidateHeap(ef);
+		final var visited = THREAD_VISITED.get().reset(nodes.length);
+		for (final int entry : entrySlots) {
+			if (visited.visit(entry)) {
+				final float score = VectorMath.dot(query, vectors, entry * dimension);
+				candidates.push(entry, score);
+				if (accept.test(entry)) {
+					results.offer(entry, score);
+				}
+			}
+		}
+		while (!candidates.isEmpty()) {
+			if (candidates.peekScore() < results.threshold()) {
+				break; // no candidate left can improve the results
+			}
+			final int candidate = candidates.pop();
+			for (final int neighbor : neighbors(candidate, layer)) {
+				if (neighbor >= limit || !visited.visit(neighbor)) {
+					continue;
+				}
+				final float score = VectorMath.dot(query, vectors, neighbor * dimension);
+				if (score > results.threshold()) {
+					candidates.push(neighbor, score);
+					if (accept.test(neighbor)) {
+						results.offer(neighbor, score);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Heuristic from the HNSW paper : a candidate is kept only if it is closer to the node than to any neighbor already selected,
+	 * so neighbors point in different directions and the graph stays connected across clusters.
+	 * Candidates must be sorted by descending score.
+	 */
+	private static int[] selectNeighbors(final int[] candidates, final float[] scores, final int count, final int maxNeighbors, final float[] vectors, final int dimension) {
+		final var selected = new int[Math.min(count, maxNeighbors)];
+		int selectedCount = 0;
+		for (int i = 0; i < count && selectedCount < maxNeighbors; i++) {
+			boolean keep = true;
+			for (int j = 0; j < selectedCount && keep; j++) {
+				keep = VectorMath.dot(vectors, candidates[i] * dimension, vectors, selected[j] * dimension, dimension) <= scores[i];
+			}
+			if (keep) {
+				selected[selectedCount++] = candidates[i];
+			}
+		}
+		return selectedCount == selected.length ? selected : Arrays.copyOf(selected, selectedCount);
+	}
+
+	private void addReverseLink(final int neighbor, final int slot, final int layer, final float[] vectors, final int dimension) {
+		final var neighborNode = nodes[neighbor];
+		final var current = neighborNode.neighbors.get(layer);
+		final int maxNeighbors = layer == 0 ? maxNeighborsLayer0 : m;
+		if (current.length < maxNeighbors) {
+			final var updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = slot;
+			neighborNode.neighbors.set(layer, updated);
+			return;
+		}
+		// the list is full : select again among the current neighbors and the new slot
+		final int count = current.length + 1;
+		final var candidates = Arrays.copyOf(current, count);
+		candidates[current.length] = slot;
+		final var scores = new float[count];
+		for (int i = 0; i < count; i++) {
+			scores[i] = VectorMath.dot(vectors, neighbor * dimension, vectors, candidates[i] * dimension, dimension);
+		}
+		sortDescending(candidates, scores, count);
+		neighborNode.neighbors.set(layer, selectNeighbors(candidates, scores, count, maxNeighbors, vectors, dimension));
+	}
+
+	private int[] neighbors(final int slot, final int layer) {
+		final var node = nodes[slot];
+		if (node == null || layer > node.level) {
+			return NO_NEIGHBORS;
+		}
+		return node.neighbors.get(layer);
+	}
+
+	private int randomLevel() {
+		final double random = 1d - ThreadLocalRandom.current().nextDouble(); // in ]0, 1]
+		return Math.min(MAX_LEVEL, (int) (-Math.log(random) * levelMultiplier));
+	}
+
+	// insertion sort : lists are small (at most 2*m + 1)
+	private static void sortDescending(final int[] slots, final float[] scores, final int count) {
+		for (int i = 1; i < count; i++) {
+			final int slot = slots[i];
+			final float score = scores[i];
+			int j = i - 1;
+			while (j >= 0 && scores[j] < score) {
+				slots[j + 1] = slots[j];
+				scores[j + 1] = scores[j];
+				j--;
+			}
+			slots[j + 1] = slot;
+			scores[j + 1] = score;
+		}
+	}
+
+	/**
+	 * Max-heap of candidates to explore, on primitive arrays.
+	 */
+	private static final class CandidateHeap {
+		private int[] slots;
+		private float[] scores;
+		private int size;
+
+		CandidateHeap(final int initialCapacity) {
+			slots = new int[Math.max(16, initialCapacity)];
+			scores = new float[slots.length];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		float peekScore() {
+			return scores[0];
+		}
+
+		void push(final int slot, final float score) {
+			if (size == slots.length) {
+				slots = Arrays.copyOf(slots, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			int child = size++;
+			while (child > 0) {
+				final int parent = (child - 1) >>> 1;
+				if (scores[parent] >= score) {
+					break;
+				}
+				slots[child] = slots[parent];
+				scores[child] = scores[parent];
+				child = parent;
+			}
+			slots[child] = slot;
+			scores[child] = score;
+		}
+
+		int pop() {
+			final int top = slots[0];
+			size--;
+			final int lastSlot = slots[size];
+			final float lastScore = scores[size];
+			int parent = 0;
+			while (true) {
+				final int left = 2 * parent + 1;
+				if (left >= size) {
+					break;
+				}
+				final int right = left + 1;
+				final int largest = right < size && scores[right] > scores[left] ? right : left;
+				if (lastScore >= scores[largest]) {
+					break;
+				}
+				slots[parent] = slots[largest];
+				scores[parent] = scores[largest];
+				parent = largest;
+			}
+			slots[parent] = lastSlot;
+			scores[parent] = lastScore;
+			return top;
+		}
+	}
+
+	/**
+	 * Visited flags reused between searches of a thread : a slot is visited if its mark equals the current generation.
+	 */
+	private static final class VisitedMarks {
+		private int[] marks = new int[0];
+		private int generation;
+
+		VisitedMarks reset(final int capacity) {
+			if (marks.length < capacity) {
+				marks = new int[capacity];
+				generation = 0;
+			}
+			generation++;
+			if (generation == Integer.MAX_VALUE) {
+				Arrays.fill(marks, 0);
+				generation = 1;
+			}
+			return this;
+		}
+
+		/**
+		 * @return true if the slot was not visited yet
+		 */
+		boolean visit(final int slot) {
+			if (marks[slot] == generation) {
+				return false;
+			}
+			marks[slot] = generation;
+			return true;
+		}
+	}
+}
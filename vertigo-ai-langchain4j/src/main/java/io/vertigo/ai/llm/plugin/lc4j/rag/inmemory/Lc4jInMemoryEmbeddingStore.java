@@ -0,0 +1,854 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jSegmentCodec;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.lang.VSystemException;
+
+/**
+ * In memory embedding store keeping all vectors in one contiguous float array.
+ * Vectors are normalized when added, so cosine similarity is a plain dot product, and the k best matches are selected with a primitive heap :
+ * scoring does not allocate.
+ * Removed entries are only marked as deleted, the arrays are compacted when half of the entries are deleted.
+ * <p>
+ * Searches never lock : they read an immutable snapshot, replaced atomically at the end of each write (one add or remove call).
+ * Writes are serialized. Slots are appended after the size of the current snapshot, deleted slots are copied on write,
+ * and a compaction builds new arrays, so a snapshot stays consistent as long as a search uses it.
+ * Each snapshot has an epoch, incremented by each write.
+ * <p>
+ * With an {@link HnswConfig}, searches use an HNSW graph instead of scanning all vectors (approximate results).
+ * <p>
+ * A compaction runs in a background thread : it copies the live entries of the current snapshot and builds their graph without holding
+ * the write lock, then replays the writes made meanwhile and publishes the result. Removes return without waiting for it.
+ * The thread stops when idle, {@link #close()} stops the compactions.
+ * <p>
+ * Metadata values are indexed, so equality filters are resolved to candidate slots before scoring.
+ * Selective filters (matching less than 10% of entries) only score the candidates (pre-filtering),
+ * other filters are checked while scanning or walking the graph (post-filtering).
+ * <p>
+ * The content (with the HNSW graph) can be written in a binary snapshot and read back without embedding nor indexing again.
+ */
+public final class Lc4jInMemoryEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+	private static final int INITIAL_CAPACITY = 256;
+	private static final double PRE_FILTER_MAX_SELECTIVITY = 0.1d;
+	private static final int SNAPSHOT_MAGIC = 0x564C4953; // VLIS
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final long COMPACTION_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+	private final Lock mutationLock = new ReentrantLock(); // serializes writers
+	private final Optional<HnswConfig> hnswConfigOpt;
+	private final Set<String> unindexedMetadataKeys;
+	private volatile Snapshot snapshot;
+
+	// writer state, guarded by the mutation lock
+	private long epoch;
+	private int dimension = -1; // known with the first embedding
+	private float[] vectors = new float[0];
+	private String[] ids = new String[0];
+	private TextSegment[] segments = new TextSegment[0];
+	private int size; // number of used slots, including deleted ones
+	private BitSet deletedSlots = new BitSet(); // never modified once published
+	private final Map<String, Integer> slotById = new HashMap<>();
+	private MetadataIndex metadataIndex;
+	private Bm25Index bm25Index = new Bm25Index();
+	private HnswGraph hnswGraph; // null without HNSW
+	private long resetCount; // incremented when the store is cleared, a running compaction is then dropped
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final ThreadPoolExecutor compactionExecutor;
+
+	/**
+	 * HNSW index parameters.
+	 *
+	 * @param m the number of neighbors per node (twice on the bottom layer), higher is more accurate and uses more memory
+	 * @param efConstruction the size of the candidate list when inserting, higher gives a better graph but slower inserts
+	 * @param efSearch the default size of the candidate list when searching, higher is more accurate but slower
+	 */
+	public record HnswConfig(int m, int efConstruction, int efSearch) {
+		public HnswConfig {
+			Assertion.check()
+					.isTrue(m > 1, "m must be greater than 1")
+					.isTrue(efConstruction > 0, "efConstruction must be positive")
+					.isTrue(efSearch > 0, "efSearch must be positive");
+		}
+
+		public static HnswConfig defaults() {
+			return new HnswConfig(16, 200, 64);
+		}
+	}
+
+	/**
+	 * Recall of the HNSW index for one efSearch value, compared to the exact scan.
+	 *
+	 * @param efSearch the efSearch value
+	 * @param recall the mean fraction of the exact results found by the index
+	 * @param meanLatencyMicros the mean search time with the index
+	 * @param exactMeanLatencyMicros the mean search time with the exact scan
+	 */
+	public record RecallReport(int efSearch, double recall, double meanLatencyMicros, double exactMeanLatencyMicros) {
+	}
+
+	/**
+	 * Constructor for an exact (flat) store.
+	 */
+	public Lc4jInMemoryEmbeddingStore() {
+		this(Optional.empty());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param hnswConfigOpt the HNSW parameters if searches must use an HNSW index
+	 */
+	public Lc4jInMemoryEmbeddingStore(final Optional<HnswConfig> hnswConfigOpt) {
+		this(hnswConfigOpt, Set.of());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param hnswConfigOpt the HNSW parameters if searches must use an HNSW index
+	 * @param unindexedMetadataKeys the metadata keys not worth indexing (values unique per entry)
+	 */
+	public Lc4jInMemoryEmbeddingStore(final Optional<HnswConfig> hnswConfigOpt, final Set<String> unindexedMetadataKeys) {
+		Assertion.check()
+				.isNotNull(hnswConfigOpt)
+				.isNotNull(unindexedMetadataKeys);
+		//---
+		this.hnswConfigOpt = hnswConfigOpt;
+		this.unindexedMetadataKeys = unindexedMetadataKeys;
+		metadataIndex = new MetadataIndex(unindexedMetadataKeys);
+		hnswGraph = newGraph(0);
+		// no thread until the first compaction, many stores are temporary
+		compactionExecutor = new ThreadPoolExecutor(1, 1, COMPACTION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				new NamedThreadFactory("v-lc4j-inmemory-compaction-"));
+		compactionExecutor.allowCoreThreadTimeOut(true);
+		publish();
+	}
+
+	@Override
+	public String add(final Embedding embedding) {
+		return add(embedding, null);
+	}
+
+	@Override
+	public void add(final String id, final Embedding embedding) {
+		addAll(List.of(id), List.of(embedding), null);
+	}
+
+	@Override
+	public String add(final Embedding embedding, final TextSegment textSegment) {
+		final var id = newId();
+		addAll(List.of(id), List.of(embedding), textSegment == null ? null : List.of(textSegment));
+		return id;
+	}
+
+	@Override
+	public List<String> addAll(final List<Embedding> embeddings) {
+		return addAll(embeddings, null);
+	}
+
+	@Override
+	public List<String> addAll(final List<Embedding> embeddings, final List<TextSegment> textSegments) {
+		final var newIds = embeddings.stream()
+				.map(e -> newId())
+				.toList();
+		addAll(newIds, embeddings, textSegments);
+		return newIds;
+	}
+
+	private void addAll(final List<String> newIds, final List<Embedding> embeddings, final List<TextSegment> textSegments) {
+		Assertion.check()
+				.isTrue(textSegments == null || textSegments.size() == embeddings.size(), "embeddings and segments must have the same size");
+		//---
+		mutationLock.lock();
+		try {
+			final int firstNewSlot = size;
+			for (int i = 0; i < embeddings.size(); i++) {
+				final var vector = embeddings.get(i).vector();
+				if (dimension < 0) {
+					dimension = vector.length;
+				}
+				Assertion.check().isTrue(vector.length == dimension, "All embeddings must have the same dimension ({0})", dimension);
+				ensureCapacity(size + 1);
+				final var previousSlot = slotById.get(newIds.get(i));
+				if (previousSlot != null) {
+					deleteSlot(previousSlot);
+				}
+				// slots after the size of the published snapshot are not read by searches
+				System.arraycopy(VectorMath.normalizedCopy(vector), 0, vectors, size * dimension, dimension);
+				ids[size] = newIds.get(i);
+				segments[size] = textSegments == null ? null : textSegments.get(i);
+				if (segments[size] != null) {
+					metadataIndex.add(size, segments[size].metadata());
+					bm25Index.add(size, segments[size].text());
+				}
+				slotById.put(newIds.get(i), size);
+				size++;
+			}
+			linkSlots(firstNewSlot);
+			publish();
+		} finally {
+			mutationLock.unlock();
+		}
+	}
+
+	@Override
+	public void removeAll(final Collection<String> idsToRemove) {
+		final boolean compact;
+		mutationLock.lock();
+		try {
+			for (final var id : idsToRemove) {
+				final var slot = slotById.get(id);
+				if (slot != null) {
+					deleteSlot(slot);
+				}
+			}
+			compact = publishDeletes();
+		} finally {
+			mutationLock.unlock();
+		}
+		if (compact) {
+			submitCompaction();
+		}
+	}
+
+	@Override
+	public void removeAll(final Filter filter) {
+		Assertion.check().isNotNull(filter);
+		//---
+		final boolean compact;
+		mutationLock.lock();
+		try {
+			// the current snapshot holds all the previous writes
+			for (final int slot : snapshot.matchingSlots(filter)) {
+				deleteSlot(slot);
+			}
+			compact = publishDeletes();
+		} finally {
+			mutationLock.unlock();
+		}
+		if (compact) {
+			submitCompaction();
+		}
+	}
+
+	@Override
+	public void removeAll() {
+		mutationLock.lock();
+		try {
+			vectors = new float[0];
+			ids = new String[0];
+			segments = new TextSegment[0];
+			size = 0;
+			deletedSlots = new BitSet();
+			slotById.clear();
+			metadataIndex = new MetadataIndex(unindexedMetadataKeys);
+			bm25Index = new Bm25Index();
+			hnswGraph = newGraph(0);
+			resetCount++;
+			publish();
+		} finally {
+			mutationLock.unlock();
+		}
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(final EmbeddingSearchRequest request) {
+		return search(request, hnswConfigOpt.map(HnswConfig::efSearch).orElse(0));
+	}
+
+	/**
+	 * Searches with a specific efSearch (size of the candidate list of the HNSW index, ignored without index).
+	 *
+	 * @param request the search request
+	 * @param efSearch the efSearch for this query
+	 * @return the matches
+	 */
+	public EmbeddingSearchResult<TextSegment> search(final EmbeddingSearchRequest request, final int efSearch) {
+		return new EmbeddingSearchResult<>(snapshot.search(request, efSearch, false));
+	}
+
+	/**
+	 * Lexical search : segments containing terms of the query, ranked with BM25.
+	 *
+	 * @param query the query text
+	 * @param filter the metadata filter, null for none
+	 * @param maxResults the maximum number of results
+	 * @return the matches, scored with BM25 (not a relevance score in [0, 1])
+	 */
+	public List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+		return snapshot.lexicalSearch(query, filter, maxResults);
+	}
+
+	/**
+	 * Measures the recall and latency of the HNSW index against the exact scan, for several efSearch values.
+	 *
+	 * @param queries the query embeddings, ideally representative of real queries
+	 * @param maxResults the number of results of each query
+	 * @param efSearchValues the efSearch values to measure
+	 * @return one report per efSearch value
+	 */
+	public List<RecallReport> measureRecall(final List<Embedding> queries, final int maxResults, final List<Integer> efSearchValues) {
+		Assertion.check()
+				.isTrue(hnswConfigOpt.isPresent(), "Recall can only be measured with an HNSW index")
+				.isFalse(queries.isEmpty(), "At least one query is needed")
+				.isTrue(maxResults > 0, "maxResults must be positive");
+		//---
+		final var measuredSnapshot = snapshot; // same content for all measures
+		final var exactIds = new ArrayList<HashSet<String>>(queries.size());
+		long exactNanos = 0;
+		for (final var query : queries) {
+			final long start = System.nanoTime();
+			final var matches = measuredSnapshot.search(toRecallRequest(query, maxResults), 0, true);
+			exactNanos += System.nanoTime() - start;
+			final var matchIds = new HashSet<String>();
+			matches.forEach(match -> matchIds.add(match.embeddingId()));
+			exactIds.add(matchIds);
+		}
+
+		final var reports = new ArrayList<RecallReport>(efSearchValues.size());
+		for (final int efSearch : efSearchValues) {
+			long nanos = 0;
+			double recallSum = 0;
+			for (int i = 0; i < queries.size(); i++) {
+				final long start = System.nanoTime();
+				final var matches = measuredSnapshot.search(toRecallRequest(queries.get(i), maxResults), efSearch, false);
+				nanos += System.nanoTime() - start;
+				final var expected = exactIds.get(i);
+				final long found = matches.stream()
+						.filter(match -> expected.contains(match.embeddingId()))
+						.count();
+				recallSum += expected.isEmpty() ? 1d : (double) found / expected.size();
+			}
+			reports.add(new RecallReport(efSearch, recallSum / queries.size(),
+					nanos / 1000d / queries.size(),
+					exactNanos / 1000d / queries.size()));
+		}
+		return reports;
+	}
+
+	private static EmbeddingSearchRequest toRecallRequest(final Embedding query, final int maxResults) {
+		return EmbeddingSearchRequest.builder()
+				.queryEmbedding(query)
+				.maxResults(maxResults)
+				.minScore(0d)
+				.build();
+	}
+
+	/**
+	 * Lists all the entries matching a filter.
+	 *
+	 * @param filter the filter
+	 * @return the matching entries (score is 1)
+	 */
+	public List<EmbeddingMatch<TextSegment>> findAll(final Filter filter) {
+		final var current = snapshot;
+		return current.matchingSlots(filter).stream()
+				.map(slot -> current.toMatch(slot, 1d))
+				.toList();
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return snapshot.liveCount();
+	}
+
+	/**
+	 * The epoch identifies the content of the store : it changes after each write.
+	 *
+	 * @return the epoch of the current snapshot
+	 */
+	public long getEpoch() {
+		return snapshot.epoch();
+	}
+
+	/**
+	 * Writes the current content of the store, searches and writes can continue meanwhile.
+	 * Vectors are written in bulk and the HNSW graph is written with them, so reading needs no computation.
+	 *
+	 * @param out the output
+	 */
+	public void writeSnapshot(final DataOutputStream out) throws IOException {
+		final var current = snapshot;
+		final int vectorDimension = Math.max(current.dimension(), 0); // -1 while empty
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(SNAPSHOT_VERSION);
+		out.writeInt(current.dimension());
+		out.writeInt(current.size());
+		Lc4jSegmentCodec.writeFloats(out, current.vectors(), 0, current.size() * vectorDimension);
+		for (int slot = 0; slot < current.size(); slot++) {
+			// deleted slots are kept (without content) so the graph stays valid
+			final boolean deleted = current.deletedSlots().get(slot);
+			out.writeBoolean(deleted);
+			if (!deleted) {
+				Lc4jSegmentCodec.writeString(out, current.ids()[slot]);
+				Lc4jSegmentCodec.writeSegment(out, current.segments()[slot]);
+			}
+		}
+		out.writeBoolean(current.hnswGraph() != null);
+		if (current.hnswGraph() != null) {
+			out.writeInt(hnswConfigOpt.get().m());
+			current.hnswGraph().writeTo(out, current.entryPoint(), current.size());
+		}
+	}
+
+	/**
+	 * Reads a store written by {@link #writeSnapshot(DataOutputStream)}.
+	 * The HNSW graph is rebuilt only if it was not written or was built with another m.
+	 *
+	 * @param in the input
+	 * @param hnswConfigOpt the HNSW parameters if searches must use an HNSW index
+	 * @param unindexedMetadataKeys the metadata keys not worth indexing (values unique per entry)
+	 * @return the store
+	 */
+	public static Lc4jInMemoryEmbeddingStore readSnapshot(final DataInputStream in, final Optional<HnswConfig> hnswConfigOpt, final Set<String> unindexedMetadataKeys) throws IOException {
+		final var store = new Lc4jInMemoryEmbeddingStore(hnswConfigOpt, unindexedMetadataKeys);
+		store.load(in);
+		return store;
+	}
+
+	private void load(final DataInputStream in) throws IOException {
+		if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+			throw new VSystemException("Invalid embedding store snapshot");
+		}
+		mutationLock.lock();
+		try {
+			dimension = in.readInt();
+			final int snapshotSize = in.readInt();
+			final int capacity = Math.max(INITIAL_CAPACITY, snapshotSize);
+			vectors = new float[capacity * Math.max(dimension, 0)];
+			Lc4jSegmentCodec.readFloats(in, vectors, 0, snapshotSize * Math.max(dimension, 0));
+			ids = new String[capacity];
+			segments = new TextSegment[capacity];
+			deletedSlots = new BitSet();
+			for (int slot = 0; slot < snapshotSize; slot++) {
+				if (in.readBoolean()) {
+					deletedSlots.set(slot);
+					continue;
+				}
+				ids[slot] = Lc4jSegmentCodec.readString(in);
+				segments[slot] = Lc4jSegmentCodec.readSegment(in);
+				if (segments[slot] != null) {
+					metadataIndex.add(slot, segments[slot].metadata());
+					bm25Index.add(slot, segments[slot].text());
+				}
+				slotById.put(ids[slot], slot);
+			}
+			size = snapshotSize;
+
+			hnswGraph = null;
+			if (in.readBoolean()) {
+				final int graphM = in.readInt();
+				final int efConstruction = hnswConfigOpt.orElseGet(HnswConfig::defaults).efConstruction();
+				final var graph = HnswGraph.readFrom(in, graphM, efConstruction, capacity, snapshotSize);
+				if (hnswConfigOpt.isPresent() && hnswConfigOpt.get().m() == graphM) {
+					hnswGraph = graph;
+				}
+			}
+			if (hnswConfigOpt.isPresent() && hnswGraph == null) {
+				hnswGraph = newGraph(capacity);
+				linkSlots(0);
+			}
+			publish();
+		} finally {
+			mutationLock.unlock();
+		}
+	}
+
+	/**
+	 * Content of the store seen by searches.
+	 * Arrays may be shared with newer snapshots, which only write after size.
+	 */
+	private record Snapshot(
+			long epoch,
+			int dimension,
+			float[] vectors,
+			String[] ids,
+			TextSegment[] segments,
+			int size,
+			int liveCount,
+			BitSet deletedSlots,
+			MetadataIndex metadataIndex,
+			Bm25Index bm25Index,
+			HnswGraph hnswGraph,
+			HnswGraph.EntryPoint entryPoint) {
+
+		List<EmbeddingMatch<TextSegment>> search(final EmbeddingSearchRequest request, final int efSearch, final boolean exact) {
+			if (liveCount == 0) {
+				return List.of();
+			}
+			final var query = VectorMath.normalizedCopy(request.queryEmbedding().vector());
+			Assertion.check().isTrue(query.length == dimension, "Query embedding must have dimension {0}", dimension);
+			// minScore is a relevance score in [0, 1], convert it back to a cosine threshold
+			final float minCosine = (float) (request.minScore() * 2d - 1d);
+			final var filter = request.filter();
+			final int maxResults = Math.min(request.maxResults(), liveCount);
+
+			final var candidates = filter == null ? null : candidates(filter);
+			final IntPredicate accept;
+			if (filter == null) {
+				accept = slot -> true;
+			} else if (candidates == null) {
+				accept = slot -> accepts(slot, filter);
+			} else {
+				final var candidateSlots = candidates.slots();
+				if (candidateSlots.cardinality() <= liveCount * PRE_FILTER_MAX_SELECTIVITY) {
+					// pre-filtering : only candidates are scored
+					return toMatches(scanCandidates(query, maxResults, minCosine, candidates, filter), maxResults, minCosine);
+				}
+				accept = candidates.exact()
+						? candidateSlots::get
+						: slot -> candidateSlots.get(slot) && accepts(slot, filter);
+			}
+
+			// post-filtering
+			final int ef = Math.max(efSearch, maxResults);
+			if (exact || hnswGraph == null || ef >= liveCount) {
+				return toMatches(scanAll(query, maxResults, minCosine, accept), maxResults, minCosine);
+			}
+			final var collector = hnswGraph.search(query, ef, slot -> !deletedSlots.get(slot) && accept.test(slot), vectors, entryPoint, size);
+			return toMatches(collector, maxResults, minCosine);
+		}
+
+		private TopKCollector scanAll(final float[] query, final int maxResults, final float minCosine, final IntPredicate accept) {
+			final var collector = TopKCollector.forCurrentThread(maxResults);
+			for (int slot = 0; slot < size; slot++) {
+				if (deletedSlots.get(slot)) {
+					continue;
+				}
+				final float cosine = VectorMath.dot(query, vectors, slot * dimension);
+				if (cosine < minCosine || cosine <= collector.threshold()) {
+					continue;
+				}
+				if (!accept.test(slot)) {
+					continue;
+				}
+				collector.offer(slot, cosine);
+			}
+			return collector;
+		}
+
+		private TopKCollector scanCandidates(final float[] query, final int maxResults, final float minCosine, final MetadataIndex.Candidates candidates, final Filter filter) {
+			final var collector = TopKCollector.forCurrentThread(maxResults);
+			final var candidateSlots = candidates.slots();
+			for (int slot = candidateSlots.nextSetBit(0); slot >= 0; slot = candidateSlots.nextSetBit(slot + 1)) {
+				final float cosine = VectorMath.dot(query, vectors, slot * dimension);
+				if (cosine < minCosine || cosine <= collector.threshold()) {
+					continue;
+				}
+				if (!candidates.exact() && !accepts(slot, filter)) {
+					continue;
+				}
+				collector.offer(slot, cosine);
+			}
+			return collector;
+		}
+
+		/*
+		 * The index may already hold changes of a newer snapshot :
+		 * slots added since are ignored, slots removed since are missing (they are being deleted anyway).
+		 */
+		private MetadataIndex.Candidates candidates(final Filter filter) {
+			final var candidates = metadataIndex.evaluate(filter);
+			if (candidates != null) {
+				final var candidateSlots = candidates.slots();
+				if (candidateSlots.length() > size) {
+					candidateSlots.clear(size, candidateSlots.length());
+				}
+				candidateSlots.andNot(deletedSlots);
+			}
+			return candidates;
+		}
+
+		List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+			if (liveCount == 0) {
+				return List.of();
+			}
+			final var candidates = filter == null ? null : candidates(filter);
+			final IntPredicate accept;
+			if (filter == null) {
+				accept = slot -> !deletedSlots.get(slot);
+			} else if (candidates == null) {
+				accept = slot -> !deletedSlots.get(slot) && accepts(slot, filter);
+			} else {
+				final var candidateSlots = candidates.slots();
+				accept = candidates.exact()
+						? candidateSlots::get
+						: slot -> candidateSlots.get(slot) && accepts(slot, filter);
+			}
+			final var collector = bm25Index.search(query, maxResults, size, accept);
+			collector.sortDescending();
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>(collector.size());
+			for (int rank = 0; rank < collector.size(); rank++) {
+				matches.add(toMatch(collector.slotAt(rank), collector.scoreAt(rank)));
+			}
+			return matches;
+		}
+
+		List<Integer> matchingSlots(final Filter filter) {
+			final var slots = new ArrayList<Integer>();
+			final var candidates = filter == null ? null : candidates(filter);
+			if (candidates == null) {
+				for (int slot = 0; slot < size; slot++) {
+					if (!deletedSlots.get(slot) && accepts(slot, filter)) {
+						slots.add(slot);
+					}
+				}
+			} else {
+				final var candidateSlots = candidates.slots();
+				for (int slot = candidateSlots.nextSetBit(0); slot >= 0; slot = candidateSlots.nextSetBit(slot + 1)) {
+					if (candidates.exact() || accepts(slot, filter)) {
+						slots.add(slot);
+					}
+				}
+			}
+			return slots;
+		}
+
+		private boolean accepts(final int slot, final Filter filter) {
+			return filter == null || segments[slot] != null && filter.test(segments[slot].metadata());
+		}
+
+		private List<EmbeddingMatch<TextSegment>> toMatches(final TopKCollector collector, final int maxResults, final float minCosine) {
+			collector.sortDescending();
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>(Math.min(maxResults, collector.size()));
+			for (int rank = 0; rank < collector.size() && matches.size() < maxResults && collector.scoreAt(rank) >= minCosine; rank++) {
+				matches.add(toMatch(collector.slotAt(rank), VectorMath.toRelevanceScore(collector.scoreAt(rank))));
+			}
+			return matches;
+		}
+
+		EmbeddingMatch<TextSegment> toMatch(final int slot, final double score) {
+			final var vector = new float[dimension];
+			System.arraycopy(vectors, slot * dimension, vector, 0, dimension);
+			return new EmbeddingMatch<>(score, ids[slot], Embedding.from(vector), segments[slot]);
+		}
+	}
+
+	// must be called while holding the mutation lock
+	private void publish() {
+		metadataIndex.publish();
+		bm25Index.publish();
+		snapshot = new Snapshot(++epoch, dimension, vectors, ids, segments, size, slotById.size(), deletedSlots, metadataIndex, bm25Index,
+				hnswGraph, hnswGraph == null ? null : hnswGraph.entryPoint());
+	}
+
+	private HnswGraph newGraph(final int capacity) {
+		return hnswConfigOpt
+				.map(config -> new HnswGraph(config.m(), config.efConstruction(), capacity))
+				.orElse(null);
+	}
+
+	// must be called while holding the mutation lock : searches of the current snapshot don't follow the new slots
+	private void linkSlots(final int fromSlot) {
+		if (hnswGraph == null) {
+			return;
+		}
+		for (int slot = fromSlot; slot < size; slot++) {
+			if (!deletedSlots.get(slot)) {
+				hnswGraph.insert(slot, vectors, dimension);
+			}
+		}
+	}
+
+	// must be called while holding the mutation lock
+	private void deleteSlot(final int slot) {
+		if (deletedSlots == snapshot.deletedSlots()) {
+			deletedSlots = (BitSet) deletedSlots.clone();
+		}
+		deletedSlots.set(slot);
+		slotById.remove(ids[slot]);
+		if (segments[slot] != null) {
+			// the segment is released by the next compaction, older snapshots may still return it
+			metadataIndex.remove(slot, segments[slot].metadata());
+			bm25Index.remove(slot, segments[slot].text());
+		}
+	}
+
+	// must be called while holding the mutation lock
+	private void ensureCapacity(final int requiredSlots) {
+		if (vectors.length < ids.length * dimension) {
+			// slots allocated before the dimension was known (empty snapshot loaded)
+			vectors = Arrays.copyOf(vectors, ids.length * dimension);
+		}
+		if (requiredSlots <= ids.length) {
+			return;
+		}
+		final int newCapacity = Math.max(INITIAL_CAPACITY, Math.max(requiredSlots, ids.length * 2));
+		final var newVectors = new float[newCapacity * dimension];
+		System.arraycopy(vectors, 0, newVectors, 0, size * dimension);
+		vectors = newVectors;
+		final var newIds = new String[newCapacity];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		ids = newIds;
+		final var newSegments = new TextSegment[newCapacity];
+		System.arraycopy(segments, 0, newSegments, 0, size);
+		segments = newSegments;
+		if (hnswGraph != null) {
+			hnswGraph.ensureCapacity(newCapacity);
+		}
+	}
+
+	// must be called while holding the mutation lock, returns true if the caller must submit a compaction (once the lock is released)
+	private boolean publishDeletes() {
+		publish();
+		final int deletedCount = size - slotById.size();
+		return deletedCount > 0 && deletedCount >= size / 2 && compacting.compareAndSet(false, true);
+	}
+
+	private void submitCompaction() {
+		try {
+			compactionExecutor.execute(this::compact);
+		} catch (final RejectedExecutionException e) {
+			// closed : deleted slots are only kept
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Stops the compactions, waiting for the running one. The store stays usable, deleted entries are no longer released.
+	 */
+	@Override
+	public void close() {
+		compactionExecutor.shutdown();
+		try {
+			compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void compact() {
+		try {
+			final Snapshot base;
+			final long baseResetCount;
+			mutationLock.lock();
+			try {
+				base = snapshot;
+				baseResetCount = resetCount;
+			} finally {
+				mutationLock.unlock();
+			}
+
+			// live entries of the snapshot are copied to new arrays : its slots are never modified, searches still running keep them
+			final int baseDimension = base.dimension();
+			final int capacity = Math.max(INITIAL_CAPACITY, base.liveCount());
+			final var newVectors = new float[capacity * baseDimension];
+			final var newIds = new String[capacity];
+			final var newSegments = new TextSegment[capacity];
+			final var newMetadataIndex = new MetadataIndex(unindexedMetadataKeys);
+			final var newBm25Index = new Bm25Index();
+			final var newSlots = new int[base.size()];
+			int target = 0;
+			for (int slot = 0; slot < base.size(); slot++) {
+				if (base.deletedSlots().get(slot)) {
+					newSlots[slot] = -1;
+					continue;
+				}
+				System.arraycopy(base.vectors(), slot * baseDimension, newVectors, target * baseDimension, baseDimension);
+				newIds[target] = base.ids()[slot];
+				newSegments[target] = base.segments()[slot];
+				if (newSegments[target] != null) {
+					newMetadataIndex.add(target, newSegments[target].metadata());
+					newBm25Index.add(target, newSegments[target].text());
+				}
+				newSlots[slot] = target;
+				target++;
+			}
+			final var newHnswGraph = newGraph(capacity);
+			if (newHnswGraph != null) {
+				for (int slot = 0; slot < target; slot++) {
+					newHnswGraph.insert(slot, newVectors, baseDimension);
+				}
+			}
+
+			mutationLock.lock();
+			try {
+				if (resetCount != baseResetCount) {
+					return; // cleared meanwhile, nothing left to compact
+				}
+				final var oldVectors = vectors;
+				final var oldIds = ids;
+				final var oldSegments = segments;
+				final var oldDeletedSlots = deletedSlots;
+				final int oldSize = size;
+				vectors = newVectors;
+				ids = newIds;
+				segments = newSegments;
+				size = target;
+				deletedSlots = new BitSet();
+				metadataIndex = newMetadataIndex;
+				bm25Index = newBm25Index;
+				hnswGraph = newHnswGraph;
+				slotById.clear();
+				for (int slot = 0; slot < size; slot++) {
+					slotById.put(ids[slot], slot);
+				}
+				// replays the deletes made meanwhile, then the adds
+				for (int slot = oldDeletedSlots.nextSetBit(0); slot >= 0 && slot < newSlots.length; slot = oldDeletedSlots.nextSetBit(slot + 1)) {
+					if (newSlots[slot] >= 0) {
+						deleteSlot(newSlots[slot]);
+					}
+				}
+				final int firstNewSlot = size;
+				for (int slot = newSlots.length; slot < oldSize; slot++) {
+					if (oldDeletedSlots.get(slot)) {
+						continue;
+					}
+					ensureCapacity(size + 1);
+					System.arraycopy(oldVectors, slot * dimension, vectors, size * dimension, dimension);
+					ids[size] = oldIds[slot];
+					segments[size] = oldSegments[slot];
+					if (segments[size] != null) {
+						metadataIndex.add(size, segments[size].metadata());
+						bm25Index.add(size, segments[size].text());
+					}
+					slotById.put(ids[size], size);
+					size++;
+				}
+				linkSlots(firstNewSlot);
+				publish();
+			} finally {
+				mutationLock.unlock();
+			}
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	private static String newId() {
+		return UUID.randomUUID().toString();
+	}
+}
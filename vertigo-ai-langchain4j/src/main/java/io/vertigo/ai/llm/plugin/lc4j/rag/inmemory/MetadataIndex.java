@@ -0,0 +1,200 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
+import dev.langchain4j.store.embedding.filter.comparison.IsIn;
+import dev.langchain4j.store.embedding.filter.logical.And;
+import dev.langchain4j.store.embedding.filter.logical.Or;
+
+/**
+ * Inverted index of metadata : for each key and value, the slots having this value.
+ * Equality filters (IsEqualTo, IsIn, and their And/Or combinations) are resolved to a set of candidate slots before scoring.
+ * <p>
+ * One writer at a time : add and remove are buffered and applied by publish, each posting list modified by the batch is replaced once.
+ * Readers never lock, they may see postings published after their snapshot and must ignore slots unknown or deleted in their snapshot.
+ */
+final class MetadataIndex {
+	private final Set<String> unindexedKeys;
+	private final Map<String, Map<Object, Posting>> postingsByKey = new ConcurrentHashMap<>();
+	private final Map<Posting, PendingChanges> pendingChanges = new IdentityHashMap<>(); // writer only
+
+	/**
+	 * Slots matching a filter.
+	 *
+	 * @param slots the candidate slots
+	 * @param exact true if all candidates match the filter, false if candidates must still be tested (part of the filter is not indexed)
+	 */
+	record Candidates(BitSet slots, boolean exact) {
+	}
+
+	/**
+	 * @param unindexedKeys metadata keys not to index (values unique per segment are not worth indexing)
+	 */
+	MetadataIndex(final Set<String> unindexedKeys) {
+		this.unindexedKeys = unindexedKeys;
+	}
+
+	void add(final int slot, final Metadata metadata) {
+		for (final var entry : metadata.toMap().entrySet()) {
+			if (!unindexedKeys.contains(entry.getKey())) {
+				final var posting = postingsByKey.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>())
+						.computeIfAbsent(normalize(entry.getValue()), v -> new Posting(entry.getKey(), v));
+				pendingChanges.computeIfAbsent(posting, p -> new PendingChanges()).added.set(slot);
+			}
+		}
+	}
+
+	void remove(final int slot, final Metadata metadata) {
+		for (final var entry : metadata.toMap().entrySet()) {
+			final var postings = postingsByKey.get(entry.getKey());
+			if (postings != null) {
+				final var posting = postings.get(normalize(entry.getValue()));
+				if (posting != null) {
+					pendingChanges.computeIfAbsent(posting, p -> new PendingChanges()).removed.set(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the pending changes.
+	 */
+	void publish() {
+		for (final var entry : pendingChanges.entrySet()) {
+			final var posting = entry.getKey();
+			posting.apply(entry.getValue());
+			if (posting.isEmpty()) {
+				// only unlinked, readers still holding it see no slot
+				postingsByKey.get(posting.key).remove(posting.value, posting);
+			}
+		}
+		pendingChanges.clear();
+	}
+
+	/**
+	 * Resolves a filter to candidate slots.
+	 *
+	 * @param filter the filter
+	 * @return the candidates, or null if the filter can't be resolved with the index
+	 */
+	Candidates evaluate(final Filter filter) {
+		if (filter instanceof final IsEqualTo isEqualTo) {
+			return lookup(isEqualTo.key(), Set.of(isEqualTo.comparisonValue()));
+		} else if (filter instanceof final IsIn isIn) {
+			return lookup(isIn.key(), isIn.comparisonValues());
+		} else if (filter instanceof final And and) {
+			final var left = evaluate(and.left());
+			final var right = evaluate(and.right());
+			if (left == null || right == null) {
+				// one side still narrows the candidates, the whole filter is tested on them
+				return left == null ? inexact(right) : inexact(left);
+			}
+			left.slots().and(right.slots());
+			return new Candidates(left.slots(), left.exact() && right.exact());
+		} else if (filter instanceof final Or or) {
+			final var left = evaluate(or.left());
+			final var right = evaluate(or.right());
+			if (left == null || right == null) {
+				return null;
+			}
+			left.slots().or(right.slots());
+			return new Candidates(left.slots(), left.exact() && right.exact());
+		}
+		return null;
+	}
+
+	private static Candidates inexact(final Candidates candidates) {
+		return candidates == null ? null : new Candidates(candidates.slots(), false);
+	}
+
+	private Candidates lookup(final String key, final Iterable<?> values) {
+		if (unindexedKeys.contains(key)) {
+			return null;
+		}
+		final var slots = new BitSet();
+		final var postings = postingsByKey.get(key);
+		if (postings != null) {
+			for (final var value : values) {
+				final var posting = postings.get(normalize(value));
+				if (posting != null) {
+					posting.orInto(slots);
+				}
+			}
+		}
+		return new Candidates(slots, true);
+	}
+
+	// same value semantic as langchain4j filters : numbers are compared by value whatever their type, UUID as strings
+	private static Object normalize(final Object value) {
+		if (value instanceof final Double d && !Double.isFinite(d) || value instanceof final Float f && !Float.isFinite(f)) {
+			return value;
+		} else if (value instanceof final Number number) {
+			return new BigDecimal(number.toString()).stripTrailingZeros();
+		} else if (value instanceof UUID) {
+			return value.toString();
+		}
+		return value;
+	}
+
+	private static final class PendingChanges {
+		private final BitSet added = new BitSet();
+		private final BitSet removed = new BitSet();
+	}
+
+	/**
+	 * Slots of one metadata value : a sorted array while sparse, a bitset once dense.
+	 * The content is never modified once published, changes replace it.
+	 */
+	private static final class Posting {
+		private static final int MIN_DENSE_SIZE = 64;
+		private static final int[] EMPTY = new int[0];
+
+		private final String key;
+		private final Object value;
+		private volatile Object slots = EMPTY; // int[] or BitSet
+
+		Posting(final String key, final Object value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		void apply(final PendingChanges changes) {
+			final var bits = new BitSet();
+			orInto(bits);
+			bits.or(changes.added);
+			bits.andNot(changes.removed);
+			final int count = bits.cardinality();
+			// a bitset takes one bit per slot up to the highest one, an array 32 bits per value
+			if (count >= MIN_DENSE_SIZE && count * 32L >= bits.length()) {
+				slots = bits;
+			} else {
+				slots = bits.stream().toArray();
+			}
+		}
+
+		boolean isEmpty() {
+			final var current = slots;
+			return current instanceof final int[] array ? array.length == 0 : ((BitSet) current).isEmpty();
+		}
+
+		void orInto(final BitSet target) {
+			final var current = slots;
+			if (current instanceof final int[] array) {
+				for (final int slot : array) {
+					target.set(slot);
+				}
+			} else {
+				target.or((BitSet) current);
+			}
+		}
+	}
+}
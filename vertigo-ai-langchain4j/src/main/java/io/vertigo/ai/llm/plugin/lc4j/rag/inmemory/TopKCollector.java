@@ -0,0 +1,137 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+/**
+ * Keeps the k best (slot, score) pairs with a min-heap on primitive arrays.
+ * Instances are reused between searches (one per thread), so collecting results does not allocate once the arrays are large enough.
+ */
+public final class TopKCollector {
+	private static final ThreadLocal<TopKCollector> THREAD_COLLECTOR = ThreadLocal.withInitial(TopKCollector::new);
+
+	private int[] slots = new int[16];
+	private float[] scores = new float[16];
+	private int capacity;
+	private int size;
+
+	/**
+	 * @param k the number of results to keep
+	 * @return the collector of the current thread, reset for a new search
+	 */
+	public static TopKCollector forCurrentThread(final int k) {
+		final var collector = THREAD_COLLECTOR.get();
+		collector.reset(k);
+		return collector;
+	}
+
+	private void reset(final int k) {
+		if (slots.length < k) {
+			slots = new int[k];
+			scores = new float[k];
+		}
+		capacity = k;
+		size = 0;
+	}
+
+	/**
+	 * @return the lowest kept score if the collector is full, -Infinity otherwise
+	 */
+	public float threshold() {
+		return size < capacity ? Float.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/**
+	 * Offers a candidate.
+	 *
+	 * @param slot the slot of the candidate
+	 * @param score the score of the candidate
+	 */
+	public void offer(final int slot, final float score) {
+		if (capacity == 0) {
+			return;
+		}
+		if (size < capacity) {
+			slots[size] = slot;
+			scores[size] = score;
+			siftUp(size++);
+		} else if (score > scores[0]) {
+			slots[0] = slot;
+			scores[0] = score;
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * @return the number of kept results
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts kept results by descending score, in place. The collector must not be offered new candidates afterwards.
+	 */
+	public void sortDescending() {
+		// heap sort : repeatedly move the min at the end
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	/**
+	 * @param rank the rank (after sortDescending)
+	 * @return the slot of the result
+	 */
+	public int slotAt(final int rank) {
+		return slots[rank];
+	}
+
+	/**
+	 * @param rank the rank (after sortDescending)
+	 * @return the score of the result
+	 */
+	public float scoreAt(final int rank) {
+		return scores[rank];
+	}
+
+	private void siftUp(final int index) {
+		int child = index;
+		while (child > 0) {
+			final int parent = (child - 1) >>> 1;
+			if (scores[parent] <= scores[child]) {
+				return;
+			}
+			swap(parent, child);
+			child = parent;
+		}
+	}
+
+	private void siftDown(final int index) {
+		siftDown(index, size);
+	}
+
+	private void siftDown(final int index, final int heapSize) {
+		int parent = index;
+		while (true) {
+			final int left = 2 * parent + 1;
+			if (left >= heapSize) {
+				return;
+			}
+			final int right = left + 1;
+			final int smallest = right < heapSize && scores[right] < scores[left] ? right : left;
+			if (scores[parent] <= scores[smallest]) {
+				return;
+			}
+			swap(parent, smallest);
+			parent = smallest;
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		final int slot = slots[i];
+		slots[i] = slots[j];
+		slots[j] = slot;
+		final float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
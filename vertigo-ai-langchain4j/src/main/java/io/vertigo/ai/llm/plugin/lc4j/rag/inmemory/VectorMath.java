@@ -0,0 +1,83 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.inmemory;
+
+/**
+ * Vector operations on flat float arrays.
+ * Loops are unrolled with independent accumulators so the JIT can pipeline them (floating point reductions are not auto-vectorized).
+ */
+public final class VectorMath {
+
+	private VectorMath() {
+		// util
+	}
+
+	/**
+	 * Dot product of a vector with a vector stored in a flat array.
+	 *
+	 * @param query the query vector
+	 * @param vectors the flat array of vectors
+	 * @param offset the offset of the vector in the flat array
+	 * @return the dot product
+	 */
+	public static float dot(final float[] query, final float[] vectors, final int offset) {
+		return dot(query, 0, vectors, offset, query.length);
+	}
+
+	/**
+	 * Dot product of two vectors stored in flat arrays.
+	 *
+	 * @param a the first flat array
+	 * @param aOffset the offset of the first vector
+	 * @param b the second flat array
+	 * @param bOffset the offset of the second vector
+	 * @param dimension the dimension of vectors
+	 * @return the dot product
+	 */
+	public static float dot(final float[] a, final int aOffset, final float[] b, final int bOffset, final int dimension) {
+		float s0 = 0f;
+		float s1 = 0f;
+		float s2 = 0f;
+		float s3 = 0f;
+		int i = 0;
+		for (; i + 3 < dimension; i += 4) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+			s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for (; i < dimension; i++) {
+			s0 += a[aOffset + i] * b[bOffset + i];
+		}
+		return s0 + s1 + s2 + s3;
+	}
+
+	/**
+	 * Copies a vector and scales it to unit length, so cosine similarity becomes a dot product.
+	 *
+	 * @param vector the vector
+	 * @return the normalized copy
+	 */
+	public static float[] normalizedCopy(final float[] vector) {
+		double norm = 0d;
+		for (final float value : vector) {
+			norm += value * value;
+		}
+		final var result = vector.clone();
+		if (norm > 0d) {
+			final float inverseNorm = (float) (1d / Math.sqrt(norm));
+			for (int i = 0; i < result.length; i++) {
+				result[i] *= inverseNorm;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Converts a cosine similarity to a relevance score in [0, 1], as langchain4j stores do.
+	 *
+	 * @param cosine the cosine similarity
+	 * @return the relevance score
+	 */
+	public static double toRelevanceScore(final float cosine) {
+		return (cosine + 1d) / 2d;
+	}
+}
@@ -0,0 +1,80 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.scoring;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import dev.langchain4j.model.scoring.ScoringModel;
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
+import io.vertigo.core.analytics.AnalyticsManager;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.node.component.Activeable;
+import io.vertigo.core.param.ParamValue;
+
+/**
+ * Plugin reranking retrieved segments with a local ONNX cross-encoder (see OnnxCrossEncoderScoringModel).
+ * <ul>
+ * <li>modelPath, tokenizerPath : the ONNX model and its tokenizer.json</li>
+ * <li>candidateCount : the number of segments retrieved and scored, the best ones are sent to the LLM (default {@value #DEFAULT_CANDIDATE_COUNT})</li>
+ * <li>maxSequenceLength : the maximum number of tokens of the query and a segment (default {@value #DEFAULT_MAX_SEQUENCE_LENGTH})</li>
+ * <li>batchSize : the number of segments per inference (default {@value #DEFAULT_BATCH_SIZE})</li>
+ * <li>inferenceThreads : the number of concurrent inferences (default {@value #DEFAULT_INFERENCE_THREADS})</li>
+ * </ul>
+ * Each reranking is traced ("rerank", with its number of segments), so its latency is reported apart from the LLM call.
+ */
+public final class Lc4jOnnxScoringPlugin implements Lc4jScoringPlugin, Activeable {
+	private static final int DEFAULT_CANDIDATE_COUNT = 30;
+	private static final int DEFAULT_MAX_SEQUENCE_LENGTH = 512;
+	private static final int DEFAULT_BATCH_SIZE = 16;
+	private static final int DEFAULT_INFERENCE_THREADS = 2;
+
+	private final OnnxCrossEncoderScoringModel crossEncoder;
+	private final ScoringModel scoringModel;
+	private final int candidateCount;
+
+	@Inject
+	public Lc4jOnnxScoringPlugin(
+			@ParamValue("modelPath") final String modelPath,
+			@ParamValue("tokenizerPath") final String tokenizerPath,
+			@ParamValue("candidateCount") final Optional<Integer> candidateCountOpt,
+			@ParamValue("maxSequenceLength") final Optional<Integer> maxSequenceLengthOpt,
+			@ParamValue("batchSize") final Optional<Integer> batchSizeOpt,
+			@ParamValue("inferenceThreads") final Optional<Integer> inferenceThreadsOpt,
+			final AnalyticsManager analyticsManager) {
+		Assertion.check()
+				.isNotBlank(modelPath)
+				.isNotBlank(tokenizerPath)
+				.isNotNull(analyticsManager);
+		//---
+		candidateCount = candidateCountOpt.orElse(DEFAULT_CANDIDATE_COUNT);
+		crossEncoder = new OnnxCrossEncoderScoringModel(Path.of(modelPath), Path.of(tokenizerPath),
+				maxSequenceLengthOpt.orElse(DEFAULT_MAX_SEQUENCE_LENGTH),
+				batchSizeOpt.orElse(DEFAULT_BATCH_SIZE),
+				inferenceThreadsOpt.orElse(DEFAULT_INFERENCE_THREADS));
+		scoringModel = (segments, query) -> analyticsManager.traceWithReturn(LlmManagerImpl.LLM_CATEGORY, "rerank", tracer -> {
+			tracer.setMeasure("segments", segments.size());
+			return crossEncoder.scoreAll(segments, query);
+		});
+	}
+
+	@Override
+	public void start() {
+		// nothing
+	}
+
+	@Override
+	public void stop() {
+		crossEncoder.close();
+	}
+
+	@Override
+	public ScoringModel getScoringModel() {
+		return scoringModel;
+	}
+
+	@Override
+	public int getCandidateCount() {
+		return candidateCount;
+	}
+}
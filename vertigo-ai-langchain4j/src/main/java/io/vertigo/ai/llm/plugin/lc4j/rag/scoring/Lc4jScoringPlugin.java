@@ -0,0 +1,18 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.scoring;
+
+import dev.langchain4j.model.scoring.ScoringModel;
+import io.vertigo.core.node.component.Plugin;
+
+/**
+ * Plugin providing the model reranking retrieved segments.
+ */
+public interface Lc4jScoringPlugin extends Plugin {
+
+	ScoringModel getScoringModel();
+
+	/**
+	 * @return the number of segments retrieved before reranking
+	 */
+	int getCandidateCount();
+
+}
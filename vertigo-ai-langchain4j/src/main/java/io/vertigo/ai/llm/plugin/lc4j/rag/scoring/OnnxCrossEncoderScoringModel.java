@@ -0,0 +1,144 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.scoring;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.util.PairList;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.scoring.ScoringModel;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * ScoringModel running a cross-encoder (such as ms-marco-MiniLM-L-6-v2 exported to ONNX) in process, on CPU.
+ * The query and each segment are encoded together, so the score is more precise than a vector similarity,
+ * but each segment costs an inference : only the retrieved candidates are scored.
+ * <p>
+ * Segments are scored by batches of batchSize, at most inferenceThreads batches run at the same time (each using its share of the cores).
+ * Scores are in [0, 1].
+ */
+public final class OnnxCrossEncoderScoringModel implements ScoringModel, AutoCloseable {
+	private static final String INPUT_IDS = "input_ids";
+	private static final String ATTENTION_MASK = "attention_mask";
+	private static final String TOKEN_TYPE_IDS = "token_type_ids";
+
+	private final OrtEnvironment environment;
+	private final OrtSession session;
+	private final HuggingFaceTokenizer tokenizer;
+	private final boolean withTokenTypes;
+	private final int batchSize;
+	private final Semaphore inferencePermits;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param modelPath the ONNX model file
+	 * @param tokenizerPath the tokenizer.json file of the model
+	 * @param maxSequenceLength the maximum number of tokens of the query and a segment (the segment is truncated)
+	 * @param batchSize the number of segments per inference
+	 * @param inferenceThreads the number of concurrent inferences
+	 */
+	public OnnxCrossEncoderScoringModel(final Path modelPath, final Path tokenizerPath, final int maxSequenceLength, final int batchSize, final int inferenceThreads) {
+		Assertion.check()
+				.isNotNull(modelPath)
+				.isNotNull(tokenizerPath)
+				.isTrue(maxSequenceLength > 0, "maxSequenceLength must be positive")
+				.isTrue(batchSize > 0, "batchSize must be positive")
+				.isTrue(inferenceThreads > 0, "inferenceThreads must be positive");
+		//---
+		this.batchSize = batchSize;
+		inferencePermits = new Semaphore(inferenceThreads);
+		try {
+			tokenizer = HuggingFaceTokenizer.newInstance(tokenizerPath, Map.of(
+					"maxLength", String.valueOf(maxSequenceLength),
+					"truncation", "only_second",
+					"padding", "false"));
+			environment = OrtEnvironment.getEnvironment();
+			try (var options = new OrtSession.SessionOptions()) {
+				options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+				options.setIntraOpNumThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / inferenceThreads));
+				session = environment.createSession(modelPath.toString(), options);
+			}
+			withTokenTypes = session.getInputNames().contains(TOKEN_TYPE_IDS);
+		} catch (final IOException | OrtException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	@Override
+	public Response<List<Double>> scoreAll(final List<TextSegment> segments, final String query) {
+		final var scores = new ArrayList<Double>(segments.size());
+		for (int start = 0; start < segments.size(); start += batchSize) {
+			scores.addAll(scoreBatch(segments.subList(start, Math.min(start + batchSize, segments.size())), query));
+		}
+		return Response.from(scores);
+	}
+
+	private List<Double> scoreBatch(final List<TextSegment> segments, final String query) {
+		final var pairs = new PairList<String, String>(segments.size());
+		segments.forEach(segment -> pairs.add(query, segment.text()));
+		final Encoding[] encodings = tokenizer.batchEncode(pairs);
+
+		// padded to the longest pair of the batch
+		int length = 0;
+		for (final var encoding : encodings) {
+			length = Math.max(length, encoding.getIds().length);
+		}
+		final long[][] inputIds = new long[encodings.length][length];
+		final long[][] attentionMask = new long[encodings.length][length];
+		final long[][] tokenTypeIds = new long[encodings.length][length];
+		for (int i = 0; i < encodings.length; i++) {
+			System.arraycopy(encodings[i].getIds(), 0, inputIds[i], 0, encodings[i].getIds().length);
+			System.arraycopy(encodings[i].getAttentionMask(), 0, attentionMask[i], 0, encodings[i].getAttentionMask().length);
+			System.arraycopy(encodings[i].getTypeIds(), 0, tokenTypeIds[i], 0, encodings[i].getTypeIds().length);
+		}
+
+		inferencePermits.acquireUninterruptibly();
+		try (var inputIdsTensor = OnnxTensor.createTensor(environment, inputIds);
+				var attentionMaskTensor = OnnxTensor.createTensor(environment, attentionMask);
+				var tokenTypeIdsTensor = OnnxTensor.createTensor(environment, tokenTypeIds)) {
+			final Map<String, OnnxTensor> inputs = withTokenTypes
+					? Map.of(INPUT_IDS, inputIdsTensor, ATTENTION_MASK, attentionMaskTensor, TOKEN_TYPE_IDS, tokenTypeIdsTensor)
+					: Map.of(INPUT_IDS, inputIdsTensor, ATTENTION_MASK, attentionMaskTensor);
+			try (var result = session.run(inputs)) {
+				if (!(result.get(0).getValue() instanceof final float[][] logits)) {
+					throw new VSystemException("Unexpected output of the cross-encoder, logits [batch, labels] expected");
+				}
+				final var scores = new ArrayList<Double>(logits.length);
+				for (final var logit : logits) {
+					// one label : sigmoid of its logit, two labels (not relevant, relevant) : softmax of the relevant one
+					final double relevance = logit.length == 1 ? logit[0] : logit[1] - logit[0];
+					scores.add(1d / (1d + Math.exp(-relevance)));
+				}
+				return scores;
+			}
+		} catch (final OrtException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			inferencePermits.release();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			session.close();
+		} catch (final OrtException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			tokenizer.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.util.List;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.filter.MetadataFilterBuilder;
+import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.mmap.Lc4jMmapEmbeddingStore;
+import io.vertigo.datastore.filestore.FileStoreManager;
+import io.vertigo.datastore.filestore.model.FileInfoURI;
+
+public class Lc4jMmapDocumentSource extends Lc4jDocumentSource {
+
+	private final FileStoreManager fileStoreManager;
+	private final Lc4jMmapEmbeddingStore mmapEmbeddingStore;
+
+	Lc4jMmapDocumentSource(final FileStoreManager fileStoreManager, final Lc4jMmapEmbeddingStore embeddingStore, final EmbeddingModel embeddingModel) {
+		super(embeddingStore, embeddingModel);
+		this.fileStoreManager = fileStoreManager;
+		mmapEmbeddingStore = embeddingStore;
+	}
+
+	@Override
+	protected List<EmbeddingMatch<TextSegment>> findSegments(final String fileUrn) {
+		return mmapEmbeddingStore.findAll(MetadataFilterBuilder.metadataKey(FILE_URN_METADATA).isEqualTo(fileUrn));
+	}
+
+	@Override
+	protected VLlmDocument retreriveDocument(final TextSegment segment) {
+		final var metadata = segment.metadata();
+		final var fileUrn = metadata.getString(FILE_URN_METADATA);
+		final var fileInfoURI = FileInfoURI.fromURN(fileUrn);
+		final var fileInfo = fileStoreManager.read(fileInfoURI);
+
+		return new VLlmDocument(fileInfo, metadata.toMap());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return mmapEmbeddingStore.size() == 0;
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * vertigo - application development platform
+ *
+ * Copyright (C) 2013-2024, Vertigo.io, team@vertigo.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertigo.ai.llm.model.rag.VLlmDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.embedding.Lc4jEmbeddingPlugin;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.mmap.Lc4jMmapEmbeddingStore;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.NamedThreadFactory;
+import io.vertigo.core.node.component.Activeable;
+import io.vertigo.core.param.ParamValue;
+import io.vertigo.datastore.filestore.FileStoreManager;
+
+/**
+ * Plugin storing embeddings in memory mapped files, for deployments without PgVector.
+ * <ul>
+ * <li>directory : the directory of the store</li>
+ * <li>segmentCapacity : the number of embeddings per segment file (default {@value #DEFAULT_SEGMENT_CAPACITY})</li>
+ * <li>compactionIntervalSeconds : delay between background compactions (default {@value #DEFAULT_COMPACTION_INTERVAL_SECONDS})</li>
+ * </ul>
+ */
+public final class Lc4jMmapStoragePlugin implements Lc4jStoragePlugin, Activeable {
+	private static final Logger LOG = LogManager.getLogger(Lc4jMmapStoragePlugin.class);
+	private static final int DEFAULT_SEGMENT_CAPACITY = 65_536;
+	private static final int DEFAULT_COMPACTION_INTERVAL_SECONDS = 300;
+
+	private final Path directory;
+	private final int segmentCapacity;
+	private final int compactionIntervalSeconds;
+	private final Lc4jEmbeddingPlugin embeddingPlugin;
+	private final FileStoreManager fileStoreManager;
+
+	private Lc4jMmapEmbeddingStore embeddingStore;
+	private Lc4jMmapDocumentSource documentSource;
+	private ScheduledExecutorService compactionExecutor;
+
+	@Inject
+	public Lc4jMmapStoragePlugin(
+			@ParamValue("directory") final String directory,
+			@ParamValue("segmentCapacity") final Optional<Integer> segmentCapacityOpt,
+			@ParamValue("compactionIntervalSeconds") final Optional<Integer> compactionIntervalSecondsOpt,
+			final Lc4jEmbeddingPlugin embeddingPlugin,
+			final FileStoreManager fileStoreManager) {
+		Assertion.check()
+				.isNotBlank(directory)
+				.isNotNull(embeddingPlugin)
+				.isNotNull(fileStoreManager);
+		//---
+		this.directory = Path.of(directory);
+		segmentCapacity = segmentCapacityOpt.orElse(DEFAULT_SEGMENT_CAPACITY);
+		compactionIntervalSeconds = compactionIntervalSecondsOpt.orElse(DEFAULT_COMPACTION_INTERVAL_SECONDS);
+		this.embeddingPlugin = embeddingPlugin;
+		this.fileStoreManager = fileStoreManager;
+	}
+
+	@Override
+	public void start() {
+		embeddingStore = new Lc4jMmapEmbeddingStore(directory, segmentCapacity);
+		documentSource = new Lc4jMmapDocumentSource(fileStoreManager, embeddingStore, embeddingPlugin.getEmbeddingModel());
+
+		compactionExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("v-lc4j-mmap-compaction-"));
+		compactionExecutor.scheduleWithFixedDelay(this::compact, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void stop() {
+		compactionExecutor.shutdown();
+		try {
+			compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		embeddingStore.close();
+	}
+
+	private void compact() {
+		try {
+			embeddingStore.compact();
+		} catch (final Exception e) {
+			// keep the schedule alive, next compaction will retry
+			LOG.error("Vector store compaction failed", e);
+		}
+	}
+
+	@Override
+	public VLlmDocumentSource getDocumentSource() {
+		return documentSource;
+	}
+}
@@ -0,0 +1,432 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jIngestionPipeline.EmbeddedDocument;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jSegmentCodec;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorEmbeddingStore.VectorPrecision;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * Bulk load of embedded documents with a binary COPY into a staging table, then moved into the store table :
+ * <ul>
+ * <li>replace : the staging table is indexed then swapped with the store table, searches use the previous data until the swap
+ * (segments written in the store table during the load are lost). The staging table is created like the store table with its columns
+ * definitions and check constraints, the other indexes and unique constraints of the store table are built again after the load
+ * (privileges granted on the store table are not kept : grant them again after the load, or to the owner role)</li>
+ * <li>append : the staging table is inserted in the store table, the vector index is dropped and built again after the insert,
+ * even if it fails (the text search index is updated by the insert)</li>
+ * </ul>
+ * Documents are written as they come (write is thread safe), the staging table is dropped if the load is not completed.
+ * One load at a time per table.
+ */
+final class Lc4jPgVectorBulkLoader implements AutoCloseable {
+	private static final byte[] COPY_HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+	private static final byte[] COPY_TRAILER = { (byte) 0xFF, (byte) 0xFF };
+	private static final byte JSONB_VERSION = 1;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final Lc4jPgVectorEmbeddingStore embeddingStore;
+	private final Lc4jPgVectorCatalog catalog;
+	private final boolean replace;
+	private final String stagingTable;
+	private final List<ValueWriter> metadataWriters;
+	private final List<String> columns;
+	private final Connection connection;
+	private final CopyIn copyIn;
+	private final Queue<Lc4jPgVectorCatalog.Entry> catalogEntries = new ConcurrentLinkedQueue<>();
+	private boolean completed;
+
+	/**
+	 * An index or a constraint of the store table, built again on the staging table.
+	 *
+	 * @param name the name in the store table
+	 * @param sql the statement creating it on the staging table, with the placeholder of its temporary name
+	 * @param constraint true for a constraint (renamed with its table), false for an index
+	 */
+	private record SecondaryIndex(String name, String sql, boolean constraint) {
+	}
+
+	@FunctionalInterface
+	private interface ValueWriter {
+		void write(DataOutputStream out, Object value) throws IOException;
+	}
+
+	/**
+	 * Creates the staging table and starts the copy.
+	 *
+	 * @param embeddingStore the store
+	 * @param dataSource the data source of the store
+	 * @param catalog the catalog of the store
+	 * @param replace true to replace the content of the store, false to append to it
+	 */
+	Lc4jPgVectorBulkLoader(final Lc4jPgVectorEmbeddingStore embeddingStore, final Lc4jPgVectorDataSource dataSource, final Lc4jPgVectorCatalog catalog,
+			final boolean replace) {
+		Assertion.check()
+				.isNotNull(embeddingStore)
+				.isNotNull(catalog)
+				.isFalse(dataSource.isInTransaction(), "A bulk load commits by itself, it can't run in a transaction");
+		//---
+		this.embeddingStore = embeddingStore;
+		this.catalog = catalog;
+		this.replace = replace;
+		final var stagingName = unqualifiedTableName() + "_staging";
+		// appended rows only need a session table, a replacing one becomes the store table
+		stagingTable = (replace ? embeddingStore.schemaPrefix() : "pg_temp.") + stagingName;
+		metadataWriters = embeddingStore.isJsonStorage()
+				? List.of(Lc4jPgVectorBulkLoader::writeJsonb)
+				: embeddingStore.getMetadataColumnTypes().stream().map(Lc4jPgVectorBulkLoader::valueWriter).toList();
+
+		final var storedColumns = new ArrayList<String>(List.of("embedding_id", "embedding", "text"));
+		storedColumns.addAll(embeddingStore.getMetadataColumns());
+		columns = List.copyOf(storedColumns);
+		try {
+			connection = dataSource.getConnection();
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+		try {
+			// a previous load may have been interrupted
+			execute("DROP TABLE IF EXISTS " + stagingTable);
+			// a replacing table keeps the generated text search column and check constraints, appended rows get them from the insert.
+			// indexes are built after the load
+			execute(replace
+					? "CREATE TABLE %s (LIKE %s INCLUDING ALL EXCLUDING INDEXES)".formatted(stagingTable, embeddingStore.getTable())
+					: "CREATE TEMPORARY TABLE %s (LIKE %s INCLUDING DEFAULTS)".formatted(stagingTable, embeddingStore.getTable()));
+			copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+					.copyIn("COPY %s (%s) FROM STDIN (FORMAT binary)".formatted(stagingTable, String.join(", ", columns)));
+			copyIn.writeToCopy(COPY_HEADER, 0, COPY_HEADER.length);
+		} catch (final SQLException e) {
+			try {
+				connection.close();
+			} catch (final SQLException closeException) {
+				e.addSuppressed(closeException);
+			}
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	/**
+	 * Writes the segments of a document in the staging table.
+	 *
+	 * @param embeddedDocument the document with its segments and embeddings
+	 */
+	void write(final EmbeddedDocument embeddedDocument) {
+		final var segments = embeddedDocument.segments();
+		final var embeddings = embeddedDocument.embeddings();
+		final var bytes = new ByteArrayOutputStream(segments.size() * 1024);
+		try (var out = new DataOutputStream(bytes)) {
+			for (int i = 0; i < segments.size(); i++) {
+				final var segment = segments.get(i);
+				final var vector = embeddings.get(i).vector();
+				out.writeShort(3 + metadataWriters.size());
+				// embedding_id
+				final var id = UUID.randomUUID();
+				out.writeInt(16);
+				out.writeLong(id.getMostSignificantBits());
+				out.writeLong(id.getLeastSignificantBits());
+				// embedding : pgvector binary format, dimension, unused, values
+				if (embeddingStore.getVectorPrecision() == VectorPrecision.HALF) {
+					out.writeInt(4 + vector.length * Short.BYTES);
+					out.writeShort(vector.length);
+					out.writeShort(0);
+					for (final float value : vector) {
+						out.writeShort(toHalfFloat(value));
+					}
+				} else {
+					out.writeInt(4 + vector.length * Float.BYTES);
+					out.writeShort(vector.length);
+					out.writeShort(0);
+					Lc4jSegmentCodec.writeFloats(out, vector, 0, vector.length);
+				}
+				// text
+				writeBytes(out, segment.text().getBytes(StandardCharsets.UTF_8));
+				// metadata
+				if (embeddingStore.isJsonStorage()) {
+					metadataWriters.get(0).write(out, segment.metadata().toMap());
+				} else {
+					final var metadataColumns = embeddingStore.getMetadataColumns();
+					for (int c = 0; c < metadataColumns.size(); c++) {
+						final var value = segment.metadata().toMap().get(metadataColumns.get(c));
+						if (value == null) {
+							out.writeInt(-1);
+						} else {
+							metadataWriters.get(c).write(out, value);
+						}
+					}
+				}
+			}
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		}
+		// a document is sent at once, rows of concurrent writers are not interleaved
+		synchronized (copyIn) {
+			try {
+				copyIn.writeToCopy(bytes.toByteArray(), 0, bytes.size());
+			} catch (final SQLException e) {
+				throw WrappedException.wrap(e);
+			}
+		}
+		catalogEntries.add(Lc4jPgVectorCatalog.Entry.of(embeddedDocument.document(), segments.size()));
+	}
+
+	/**
+	 * Ends the copy and moves the loaded rows into the store table.
+	 *
+	 * @return the number of loaded segments
+	 */
+	long complete() {
+		try {
+			final long rowCount;
+			synchronized (copyIn) {
+				copyIn.writeToCopy(COPY_TRAILER, 0, COPY_TRAILER.length);
+				rowCount = copyIn.endCopy();
+			}
+			if (replace) {
+				swap();
+			} else {
+				append();
+			}
+			completed = true;
+			return rowCount;
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	// indexes are built once on the loaded data, the store table is only locked for the swap
+	private void swap() throws SQLException {
+		final var tableName = unqualifiedTableName();
+		final var stagingName = tableName + "_staging";
+		execute("ALTER TABLE %s ADD CONSTRAINT %s_pkey PRIMARY KEY (embedding_id)".formatted(stagingTable, stagingName));
+		final var secondaryIndexes = readSecondaryIndexes();
+		for (int i = 0; i < secondaryIndexes.size(); i++) {
+			execute(secondaryIndexes.get(i).sql().formatted(stagingName + "_idx" + i));
+		}
+		if (embeddingStore.hasIndex()) {
+			execute("CREATE INDEX %s_embedding_idx ON %s".formatted(stagingName, embeddingStore.indexDefinition(stagingTable)));
+		}
+		if (embeddingStore.hasTextSearch()) {
+			execute("CREATE INDEX %s_text_search_idx ON %s USING gin (text_search)".formatted(stagingName, stagingTable));
+		}
+		execute("ANALYZE " + stagingTable);
+		inTransaction(() -> {
+			execute("DROP TABLE " + embeddingStore.getTable());
+			execute("ALTER TABLE %s RENAME TO %s".formatted(stagingTable, tableName));
+			execute("ALTER INDEX %s%s_pkey RENAME TO %s_pkey".formatted(embeddingStore.schemaPrefix(), stagingName, tableName));
+			if (embeddingStore.hasIndex()) {
+				execute("ALTER INDEX %s%s_embedding_idx RENAME TO %s".formatted(embeddingStore.schemaPrefix(), stagingName, embeddingStore.indexName()));
+			}
+			if (embeddingStore.hasTextSearch()) {
+				execute("ALTER INDEX %s%s_text_search_idx RENAME TO %s".formatted(embeddingStore.schemaPrefix(), stagingName, embeddingStore.textSearchIndexName()));
+			}
+			for (int i = 0; i < secondaryIndexes.size(); i++) {
+				final var secondaryIndex = secondaryIndexes.get(i);
+				if (secondaryIndex.constraint()) {
+					// renames its index too
+					execute("ALTER TABLE %s RENAME CONSTRAINT %s_idx%d TO %s".formatted(embeddingStore.getTable(), stagingName, i, secondaryIndex.name()));
+				} else {
+					execute("ALTER INDEX %s%s_idx%d RENAME TO %s".formatted(embeddingStore.schemaPrefix(), stagingName, i, secondaryIndex.name()));
+				}
+			}
+			catalog.removeAll(connection);
+			catalog.record(connection, catalogEntries, true);
+		});
+	}
+
+	/*
+	 * Indexes and unique or exclusion constraints added to the store table (by the operator) : its primary key,
+	 * vector and text search indexes are built by the load.
+	 */
+	private List<SecondaryIndex> readSecondaryIndexes() throws SQLException {
+		final var secondaryIndexes = new ArrayList<SecondaryIndex>();
+		final var ownIndexNames = List.of(unqualifiedTableName() + "_pkey", embeddingStore.indexName(), embeddingStore.textSearchIndexName());
+		try (var statement = connection.prepareStatement("""
+				SELECT c.relname, pg_get_indexdef(i.indexrelid), i.indisunique, con.conname, pg_get_constraintdef(con.oid)
+				FROM pg_index i
+				JOIN pg_class c ON c.oid = i.indexrelid
+				LEFT JOIN pg_constraint con ON con.conindid = i.indexrelid AND con.conrelid = i.indrelid
+				WHERE i.indrelid = ?::regclass AND NOT i.indisprimary
+				ORDER BY c.relname
+				""")) {
+			statement.setString(1, embeddingStore.getTable());
+			try (var resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					final var indexName = resultSet.getString(1);
+					if (ownIndexNames.contains(indexName)) {
+						continue;
+					}
+					final var constraintName = resultSet.getString(4);
+					if (constraintName != null) {
+						secondaryIndexes.add(new SecondaryIndex(constraintName,
+								"ALTER TABLE " + stagingTable + " ADD CONSTRAINT %s " + resultSet.getString(5).replace("%", "%%"), true));
+					} else {
+						// the definition after the table name ("USING method (columns) ...") doesn't depend on the table
+						final var definition = resultSet.getString(2);
+						final var using = definition.substring(definition.indexOf(" USING ") + 1).replace("%", "%%");
+						secondaryIndexes.add(new SecondaryIndex(indexName,
+								"CREATE " + (resultSet.getBoolean(3) ? "UNIQUE " : "") + "INDEX %s ON " + stagingTable + " " + using, false));
+					}
+				}
+			}
+		}
+		return secondaryIndexes;
+	}
+
+	// inserting in an HNSW index row by row is much slower than building it
+	private void append() throws SQLException {
+		final boolean indexDropped = embeddingStore.hasIndex();
+		if (indexDropped) {
+			embeddingStore.dropIndex();
+		}
+		try {
+			inTransaction(() -> {
+				// generated columns can't be inserted
+				final var columnList = String.join(", ", columns);
+				execute("INSERT INTO %s (%s) SELECT %2$s FROM %s".formatted(embeddingStore.getTable(), columnList, stagingTable));
+				execute("DROP TABLE " + stagingTable);
+				catalog.record(connection, catalogEntries, true);
+			});
+		} finally {
+			// built again even if the insert failed, else every search would scan the table
+			if (indexDropped) {
+				embeddingStore.createIndex();
+			}
+		}
+		execute("ANALYZE " + embeddingStore.getTable());
+	}
+
+	@Override
+	public void close() {
+		try (connection) {
+			if (!completed) {
+				if (copyIn != null && copyIn.isActive()) {
+					copyIn.cancelCopy();
+				}
+				execute("DROP TABLE IF EXISTS " + stagingTable);
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface SqlOperations {
+		void run() throws SQLException;
+	}
+
+	private void inTransaction(final SqlOperations operations) throws SQLException {
+		connection.setAutoCommit(false);
+		try {
+			operations.run();
+			connection.commit();
+		} catch (final SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private void execute(final String sql) throws SQLException {
+		try (var statement = connection.createStatement()) {
+			statement.executeUpdate(sql);
+		}
+	}
+
+	private String unqualifiedTableName() {
+		final var table = embeddingStore.getTable();
+		return table.substring(table.lastIndexOf('.') + 1).toLowerCase();
+	}
+
+	private static ValueWriter valueWriter(final String columnType) {
+		final var type = columnType.replaceFirst("\\(.*", "");
+		return switch (type) {
+			case "text", "varchar", "character", "char", "bpchar", "json" -> (out, value) -> writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+			case "jsonb" -> Lc4jPgVectorBulkLoader::writeJsonb;
+			case "uuid" -> (out, value) -> {
+				final var uuid = value instanceof final UUID uuidValue ? uuidValue : UUID.fromString(value.toString());
+				out.writeInt(16);
+				out.writeLong(uuid.getMostSignificantBits());
+				out.writeLong(uuid.getLeastSignificantBits());
+			};
+			case "int", "integer", "int4" -> (out, value) -> {
+				out.writeInt(Integer.BYTES);
+				out.writeInt(((Number) value).intValue());
+			};
+			case "bigint", "int8" -> (out, value) -> {
+				out.writeInt(Long.BYTES);
+				out.writeLong(((Number) value).longValue());
+			};
+			case "real", "float4" -> (out, value) -> {
+				out.writeInt(Float.BYTES);
+				out.writeFloat(((Number) value).floatValue());
+			};
+			case "double", "float8" -> (out, value) -> {
+				out.writeInt(Double.BYTES);
+				out.writeDouble(((Number) value).doubleValue());
+			};
+			default -> throw new VSystemException("Metadata column type {0} is not supported by the bulk load", columnType);
+		};
+	}
+
+	private static void writeJsonb(final DataOutputStream out, final Object value) throws IOException {
+		final var json = OBJECT_MAPPER.writeValueAsBytes(value);
+		out.writeInt(json.length + 1);
+		out.writeByte(JSONB_VERSION);
+		out.write(json);
+	}
+
+	/*
+	 * IEEE 754 half precision (halfvec values), rounded to nearest.
+	 * Out of range values become infinite and are rejected by pgvector, embeddings are far below.
+	 */
+	private static short toHalfFloat(final float value) {
+		final int bits = Float.floatToIntBits(value);
+		final int sign = bits >>> 16 & 0x8000;
+		final int magnitude = bits & 0x7fffffff;
+		if (magnitude >= 0x7f800000) {
+			// infinite or NaN
+			return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 : 0));
+		}
+		final int rounded = magnitude + 0x1000;
+		if (rounded >= 0x47800000) {
+			// too large
+			return (short) (sign | 0x7c00);
+		}
+		if (rounded >= 0x38800000) {
+			// normal : rebias the exponent from 127 to 15
+			return (short) (sign | rounded - 0x38000000 >>> 13);
+		}
+		if (magnitude < 0x33000000) {
+			// too small
+			return (short) sign;
+		}
+		// subnormal
+		final int exponent = magnitude >>> 23;
+		final int mantissa = magnitude & 0x7fffff | 0x800000;
+		return (short) (sign | mantissa + (0x800000 >>> exponent - 102) >>> 126 - exponent);
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
@@ -0,0 +1,216 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorStoragePlugin.VDocumentCatalogInfo;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.WrappedException;
+import io.vertigo.datastore.filestore.model.FileInfoURI;
+
+/**
+ * Catalog of the stored documents, one row per file maintained with the segments (in the same transaction),
+ * so documents are listed without scanning the segments.
+ * Table "[embeddings table]_catalog" : file_urn (primary key), file_name, chunk_count, file_hash, ingested_at.
+ */
+final class Lc4jPgVectorCatalog {
+
+	private final Lc4jPgVectorDataSource dataSource;
+	private final Lc4jPgVectorEmbeddingStore embeddingStore;
+	private final String catalogTable;
+
+	/**
+	 * A document to record.
+	 *
+	 * @param fileUrn the urn of the file
+	 * @param fileName the name of the file
+	 * @param chunkCount the number of segments stored
+	 * @param fileHash the fingerprint of the file content
+	 */
+	record Entry(String fileUrn, String fileName, int chunkCount, String fileHash) {
+
+		static Entry of(final VLlmDocument vLlmDocument, final int chunkCount) {
+			final var metadatas = vLlmDocument.metadatas();
+			return new Entry(
+					metadatas.get(Lc4jDocumentSource.FILE_URN_METADATA).toString(),
+					vLlmDocument.fileInfo().getVFile().getFileName(),
+					chunkCount,
+					Objects.toString(metadatas.get(Lc4jDocumentSource.FILE_HASH_METADATA), null));
+		}
+	}
+
+	Lc4jPgVectorCatalog(final Lc4jPgVectorDataSource dataSource, final Lc4jPgVectorEmbeddingStore embeddingStore) {
+		Assertion.check()
+				.isNotNull(dataSource)
+				.isNotNull(embeddingStore);
+		//---
+		this.dataSource = dataSource;
+		this.embeddingStore = embeddingStore;
+		catalogTable = embeddingStore.getTable() + "_catalog";
+	}
+
+	/**
+	 * Creates the catalog table if missing, filled from the stored segments.
+	 *
+	 * @param dropTableFirst true to drop the catalog first
+	 */
+	void createTable(final boolean dropTableFirst) {
+		try (var connection = dataSource.getConnection();
+				var statement = connection.createStatement()) {
+			if (dropTableFirst) {
+				statement.executeUpdate("DROP TABLE IF EXISTS " + catalogTable);
+			}
+			final boolean exists;
+			try (var resultSet = statement.executeQuery("SELECT to_regclass('%s') IS NOT NULL".formatted(catalogTable))) {
+				resultSet.next();
+				exists = resultSet.getBoolean(1);
+			}
+			if (!exists) {
+				statement.executeUpdate("""
+						CREATE TABLE IF NOT EXISTS %s (
+						    file_urn TEXT PRIMARY KEY,
+						    file_name TEXT NULL,
+						    chunk_count INTEGER NOT NULL,
+						    file_hash TEXT NULL,
+						    ingested_at TIMESTAMP WITH TIME ZONE NOT NULL)
+						""".formatted(catalogTable));
+				// documents stored before the catalog existed, scanned once
+				final var fileUrn = metadataExpression(Lc4jDocumentSource.FILE_URN_METADATA);
+				if (fileUrn.isPresent()) {
+					statement.executeUpdate("""
+							INSERT INTO %s (file_urn, file_name, chunk_count, file_hash, ingested_at)
+							SELECT %s, max(%s), count(*), max(%s), now()
+							FROM %s
+							WHERE %2$s IS NOT NULL
+							GROUP BY %2$s
+							""".formatted(catalogTable, fileUrn.get(), metadataExpression("file_name").orElse("NULL"),
+							metadataExpression(Lc4jDocumentSource.FILE_HASH_METADATA).orElse("NULL"), embeddingStore.getTable()));
+				}
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	private Optional<String> metadataExpression(final String key) {
+		if (embeddingStore.isJsonStorage()) {
+			return Optional.of("(%s ->> '%s')".formatted(embeddingStore.getMetadataColumns().get(0), key));
+		}
+		return embeddingStore.getMetadataColumns().contains(key) ? Optional.of(key + "::text") : Optional.empty();
+	}
+
+	/**
+	 * Records documents.
+	 *
+	 * @param entries the documents
+	 * @param addChunks true if the segments are added to the already stored ones, false if they replace them
+	 */
+	void record(final Collection<Entry> entries, final boolean addChunks) {
+		try (var connection = dataSource.getConnection()) {
+			record(connection, entries, addChunks);
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	void record(final Connection connection, final Collection<Entry> entries, final boolean addChunks) throws SQLException {
+		final var sql = """
+				INSERT INTO %s AS c (file_urn, file_name, chunk_count, file_hash, ingested_at)
+				VALUES (?, ?, ?, ?, now())
+				ON CONFLICT (file_urn) DO UPDATE SET
+				    file_name = EXCLUDED.file_name,
+				    chunk_count = %s,
+				    file_hash = EXCLUDED.file_hash,
+				    ingested_at = EXCLUDED.ingested_at
+				""".formatted(catalogTable, addChunks ? "c.chunk_count + EXCLUDED.chunk_count" : "EXCLUDED.chunk_count");
+		try (var statement = connection.prepareStatement(sql)) {
+			for (final var entry : entries) {
+				statement.setString(1, entry.fileUrn());
+				statement.setString(2, entry.fileName());
+				statement.setInt(3, entry.chunkCount());
+				statement.setString(4, entry.fileHash());
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+
+	void remove(final String fileUrn) {
+		try (var connection = dataSource.getConnection();
+				var statement = connection.prepareStatement("DELETE FROM %s WHERE file_urn = ?".formatted(catalogTable))) {
+			statement.setString(1, fileUrn);
+			statement.executeUpdate();
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	void removeAll(final Connection connection) throws SQLException {
+		try (var statement = connection.createStatement()) {
+			statement.executeUpdate("DELETE FROM " + catalogTable);
+		}
+	}
+
+	/**
+	 * Lists documents by urn, a page reads only its rows (keyset pagination on the primary key).
+	 *
+	 * @param fileNameFilter part of the file name (case insensitive)
+	 * @param ingestedSince minimum ingestion date
+	 * @param afterFileUri last document of the previous page
+	 * @param pageSize maximum number of documents
+	 * @return the documents
+	 */
+	List<VDocumentCatalogInfo> find(final Optional<String> fileNameFilter, final Optional<Instant> ingestedSince, final Optional<FileInfoURI> afterFileUri,
+			final int pageSize) {
+		Assertion.check().isTrue(pageSize > 0, "pageSize must be positive");
+		//---
+		final var conditions = new ArrayList<String>();
+		final var parameters = new ArrayList<Object>();
+		afterFileUri.ifPresent(uri -> {
+			conditions.add("file_urn > ?");
+			parameters.add(uri.toURN());
+		});
+		fileNameFilter.ifPresent(fileName -> {
+			conditions.add("file_name ILIKE ?");
+			parameters.add("%" + fileName.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+		});
+		ingestedSince.ifPresent(instant -> {
+			conditions.add("ingested_at >= ?");
+			parameters.add(Timestamp.from(instant));
+		});
+		final var sql = "SELECT file_urn, file_name, chunk_count, file_hash, ingested_at FROM %s %s ORDER BY file_urn LIMIT ?"
+				.formatted(catalogTable, conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions));
+
+		final var result = new ArrayList<VDocumentCatalogInfo>(pageSize);
+		try (var connection = dataSource.getConnection();
+				var statement = connection.prepareStatement(sql)) {
+			int index = 1;
+			for (final var parameter : parameters) {
+				statement.setObject(index++, parameter);
+			}
+			statement.setInt(index, pageSize);
+			try (var resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					result.add(new VDocumentCatalogInfo(
+							FileInfoURI.fromURN(resultSet.getString("file_urn")),
+							resultSet.getString("file_name"),
+							resultSet.getLong("chunk_count"),
+							resultSet.getString("file_hash"),
+							resultSet.getTimestamp("ingested_at").toInstant()));
+				}
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,149 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import io.vertigo.commons.transaction.VTransactionManager;
+import io.vertigo.commons.transaction.VTransactionResourceId;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.database.impl.sql.SqlConnectionProviderPlugin;
+import io.vertigo.database.sql.connection.SqlConnection;
+
+/**
+ * Adapter to use Vertigo connection provider in Lc4j, wired to the VTransactionManager.
+ * <p>
+ * In a transaction, all the store operations use the connection of the transaction (the one used by Vertigo for the same dataSpace) :
+ * Lc4j closing it is ignored, it is committed once with the transaction.
+ * Outside a transaction, each operation gets a connection in auto commit, use {@link #inTransaction(Supplier)} to group operations.
+ */
+final class Lc4jPgVectorDataSource implements DataSource {
+
+	private final SqlConnectionProviderPlugin sqlConnectionProviderPlugin;
+	private final VTransactionManager transactionManager;
+	private final VTransactionResourceId<SqlConnection> connectionResourceId;
+
+	Lc4jPgVectorDataSource(final SqlConnectionProviderPlugin sqlConnectionProviderPlugin, final VTransactionManager transactionManager) {
+		Assertion.check()
+				.isNotNull(sqlConnectionProviderPlugin)
+				.isNotNull(transactionManager);
+		//---
+		this.sqlConnectionProviderPlugin = sqlConnectionProviderPlugin;
+		this.transactionManager = transactionManager;
+		// same resource as the Vertigo sql stores and tasks, so they share the connection of the transaction
+		connectionResourceId = new VTransactionResourceId<>(VTransactionResourceId.Priority.TOP, "Sql-" + sqlConnectionProviderPlugin.getName());
+	}
+
+	/**
+	 * Runs the operations in the current transaction, or in a new one committed at the end.
+	 *
+	 * @param <R> the type of result
+	 * @param operations the store operations
+	 * @return the result of the operations
+	 */
+	<R> R inTransaction(final Supplier<R> operations) {
+		if (transactionManager.hasCurrentTransaction()) {
+			return operations.get();
+		}
+		try (var transaction = transactionManager.createCurrentTransaction()) {
+			final var result = operations.get();
+			transaction.commit();
+			return result;
+		}
+	}
+
+	void inTransaction(final Runnable operations) {
+		inTransaction(() -> {
+			operations.run();
+			return null;
+		});
+	}
+
+	/**
+	 * @return true if the operations use the connection of a transaction
+	 */
+	boolean isInTransaction() {
+		return transactionManager.hasCurrentTransaction();
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (transactionManager.hasCurrentTransaction()) {
+			final var transaction = transactionManager.getCurrentTransaction();
+			var sqlConnection = transaction.getResource(connectionResourceId);
+			if (sqlConnection == null) {
+				sqlConnection = sqlConnectionProviderPlugin.obtainConnection();
+				transaction.addResource(connectionResourceId, sqlConnection);
+			}
+			return transactionBound(sqlConnection.getJdbcConnection());
+		}
+		final var jdbcConnection = sqlConnectionProviderPlugin.obtainConnection().getJdbcConnection();
+		// Lc4j do not commit and is closing the connection, vertigo disable autocommit (which is desirable in a transaction).
+		jdbcConnection.setAutoCommit(true);
+		return jdbcConnection;
+	}
+
+	// the lifecycle of the connection belongs to the transaction
+	private static Connection transactionBound(final Connection jdbcConnection) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> switch (method.getName()) {
+					case "close", "commit", "rollback", "setAutoCommit" -> null;
+					case "isClosed", "getAutoCommit" -> Boolean.FALSE;
+					default -> {
+						try {
+							yield method.invoke(jdbcConnection, args);
+						} catch (final InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		return getConnection();
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -1,30 +1,191 @@
 package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
-import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.MetadataFilterBuilder;
+import io.vertigo.ai.impl.llm.LlmManagerImpl;
 import io.vertigo.ai.llm.model.rag.VLlmDocument;
+import io.vertigo.ai.llm.model.rag.VLlmDocumentSearchResult;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jLruCache;
 import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jIngestionPipeline;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jIngestionPipeline.EmbeddedDocument;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorEmbeddingStore.RecallReport;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorStoragePlugin.VDocumentCatalogInfo;
 import io.vertigo.datastore.filestore.FileStoreManager;
+import io.vertigo.datastore.filestore.model.FileInfo;
 import io.vertigo.datastore.filestore.model.FileInfoURI;
 
 public class Lc4jPgVectorDocumentSource extends Lc4jDocumentSource {
 
 	private final FileStoreManager fileStoreManager;
+	private final Lc4jPgVectorEmbeddingStore pgVectorEmbeddingStore;
+	private final Lc4jPgVectorDataSource dataSource;
+	private final Lc4jPgVectorCatalog catalog;
+	// search results of a file share its FileInfo
+	private final Lc4jLruCache<String, FileInfo> fileInfoCache;
 
-	Lc4jPgVectorDocumentSource(final FileStoreManager fileStoreManager, final PgVectorEmbeddingStore embeddingStore, final EmbeddingModel embeddingModel) {
+	Lc4jPgVectorDocumentSource(final FileStoreManager fileStoreManager, final Lc4jPgVectorEmbeddingStore embeddingStore, final EmbeddingModel embeddingModel,
+			final Lc4jPgVectorDataSource dataSource, final Lc4jPgVectorCatalog catalog, final int fileInfoCacheSize, final Duration fileInfoCacheTtl) {
 		super(embeddingStore, embeddingModel);
 		this.fileStoreManager = fileStoreManager;
+		pgVectorEmbeddingStore = embeddingStore;
+		this.dataSource = dataSource;
+		this.catalog = catalog;
+		fileInfoCache = new Lc4jLruCache<>(fileInfoCacheSize, fileInfoCacheTtl);
+	}
+
+	// one connection and one commit per document, instead of one per store operation
+	@Override
+	public void addDocument(final VLlmDocument vLlmDocument) {
+		dataSource.inTransaction(() -> super.addDocument(vLlmDocument));
+		fileInfoCache.remove(vLlmDocument.metadatas().get(FILE_URN_METADATA).toString());
+	}
+
+	@Override
+	public boolean updateDocument(final VLlmDocument vLlmDocument) {
+		final boolean updated = dataSource.inTransaction(() -> super.updateDocument(vLlmDocument));
+		fileInfoCache.remove(vLlmDocument.metadatas().get(FILE_URN_METADATA).toString());
+		return updated;
+	}
+
+	@Override
+	protected void storeEmbeddedDocument(final EmbeddedDocument embeddedDocument) {
+		dataSource.inTransaction(() -> super.storeEmbeddedDocument(embeddedDocument));
+	}
+
+	@Override
+	public void removeDocument(final FileInfoURI fileInfoURI) {
+		dataSource.inTransaction(() -> {
+			super.removeDocument(fileInfoURI);
+			catalog.remove(fileInfoURI.toURN());
+		});
+		fileInfoCache.remove(fileInfoURI.toURN());
+	}
+
+	@Override
+	protected List<EmbeddingMatch<TextSegment>> findSegments(final String fileUrn) {
+		return pgVectorEmbeddingStore.findAll(MetadataFilterBuilder.metadataKey(FILE_URN_METADATA).isEqualTo(fileUrn));
+	}
+
+	@Override
+	protected void onDocumentAdded(final VLlmDocument vLlmDocument, final int segmentCount) {
+		catalog.record(List.of(Lc4jPgVectorCatalog.Entry.of(vLlmDocument, segmentCount)), true);
+	}
+
+	@Override
+	protected void onDocumentUpdated(final VLlmDocument vLlmDocument, final int segmentCount) {
+		catalog.record(List.of(Lc4jPgVectorCatalog.Entry.of(vLlmDocument, segmentCount)), false);
+	}
+
+	/**
+	 * Lists the stored documents from the catalog, by urn.
+	 *
+	 * @param fileNameFilter part of the file name (case insensitive)
+	 * @param ingestedSince minimum ingestion date
+	 * @param afterFileUri last document of the previous page, empty for the first page
+	 * @param pageSize maximum number of documents
+	 * @return a page of documents
+	 */
+	public List<VDocumentCatalogInfo> findDocuments(final Optional<String> fileNameFilter, final Optional<Instant> ingestedSince, final Optional<FileInfoURI> afterFileUri,
+			final int pageSize) {
+		return catalog.find(fileNameFilter, ingestedSince, afterFileUri, pageSize);
+	}
+
+	/**
+	 * Loads documents in bulk with a binary COPY, much faster than addDocuments for large volumes.
+	 * The documents are visible once all are loaded, nothing is loaded if a document fails.
+	 *
+	 * @param vLlmDocuments the documents to load
+	 * @param config the sizing of the ingestion pipeline
+	 * @param replace true to replace all the stored documents, false to add them
+	 */
+	public void bulkLoad(final Stream<VLlmDocument> vLlmDocuments, final Lc4jIngestionPipeline.Config config, final boolean replace) {
+		getAnalyticsManager().trace(LlmManagerImpl.LLM_CATEGORY, "bulkLoad", tracer -> {
+			try (var bulkLoader = new Lc4jPgVectorBulkLoader(pgVectorEmbeddingStore, dataSource, catalog, replace)) {
+				new Lc4jIngestionPipeline(documentSplitter, embeddingModel, bulkLoader::write, config)
+						.ingest(vLlmDocuments);
+				tracer.setTag("mode", replace ? "replace" : "append");
+				tracer.setMeasure("segments", bulkLoader.complete());
+			}
+		});
+		fileInfoCache.clear();
+		documentsChanged();
+	}
+
+	/**
+	 * Searches with a specific index search parameter, to trade recall for latency per use case.
+	 *
+	 * @param query the query
+	 * @param metadataFilter the metadata filter
+	 * @param maxResults the maximum number of results
+	 * @param minScore the minimum score
+	 * @param efSearchOrProbes hnsw.ef_search for an HNSW index, ivfflat.probes for an IVFFlat index (ignored without index)
+	 * @return the results
+	 */
+	public List<VLlmDocumentSearchResult> search(final String query, final Map<String, Object> metadataFilter, final Integer maxResults, final Double minScore, final int efSearchOrProbes) {
+		return toSearchResults(pgVectorEmbeddingStore.search(toSearchRequest(query, metadataFilter, maxResults, minScore), efSearchOrProbes));
+	}
+
+	/**
+	 * Measures the recall and latency of the vector index against an exact search.
+	 *
+	 * @param queries sample queries
+	 * @param maxResults the number of results of each query
+	 * @param searchEffortValues the hnsw.ef_search or ivfflat.probes values to measure
+	 * @return one report per value
+	 */
+	public List<RecallReport> measureIndexRecall(final List<String> queries, final int maxResults, final List<Integer> searchEffortValues) {
+		final List<Embedding> queryEmbeddings = embeddingModel.embedAll(queries.stream()
+				.map(TextSegment::from)
+				.toList())
+				.content();
+		return pgVectorEmbeddingStore.measureRecall(queryEmbeddings, maxResults, searchEffortValues);
+	}
+
+	@Override
+	protected List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+		return pgVectorEmbeddingStore.lexicalSearch(query, filter, maxResults);
+	}
+
+	// results are mostly segments of a few files : each file is read once per search, then kept in the cache
+	@Override
+	protected List<VLlmDocumentSearchResult> toSearchResults(final EmbeddingSearchResult<TextSegment> searchResult) {
+		final Map<String, FileInfo> fileInfos = new HashMap<>();
+		return searchResult.matches().stream()
+				.map(match -> {
+					final var metadata = match.embedded().metadata();
+					final var fileInfo = fileInfos.computeIfAbsent(metadata.getString(FILE_URN_METADATA), this::readFileInfo);
+					return new VLlmDocumentSearchResult(new VLlmDocument(fileInfo, metadata.toMap()), match.embedded().text(), match.score());
+				})
+				.toList();
 	}
 
 	@Override
 	protected VLlmDocument retreriveDocument(final TextSegment segment) {
 		final var metadata = segment.metadata();
-		final var fileUrn = metadata.getString(FILE_URN_METADATA);
-		final var fileInfoURI = FileInfoURI.fromURN(fileUrn);
-		final var fileInfo = fileStoreManager.read(fileInfoURI);
+		return new VLlmDocument(readFileInfo(metadata.getString(FILE_URN_METADATA)), metadata.toMap());
+	}
 
-		return new VLlmDocument(fileInfo, metadata.toMap());
+	private FileInfo readFileInfo(final String fileUrn) {
+		var fileInfo = fileInfoCache.get(fileUrn);
+		if (fileInfo == null) {
+			fileInfo = fileStoreManager.read(FileInfoURI.fromURN(fileUrn));
+			fileInfoCache.put(fileUrn, fileInfo);
+		}
+		return fileInfo;
 	}
 
 	@Override
@@ -0,0 +1,671 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.postgresql.PGConnection;
+
+import com.pgvector.PGvector;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
+import dev.langchain4j.store.embedding.filter.comparison.IsIn;
+import dev.langchain4j.store.embedding.filter.logical.And;
+import dev.langchain4j.store.embedding.filter.logical.Or;
+import dev.langchain4j.store.embedding.pgvector.MetadataColumDefinition;
+import dev.langchain4j.store.embedding.pgvector.MetadataStorageConfig;
+import dev.langchain4j.store.embedding.pgvector.MetadataStorageMode;
+import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * PgVector store able to search with an approximate (HNSW or IVFFlat) index.
+ * Langchain4j orders results by a computed score, so PostgreSQL can't use a vector index :
+ * searches here order by the cosine distance operator and check the minimum score on the returned rows.
+ * The index search parameter (hnsw.ef_search or ivfflat.probes) is set for the transaction of each search.
+ * <p>
+ * Metadata filters built by the document sources (equality, in, and, or) are translated here, other filters use the langchain4j search.
+ * <p>
+ * With a text search configuration, a generated tsvector column "text_search" and its GIN index are added for lexical searches.
+ * <p>
+ * The vector precision sets the type of the embedding column and of the index (see VectorPrecision),
+ * the column is converted on startup if the precision changed, the index must then be rebuilt (see rebuildIndex).
+ */
+public final class Lc4jPgVectorEmbeddingStore extends PgVectorEmbeddingStore {
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+	private final int dimension;
+	private final VectorPrecision vectorPrecision;
+	private final int rescoreFactor;
+	private final IndexConfig indexConfig;
+	private final Optional<String> textSearchConfigOpt;
+	private final boolean isJsonStorage;
+	private final List<String> metadataColumns;
+	private final List<String> metadataColumnTypes;
+	// set by the super constructor through getConnection, so no initializer
+	private volatile boolean extensionCreated;
+
+	public enum IndexType {
+		NONE, HNSW, IVFFLAT
+	}
+
+	/**
+	 * Storage of the embeddings.
+	 */
+	public enum VectorPrecision {
+		/** vector column : 4 bytes per dimension. */
+		FULL("vector", "vector_cosine_ops"),
+		/** halfvec column : 2 bytes per dimension for the table and the index, the precision loss barely changes the results. */
+		HALF("halfvec", "halfvec_cosine_ops"),
+		/**
+		 * vector column, indexed on its binary quantization (1 bit per dimension, 32 times smaller index) :
+		 * the index returns rescoreFactor times more candidates, ordered again on the full vectors.
+		 * Suited to large dimensions (1000 and more).
+		 */
+		BINARY("vector", "vector_cosine_ops");
+
+		private final String columnType;
+		private final String defaultOpClass;
+
+		VectorPrecision(final String columnType, final String defaultOpClass) {
+			this.columnType = columnType;
+			this.defaultOpClass = defaultOpClass;
+		}
+
+		/**
+		 * @return the default cosine operator class of the column type
+		 */
+		public String defaultOpClass() {
+			return defaultOpClass;
+		}
+	}
+
+	/**
+	 * Recall of the index for one search parameter, compared to an exact search on the stored vectors.
+	 *
+	 * @param searchEffort the hnsw.ef_search or ivfflat.probes value
+	 * @param recall the mean fraction of the exact results found with the index
+	 * @param meanLatencyMicros the mean search time with the index
+	 * @param exactMeanLatencyMicros the mean search time of the exact search
+	 */
+	public record RecallReport(int searchEffort, double recall, double meanLatencyMicros, double exactMeanLatencyMicros) {
+	}
+
+	/**
+	 * Approximate index parameters, see the pgvector documentation.
+	 *
+	 * @param type the type of index
+	 * @param m HNSW : the number of links per node
+	 * @param efConstruction HNSW : the size of the candidate list when building
+	 * @param lists IVFFlat : the number of lists (rows / 1000 is a good start up to 1M rows)
+	 * @param opClass the operator class, must be a cosine one as searches use the cosine distance
+	 * @param efSearch HNSW : the default size of the candidate list when searching
+	 * @param probes IVFFlat : the default number of lists visited when searching
+	 */
+	public record IndexConfig(IndexType type, int m, int efConstruction, int lists, String opClass, int efSearch, int probes) {
+		public IndexConfig {
+			Assertion.check()
+					.isNotNull(type)
+					.isTrue(m > 1, "m must be greater than 1")
+					.isTrue(efConstruction > 0, "efConstruction must be positive")
+					.isTrue(lists > 0, "lists must be positive")
+					.isTrue(opClass.endsWith("_cosine_ops"), "Only cosine operator classes are supported, searches order by cosine distance")
+					.isTrue(efSearch > 0, "efSearch must be positive")
+					.isTrue(probes > 0, "probes must be positive");
+		}
+
+		/**
+		 * @return the pgvector defaults, without index
+		 */
+		public static IndexConfig none() {
+			return new IndexConfig(IndexType.NONE, 16, 64, 100, "vector_cosine_ops", 40, 1);
+		}
+
+		int defaultSearchEffort() {
+			return type == IndexType.IVFFLAT ? probes : efSearch;
+		}
+	}
+
+	Lc4jPgVectorEmbeddingStore(final DataSource dataSource, final String table, final int dimension, final boolean createTable, final boolean dropTableFirst,
+			final MetadataStorageConfig metadataStorageConfig, final IndexConfig indexConfig, final VectorPrecision vectorPrecision, final int rescoreFactor,
+			final Optional<String> textSearchConfigOpt) {
+		super(dataSource, table, dimension, false, null, createTable, dropTableFirst, metadataStorageConfig);
+		Assertion.check()
+				.isNotNull(indexConfig)
+				.isNotNull(vectorPrecision)
+				.isTrue(rescoreFactor > 0, "rescoreFactor must be positive")
+				.isTrue(textSearchConfigOpt.map(config -> IDENTIFIER_PATTERN.matcher(config).matches()).orElse(true), "Invalid text search configuration");
+		//---
+		this.dimension = dimension;
+		this.vectorPrecision = vectorPrecision;
+		this.rescoreFactor = rescoreFactor;
+		this.indexConfig = indexConfig;
+		this.textSearchConfigOpt = textSearchConfigOpt;
+		isJsonStorage = metadataStorageConfig.storageMode() != MetadataStorageMode.COLUMN_PER_KEY;
+		final var columnDefinitions = metadataStorageConfig.columnDefinitions().stream()
+				.map(MetadataColumDefinition::from)
+				.toList();
+		metadataColumns = columnDefinitions.stream().map(MetadataColumDefinition::getName).toList();
+		metadataColumnTypes = columnDefinitions.stream().map(MetadataColumDefinition::getType).toList();
+		alignEmbeddingColumn();
+		createIndex();
+		createTextSearch();
+	}
+
+	String getTable() {
+		return table;
+	}
+
+	boolean isJsonStorage() {
+		return isJsonStorage;
+	}
+
+	List<String> getMetadataColumns() {
+		return metadataColumns;
+	}
+
+	/**
+	 * @return the SQL types of the metadata columns, lower case as declared (varchar(255), double for double precision)
+	 */
+	List<String> getMetadataColumnTypes() {
+		return metadataColumnTypes;
+	}
+
+	/**
+	 * Builds the index again with the current parameters, without blocking searches nor writes :
+	 * a new index is built concurrently, then replaces the current one.
+	 * Useful when parameters change, or for IVFFlat when the data grew a lot since the lists were computed.
+	 */
+	public void rebuildIndex() {
+		Assertion.check().isTrue(hasIndex(), "No vector index configured");
+		//---
+		final var indexName = indexName();
+		final var newIndexName = indexName + "_new";
+		// an interrupted concurrent build leaves an invalid index
+		execute("DROP INDEX CONCURRENTLY IF EXISTS " + schemaPrefix() + newIndexName);
+		execute(createIndexSql(newIndexName));
+		execute("DROP INDEX CONCURRENTLY IF EXISTS " + schemaPrefix() + indexName);
+		execute("ALTER INDEX " + schemaPrefix() + newIndexName + " RENAME TO " + indexName);
+	}
+
+	VectorPrecision getVectorPrecision() {
+		return vectorPrecision;
+	}
+
+	// langchain4j creates a vector column, converted here (once) to the configured type
+	private void alignEmbeddingColumn() {
+		final String columnType;
+		try (var connection = getConnection();
+				var statement = connection.prepareStatement("SELECT format_type(atttypid, atttypmod) FROM pg_attribute WHERE attrelid = to_regclass(?) AND attname = 'embedding'")) {
+			statement.setString(1, table);
+			try (var resultSet = statement.executeQuery()) {
+				columnType = resultSet.next() ? resultSet.getString(1) : null;
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+		if (columnType != null && !columnType.startsWith(vectorPrecision.columnType + "(")) {
+			// the index is built for the previous type
+			dropIndex();
+			execute("ALTER TABLE %s ALTER COLUMN embedding TYPE %s(%d) USING embedding::%2$s(%3$d)".formatted(table, vectorPrecision.columnType, dimension));
+		}
+	}
+
+	boolean hasIndex() {
+		return indexConfig.type() != IndexType.NONE;
+	}
+
+	/**
+	 * Creates the vector index if configured and missing, without blocking searches nor writes.
+	 */
+	void createIndex() {
+		if (hasIndex()) {
+			execute(createIndexSql(indexName()));
+		}
+	}
+
+	/**
+	 * Drops the vector index if any, before a bulk load.
+	 */
+	void dropIndex() {
+		execute("DROP INDEX CONCURRENTLY IF EXISTS " + schemaPrefix() + indexName());
+	}
+
+	String indexName() {
+		return table.substring(table.lastIndexOf('.') + 1).toLowerCase() + "_embedding_idx";
+	}
+
+	String schemaPrefix() {
+		return table.substring(0, table.lastIndexOf('.') + 1);
+	}
+
+	boolean hasTextSearch() {
+		return textSearchConfigOpt.isPresent();
+	}
+
+	// the column is filled once for the existing rows, then computed by PostgreSQL on each write
+	private void createTextSearch() {
+		if (hasTextSearch()) {
+			execute("ALTER TABLE %s ADD COLUMN IF NOT EXISTS text_search tsvector GENERATED ALWAYS AS (to_tsvector('%s'::regconfig, coalesce(text, ''))) STORED"
+					.formatted(table, textSearchConfigOpt.get()));
+			execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s USING gin (text_search)".formatted(textSearchIndexName(), table));
+		}
+	}
+
+	String textSearchIndexName() {
+		return table.substring(table.lastIndexOf('.') + 1).toLowerCase() + "_text_search_idx";
+	}
+
+	private String createIndexSql(final String indexName) {
+		return "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON " + indexDefinition(table);
+	}
+
+	/**
+	 * @param onTable the table to index
+	 * @return the definition of the vector index, after CREATE INDEX name ON
+	 */
+	String indexDefinition(final String onTable) {
+		final var indexedColumn = vectorPrecision == VectorPrecision.BINARY
+				? "(%s) bit_hamming_ops".formatted(quantizedEmbedding())
+				: "embedding " + indexConfig.opClass();
+		return switch (indexConfig.type()) {
+			case HNSW -> "%s USING hnsw (%s) WITH (m = %d, ef_construction = %d)"
+					.formatted(onTable, indexedColumn, indexConfig.m(), indexConfig.efConstruction());
+			case IVFFLAT -> "%s USING ivfflat (%s) WITH (lists = %d)"
+					.formatted(onTable, indexedColumn, indexConfig.lists());
+			case NONE -> throw new VSystemException("No vector index configured");
+		};
+	}
+
+	private String quantizedEmbedding() {
+		return "binary_quantize(embedding)::bit(%d)".formatted(dimension);
+	}
+
+	// langchain4j runs CREATE EXTENSION on every connection, once is enough
+	@Override
+	protected Connection getConnection() throws SQLException {
+		if (!extensionCreated) {
+			final var connection = super.getConnection();
+			extensionCreated = true;
+			return connection;
+		}
+		final var connection = datasource.getConnection();
+		PGvector.addVectorType(connection);
+		if (vectorPrecision == VectorPrecision.HALF) {
+			// halfvec values are read as vectors (same text format)
+			connection.unwrap(PGConnection.class).addDataType("halfvec", PGvector.class);
+		}
+		return connection;
+	}
+
+	// concurrent index operations can't run in a transaction
+	private void execute(final String sql) {
+		try (var connection = getConnection();
+				var statement = connection.createStatement()) {
+			connection.setAutoCommit(true);
+			statement.executeUpdate(sql);
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(final EmbeddingSearchRequest request) {
+		return search(request, indexConfig.defaultSearchEffort());
+	}
+
+	/**
+	 * Searches with a specific index search parameter.
+	 *
+	 * @param request the search request
+	 * @param efSearchOrProbes hnsw.ef_search for an HNSW index, ivfflat.probes for an IVFFlat index (ignored without index)
+	 * @return the matches
+	 */
+	public EmbeddingSearchResult<TextSegment> search(final EmbeddingSearchRequest request, final int efSearchOrProbes) {
+		Assertion.check().isTrue(efSearchOrProbes > 0, "efSearchOrProbes must be positive");
+		//---
+		final var whereClause = new StringBuilder();
+		final var filterParameters = new ArrayList<Object>();
+		if (request.filter() != null && !appendFilter(request.filter(), whereClause, filterParameters)) {
+			return super.search(request);
+		}
+		final var columns = "embedding_id, embedding, text, " + String.join(", ", metadataColumns);
+		final var where = whereClause.isEmpty() ? "" : "WHERE " + whereClause;
+		final var queryVector = new PGvector(request.queryEmbedding().vector());
+		final var parameters = new ArrayList<Object>();
+		parameters.add(queryVector);
+		parameters.addAll(filterParameters);
+		parameters.add(queryVector);
+		final String sql;
+		final int searchEffort;
+		if (vectorPrecision == VectorPrecision.BINARY) {
+			// candidates by hamming distance on the index, ordered again by cosine distance on the full vectors
+			// saturated : maxResults may be Integer.MAX_VALUE (all matches)
+			final int candidateCount = (int) Math.min(Integer.MAX_VALUE, (long) request.maxResults() * rescoreFactor);
+			sql = "SELECT %1$s, embedding <=> ? AS distance FROM (SELECT %1$s FROM %2$s %3$s ORDER BY %4$s <~> binary_quantize(?) LIMIT ?) candidates ORDER BY distance LIMIT ?"
+					.formatted(columns, table, where, quantizedEmbedding());
+			parameters.add(candidateCount);
+			// HNSW returns at most ef_search rows (limited to 1000 by pgvector)
+			searchEffort = indexConfig.type() == IndexType.HNSW ? Math.min(Math.max(efSearchOrProbes, candidateCount), 1000) : efSearchOrProbes;
+		} else {
+			final var vectorParameter = vectorPrecision == VectorPrecision.HALF ? "?::halfvec" : "?";
+			sql = "SELECT %s, embedding <=> %s AS distance FROM %s %s ORDER BY embedding <=> %2$s LIMIT ?"
+					.formatted(columns, vectorParameter, table, where);
+			searchEffort = efSearchOrProbes;
+		}
+		parameters.add(request.maxResults());
+
+		try (var connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				setSearchParameter(connection, searchEffort);
+				final var matches = new ArrayList<EmbeddingMatch<TextSegment>>();
+				try (var statement = connection.prepareStatement(sql)) {
+					int index = 1;
+					for (final var parameter : parameters) {
+						statement.setObject(index++, parameter);
+					}
+					try (var resultSet = statement.executeQuery()) {
+						while (resultSet.next()) {
+							// same relevance score as langchain4j
+							final double score = (2d - resultSet.getDouble("distance")) / 2d;
+							if (score >= request.minScore()) {
+								matches.add(toMatch(resultSet, score));
+							}
+						}
+					}
+				}
+				connection.commit();
+				return new EmbeddingSearchResult<>(matches);
+			} catch (final SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	/**
+	 * Lexical search on the text search column, ranked with ts_rank_cd.
+	 * The query is parsed by websearch_to_tsquery (words, "quoted phrases", or, -excluded).
+	 *
+	 * @param query the query text
+	 * @param filter the metadata filter, null for none
+	 * @param maxResults the maximum number of results
+	 * @return the matches scored by rank (not a relevance score in [0, 1]), empty without text search or with an unsupported filter
+	 */
+	public List<EmbeddingMatch<TextSegment>> lexicalSearch(final String query, final Filter filter, final int maxResults) {
+		if (!hasTextSearch()) {
+			return List.of();
+		}
+		final var whereClause = new StringBuilder("text_search @@ query");
+		final var parameters = new ArrayList<Object>();
+		if (filter != null) {
+			whereClause.append(" AND (");
+			if (!appendFilter(filter, whereClause, parameters)) {
+				return List.of();
+			}
+			whereClause.append(')');
+		}
+		final var sql = "SELECT embedding_id, embedding, text, %s, ts_rank_cd(text_search, query) AS rank FROM %s, websearch_to_tsquery('%s'::regconfig, ?) query WHERE %s ORDER BY rank DESC LIMIT ?"
+				.formatted(String.join(", ", metadataColumns), table, textSearchConfigOpt.get(), whereClause);
+
+		try (var connection = getConnection();
+				var statement = connection.prepareStatement(sql)) {
+			int index = 1;
+			statement.setString(index++, query);
+			for (final var parameter : parameters) {
+				statement.setObject(index++, parameter);
+			}
+			statement.setInt(index, maxResults);
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>();
+			try (var resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					matches.add(toMatch(resultSet, resultSet.getDouble("rank")));
+				}
+			}
+			return matches;
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	/**
+	 * Lists all the segments matching a filter, without the vector index (not truncated by hnsw.ef_search).
+	 *
+	 * @param filter the filter
+	 * @return the matching segments (score is 1)
+	 */
+	public List<EmbeddingMatch<TextSegment>> findAll(final Filter filter) {
+		Assertion.check().isNotNull(filter);
+		//---
+		final var whereClause = new StringBuilder();
+		final var parameters = new ArrayList<Object>();
+		if (!appendFilter(filter, whereClause, parameters)) {
+			throw new VSystemException("Unsupported filter on table {0} : {1}", table, filter);
+		}
+		final var sql = "SELECT embedding_id, embedding, text, %s FROM %s WHERE %s"
+				.formatted(String.join(", ", metadataColumns), table, whereClause);
+
+		try (var connection = getConnection();
+				var statement = connection.prepareStatement(sql)) {
+			int index = 1;
+			for (final var parameter : parameters) {
+				statement.setObject(index++, parameter);
+			}
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>();
+			try (var resultSet = statement.executeQuery()) {
+				while (resultSet.next()) {
+					matches.add(toMatch(resultSet, 1d));
+				}
+			}
+			return matches;
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	/**
+	 * Measures the recall and latency of the vector index against an exact search, for several search parameters.
+	 * The exact search reads the stored vectors without index : with HALF precision it measures the index loss only,
+	 * with BINARY precision the loss of the quantized index after rescoring.
+	 *
+	 * @param queries the query embeddings, ideally representative of real queries
+	 * @param maxResults the number of results of each query
+	 * @param searchEffortValues the hnsw.ef_search or ivfflat.probes values to measure
+	 * @return one report per value
+	 */
+	public List<RecallReport> measureRecall(final List<Embedding> queries, final int maxResults, final List<Integer> searchEffortValues) {
+		Assertion.check()
+				.isTrue(hasIndex(), "Recall can only be measured with a vector index")
+				.isFalse(queries.isEmpty(), "At least one query is needed")
+				.isTrue(maxResults > 0, "maxResults must be positive");
+		//---
+		final var exactIds = new ArrayList<Set<String>>(queries.size());
+		long exactNanos = 0;
+		for (final var query : queries) {
+			final long start = System.nanoTime();
+			exactIds.add(exactSearchIds(query, maxResults));
+			exactNanos += System.nanoTime() - start;
+		}
+
+		final var reports = new ArrayList<RecallReport>(searchEffortValues.size());
+		for (final int searchEffort : searchEffortValues) {
+			long nanos = 0;
+			double recallSum = 0;
+			for (int i = 0; i < queries.size(); i++) {
+				final var request = EmbeddingSearchRequest.builder()
+						.queryEmbedding(queries.get(i))
+						.maxResults(maxResults)
+						.build();
+				final long start = System.nanoTime();
+				final var matches = search(request, searchEffort).matches();
+				nanos += System.nanoTime() - start;
+				final var expected = exactIds.get(i);
+				final long found = matches.stream()
+						.filter(match -> expected.contains(match.embeddingId()))
+						.count();
+				recallSum += expected.isEmpty() ? 1d : (double) found / expected.size();
+			}
+			reports.add(new RecallReport(searchEffort, recallSum / queries.size(),
+					nanos / 1000d / queries.size(),
+					exactNanos / 1000d / queries.size()));
+		}
+		return reports;
+	}
+
+	private Set<String> exactSearchIds(final Embedding query, final int maxResults) {
+		try (var connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				final var ids = new HashSet<String>();
+				try (var statement = connection.createStatement()) {
+					statement.execute("SET LOCAL enable_indexscan = off");
+				}
+				try (var statement = connection.prepareStatement("SELECT embedding_id FROM %s ORDER BY embedding::vector <=> ? LIMIT ?".formatted(table))) {
+					statement.setObject(1, new PGvector(query.vector()));
+					statement.setInt(2, maxResults);
+					try (var resultSet = statement.executeQuery()) {
+						while (resultSet.next()) {
+							ids.add(resultSet.getString(1));
+						}
+					}
+				}
+				connection.commit();
+				return ids;
+			} catch (final SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (final SQLException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	// SET LOCAL lasts until the end of the transaction, pooled connections are not affected
+	private void setSearchParameter(final Connection connection, final int efSearchOrProbes) throws SQLException {
+		final String setting = switch (indexConfig.type()) {
+			case HNSW -> "hnsw.ef_search";
+			case IVFFLAT -> "ivfflat.probes";
+			case NONE -> null;
+		};
+		if (setting != null) {
+			try (var statement = connection.createStatement()) {
+				statement.execute("SET LOCAL " + setting + " = " + efSearchOrProbes);
+			}
+		}
+	}
+
+	private EmbeddingMatch<TextSegment> toMatch(final ResultSet resultSet, final double score) throws SQLException {
+		final var embedding = Embedding.from(((PGvector) resultSet.getObject("embedding")).toArray());
+		final var text = resultSet.getString("text");
+		final var textSegment = text == null || text.isEmpty() ? null : TextSegment.from(text, readMetadata(resultSet));
+		return new EmbeddingMatch<>(score, resultSet.getString("embedding_id"), embedding, textSegment);
+	}
+
+	private Metadata readMetadata(final ResultSet resultSet) throws SQLException {
+		if (isJsonStorage) {
+			final var json = resultSet.getString(metadataColumns.get(0));
+			try {
+				return json == null ? new Metadata() : Metadata.from(OBJECT_MAPPER.readValue(json, Map.class));
+			} catch (final JsonProcessingException e) {
+				throw WrappedException.wrap(e);
+			}
+		}
+		final Map<String, Object> metadata = new HashMap<>();
+		for (final var column : metadataColumns) {
+			final var value = resultSet.getObject(column);
+			if (value != null) {
+				metadata.put(column, value);
+			}
+		}
+		return Metadata.from(metadata);
+	}
+
+	/*
+	 * Appends the SQL condition of a filter with bind parameters, returns false if the filter is not supported.
+	 * Keys are written as literals so the metadata indexes (on columns or on metadata->>'key') can be used.
+	 */
+	private boolean appendFilter(final Filter filter, final StringBuilder sql, final List<Object> parameters) {
+		if (filter instanceof final IsEqualTo isEqualTo) {
+			return appendComparison(isEqualTo.key(), List.of(isEqualTo.comparisonValue()), sql, parameters);
+		} else if (filter instanceof final IsIn isIn) {
+			return appendComparison(isIn.key(), isIn.comparisonValues(), sql, parameters);
+		} else if (filter instanceof final And and) {
+			return appendLogical(and.left(), "AND", and.right(), sql, parameters);
+		} else if (filter instanceof final Or or) {
+			return appendLogical(or.left(), "OR", or.right(), sql, parameters);
+		}
+		return false;
+	}
+
+	private boolean appendLogical(final Filter left, final String operator, final Filter right, final StringBuilder sql, final List<Object> parameters) {
+		sql.append('(');
+		if (!appendFilter(left, sql, parameters)) {
+			return false;
+		}
+		sql.append(") ").append(operator).append(" (");
+		if (!appendFilter(right, sql, parameters)) {
+			return false;
+		}
+		sql.append(')');
+		return true;
+	}
+
+	private boolean appendComparison(final String key, final Collection<?> values, final StringBuilder sql, final List<Object> parameters) {
+		if (!IDENTIFIER_PATTERN.matcher(key).matches() || values.isEmpty()) {
+			return false;
+		}
+		final boolean numeric = values.stream().allMatch(Number.class::isInstance);
+		if (isJsonStorage) {
+			sql.append((numeric ? "(%s ->> '%s')::numeric" : "(%s ->> '%s')").formatted(metadataColumns.get(0), key));
+		} else if (metadataColumns.contains(key)) {
+			sql.append(key);
+		} else {
+			return false;
+		}
+		sql.append(" IN (");
+		String separator = "";
+		for (final var value : values) {
+			sql.append(separator).append('?');
+			separator = ", ";
+			if (numeric) {
+				parameters.add(new BigDecimal(value.toString()));
+			} else {
+				// json values are compared as text, columns with their own type
+				parameters.add(isJsonStorage ? value.toString() : value);
+			}
+		}
+		sql.append(')');
+		return true;
+	}
+}
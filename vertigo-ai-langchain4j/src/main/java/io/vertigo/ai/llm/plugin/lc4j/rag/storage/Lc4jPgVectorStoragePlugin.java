@@ -17,26 +17,30 @@
  */
 package io.vertigo.ai.llm.plugin.lc4j.rag.storage;
 
-import java.io.PrintWriter;
-import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.SQLFeatureNotSupportedException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
-import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
-import javax.sql.DataSource;
 
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.store.embedding.pgvector.DefaultMetadataStorageConfig;
+import dev.langchain4j.store.embedding.pgvector.MetadataStorageConfig;
 import dev.langchain4j.store.embedding.pgvector.MetadataStorageMode;
-import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import io.vertigo.ai.llm.model.rag.VLlmDocument;
 import io.vertigo.ai.llm.model.rag.VLlmDocumentSource;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jIngestionPipeline;
 import io.vertigo.ai.llm.plugin.lc4j.rag.embedding.Lc4jEmbeddingPlugin;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorEmbeddingStore.IndexConfig;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorEmbeddingStore.IndexType;
+import io.vertigo.ai.llm.plugin.lc4j.rag.storage.Lc4jPgVectorEmbeddingStore.VectorPrecision;
+import io.vertigo.commons.transaction.VTransactionManager;
 import io.vertigo.core.lang.Assertion;
 import io.vertigo.core.lang.VSystemException;
 import io.vertigo.core.lang.WrappedException;
@@ -48,14 +52,44 @@ import io.vertigo.datastore.filestore.model.FileInfoURI;
 
 /**
  * Plugin to use PgVector as data store for embeddings.
+ * With metadataColumns (COLUMN_PER_KEY storage), add "file_hash" and "chunk_hash" columns to benefit from incremental updates
+ * (see Lc4jDocumentSource.updateDocument), otherwise updated documents are fully re-embedded.
+ * <p>
+ * With indexType (hnsw or ivfflat), an approximate vector index is created if missing, params (pgvector defaults if not set) :
+ * <ul>
+ * <li>hnswM, hnswEfConstruction : build parameters of an HNSW index</li>
+ * <li>ivfflatLists : number of lists of an IVFFlat index</li>
+ * <li>indexOpClass : operator class, a cosine one (default vector_cosine_ops)</li>
+ * <li>hnswEfSearch, ivfflatProbes : default search parameter, can be set per search (see Lc4jPgVectorDocumentSource.search)</li>
+ * </ul>
+ * Changed build parameters are applied by {@link #rebuildIndex()}.
+ * <p>
+ * vectorPrecision sets the storage of the embeddings (see VectorPrecision) : full (default), half (halfvec, half the size of the table and index)
+ * or binary (index on the binary quantization, results rescored on binaryRescoreFactor times more candidates, default 4).
+ * The column is converted on startup when the precision changes, the index must then be rebuilt.
+ * The loss can be checked with {@link Lc4jPgVectorDocumentSource#measureIndexRecall(List, int, List)}.
+ * <p>
+ * With textSearchConfig (a PostgreSQL text search configuration such as french, english or simple), segments are also indexed
+ * for lexical searches (generated tsvector column and GIN index), used by hybrid retrieval.
+ * <p>
+ * Store operations use the connection of the current transaction (see Lc4jPgVectorDataSource),
+ * adding or updating a document outside a transaction runs in its own transaction, committed once.
+ * Large loads should use {@link #bulkLoad(Stream, boolean)}.
+ * <p>
+ * FileInfo of search results are read once per file and kept in a cache : fileInfoCacheSize files (default 1000)
+ * during fileInfoCacheTtlSeconds (default 300).
+ * <p>
+ * Stored documents are listed from a catalog table "[tableName]_catalog", created on startup if missing (whatever createTable)
+ * and filled from the existing segments on creation.
  *
  * @author skerdudou
  */
 public final class Lc4jPgVectorStoragePlugin implements Lc4jStoragePlugin {
 
-	private final DataSource dataSource;
+	private final Lc4jPgVectorDataSource dataSource;
 	private final String tableName;
 	private final boolean isJsonbStorage;
+	private final Lc4jPgVectorEmbeddingStore embeddingStore;
 	private final Lc4jPgVectorDocumentSource documentSource;
 	private final EmbeddingModel embeddingModel;
 
@@ -66,13 +100,27 @@ public final class Lc4jPgVectorStoragePlugin implements Lc4jStoragePlugin {
 			@ParamValue("metadataColumns") final Optional<String> metadataColumnsString,
 			@ParamValue("createTable") final Optional<Boolean> createTable,
 			@ParamValue("dropTableFirst") final Optional<Boolean> dropTableFirst,
+			@ParamValue("indexType") final Optional<String> indexTypeOpt,
+			@ParamValue("hnswM") final Optional<Integer> hnswMOpt,
+			@ParamValue("hnswEfConstruction") final Optional<Integer> hnswEfConstructionOpt,
+			@ParamValue("hnswEfSearch") final Optional<Integer> hnswEfSearchOpt,
+			@ParamValue("ivfflatLists") final Optional<Integer> ivfflatListsOpt,
+			@ParamValue("ivfflatProbes") final Optional<Integer> ivfflatProbesOpt,
+			@ParamValue("indexOpClass") final Optional<String> indexOpClassOpt,
+			@ParamValue("vectorPrecision") final Optional<String> vectorPrecisionOpt,
+			@ParamValue("binaryRescoreFactor") final Optional<Integer> binaryRescoreFactorOpt,
+			@ParamValue("textSearchConfig") final Optional<String> textSearchConfigOpt,
+			@ParamValue("fileInfoCacheSize") final Optional<Integer> fileInfoCacheSizeOpt,
+			@ParamValue("fileInfoCacheTtlSeconds") final Optional<Integer> fileInfoCacheTtlSecondsOpt,
 			final Lc4jEmbeddingPlugin embeddingPlugin,
 			final FileStoreManager fileStoreManager,
+			final VTransactionManager transactionManager,
 			final List<SqlConnectionProviderPlugin> sqlConnectionProviderPlugins) {
 
 		Assertion.check()
 				.isNotNull(embeddingPlugin)
-				.isNotNull(fileStoreManager);
+				.isNotNull(fileStoreManager)
+				.isNotNull(transactionManager);
 		//---
 		final List<String> metadataColumns = metadataColumnsString.map(s -> List.of(s.split(";"))).orElse(Collections.emptyList());
 
@@ -81,35 +129,47 @@ public final class Lc4jPgVectorStoragePlugin implements Lc4jStoragePlugin {
 				.filter(p -> p.getName().equals(dataSpace))
 				.findAny()
 				.orElseThrow(() -> new VSystemException("No connection provider found for dataSpace : {0}", dataSpace));
-		dataSource = new DatasourceAdapter(sqlProvider);
+		dataSource = new Lc4jPgVectorDataSource(sqlProvider, transactionManager);
 
 		embeddingModel = embeddingPlugin.getEmbeddingModel();
 
 		tableName = tableNameOpt.orElse("V_LLM_EMBEDDINGS");
-		final var embeddingStoreBuilder = PgVectorEmbeddingStore.datasourceBuilder()
-				.datasource(dataSource)
-				.table(tableName)
-				.dimension(embeddingModel.dimension())
-				.createTable(createTable.orElse(Boolean.FALSE))
-				.dropTableFirst(dropTableFirst.orElse(Boolean.FALSE));
-
+		final MetadataStorageConfig metadataStorageConfig;
 		if (metadataColumns.isEmpty()) {
 			isJsonbStorage = true;
-			embeddingStoreBuilder.metadataStorageConfig(DefaultMetadataStorageConfig.builder()
+			metadataStorageConfig = DefaultMetadataStorageConfig.builder()
 					.storageMode(MetadataStorageMode.COMBINED_JSONB)
 					.columnDefinitions(Collections.singletonList("metadata JSONB NULL"))
-					.build());
+					.build();
 		} else {
 			isJsonbStorage = false;
-			embeddingStoreBuilder.metadataStorageConfig(DefaultMetadataStorageConfig.builder()
+			metadataStorageConfig = DefaultMetadataStorageConfig.builder()
 					.storageMode(MetadataStorageMode.COLUMN_PER_KEY)
 					.columnDefinitions(metadataColumns)
-					.build());
+					.build();
 		}
 
-		final PgVectorEmbeddingStore embeddingStore = embeddingStoreBuilder.build();
+		final var vectorPrecision = vectorPrecisionOpt.map(precision -> VectorPrecision.valueOf(precision.toUpperCase())).orElse(VectorPrecision.FULL);
+		final var defaultIndexConfig = IndexConfig.none();
+		final var indexConfig = new IndexConfig(
+				indexTypeOpt.map(type -> IndexType.valueOf(type.toUpperCase())).orElse(IndexType.NONE),
+				hnswMOpt.orElse(defaultIndexConfig.m()),
+				hnswEfConstructionOpt.orElse(defaultIndexConfig.efConstruction()),
+				ivfflatListsOpt.orElse(defaultIndexConfig.lists()),
+				indexOpClassOpt.orElse(vectorPrecision.defaultOpClass()),
+				hnswEfSearchOpt.orElse(defaultIndexConfig.efSearch()),
+				ivfflatProbesOpt.orElse(defaultIndexConfig.probes()));
+
+		embeddingStore = new Lc4jPgVectorEmbeddingStore(dataSource, tableName, embeddingModel.dimension(),
+				createTable.orElse(Boolean.FALSE), dropTableFirst.orElse(Boolean.FALSE), metadataStorageConfig, indexConfig,
+				vectorPrecision, binaryRescoreFactorOpt.orElse(4), textSearchConfigOpt);
+
+		// the catalog is written by every store operation : created if missing, even when the embeddings table is not managed here
+		final var catalog = new Lc4jPgVectorCatalog(dataSource, embeddingStore);
+		catalog.createTable(createTable.orElse(Boolean.FALSE) && dropTableFirst.orElse(Boolean.FALSE));
 
-		documentSource = new Lc4jPgVectorDocumentSource(fileStoreManager, embeddingStore, embeddingModel);
+		documentSource = new Lc4jPgVectorDocumentSource(fileStoreManager, embeddingStore, embeddingModel, dataSource, catalog,
+				fileInfoCacheSizeOpt.orElse(1000), Duration.ofSeconds(fileInfoCacheTtlSecondsOpt.orElse(300)));
 	}
 
 	@Override
@@ -118,7 +178,43 @@ public final class Lc4jPgVectorStoragePlugin implements Lc4jStoragePlugin {
 	}
 
 	/**
-	 * Get all known documents in storage, usefull for demo purpose but should not be used in production.
+	 * Rebuilds the vector index online with the current parameters (searches and writes are not blocked).
+	 * Concurrent index builds can't run in a transaction.
+	 */
+	public void rebuildIndex() {
+		Assertion.check().isFalse(dataSource.isInTransaction(), "The vector index can't be rebuilt in a transaction");
+		//---
+		embeddingStore.rebuildIndex();
+	}
+
+	/**
+	 * Loads documents in bulk through a staging table filled by a binary COPY, the vector index is built once at the end.
+	 * Use it for initial loads and full reloads, addDocument(s) for incremental changes.
+	 *
+	 * @param vLlmDocuments the documents to load
+	 * @param replace true to replace all the stored documents (swapped at the end, searches are served meanwhile), false to add them
+	 */
+	public void bulkLoad(final Stream<VLlmDocument> vLlmDocuments, final boolean replace) {
+		documentSource.bulkLoad(vLlmDocuments, Lc4jIngestionPipeline.Config.defaults(), replace);
+	}
+
+	/**
+	 * Lists the stored documents from the catalog, ordered by urn.
+	 * Pages are read with the last document of the previous page, so a page costs its own size whatever the position.
+	 *
+	 * @param fileNameFilter part of the file name (case insensitive)
+	 * @param ingestedSince minimum ingestion date
+	 * @param afterFileUri last document of the previous page, empty for the first page
+	 * @param pageSize maximum number of documents
+	 * @return a page of documents
+	 */
+	public List<VDocumentCatalogInfo> findDocuments(final Optional<String> fileNameFilter, final Optional<Instant> ingestedSince, final Optional<FileInfoURI> afterFileUri,
+			final int pageSize) {
+		return documentSource.findDocuments(fileNameFilter, ingestedSince, afterFileUri, pageSize);
+	}
+
+	/**
+	 * Get all known documents in storage, usefull for demo purpose but should not be used in production (use findDocuments).
 	 *
 	 * @return a list of DocumentInfo
 	 */
@@ -162,65 +258,6 @@ public final class Lc4jPgVectorStoragePlugin implements Lc4jStoragePlugin {
 	public static record VDocumentInfo(FileInfoURI fileInfoURI, String fileName, Long chunkCount) {
 	}
 
-	/**
-	 * Workaround to use Vertigo connection provider in Lc4j.
-	 */
-	private static class DatasourceAdapter implements DataSource {
-
-		private final SqlConnectionProviderPlugin sqlConnectionProviderPlugin;
-
-		public DatasourceAdapter(final SqlConnectionProviderPlugin sqlConnectionProviderPlugin) {
-			this.sqlConnectionProviderPlugin = sqlConnectionProviderPlugin;
-		}
-
-		@Override
-		public Connection getConnection() throws SQLException {
-			final var jdbcConnection = sqlConnectionProviderPlugin.obtainConnection().getJdbcConnection();
-			// Lc4j do not commit and is closing the connection, vertigo disable autocomit (which is desirable).
-			// If we want to avoid auto commit, we need to wrap the connection in order to wire it's lifecycle to the VTransactionManager.
-			jdbcConnection.setAutoCommit(true);
-			return jdbcConnection;
-		}
-
-		@Override
-		public Connection getConnection(final String username, final String password) throws SQLException {
-			return getConnection();
-		}
-
-		@Override
-		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public <T> T unwrap(final Class<T> iface) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public boolean isWrapperFor(final Class<?> iface) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public PrintWriter getLogWriter() throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void setLogWriter(final PrintWriter out) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public void setLoginTimeout(final int seconds) throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
-		@Override
-		public int getLoginTimeout() throws SQLException {
-			throw new UnsupportedOperationException();
-		}
-
+	public static record VDocumentCatalogInfo(FileInfoURI fileInfoURI, String fileName, Long chunkCount, String fileHash, Instant ingestDate) {
 	}
 }
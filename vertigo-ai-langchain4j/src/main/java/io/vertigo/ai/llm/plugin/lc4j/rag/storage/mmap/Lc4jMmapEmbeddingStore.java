@@ -0,0 +1,551 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage.mmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.TopKCollector;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.VectorMath;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.lang.VSystemException;
+import io.vertigo.core.lang.WrappedException;
+
+/**
+ * Embedding store persisted in a directory of append-only, memory mapped segments (see {@link MmapSegment}).
+ * <ul>
+ * <li>manifest : the next segment seq then the list of live segments, rewritten atomically (a seq is never reused)</li>
+ * <li>tombstones.log : (segment, slot) of deleted entries, appended on each delete</li>
+ * </ul>
+ * Opening the store only maps the files, vectors are paged in by the OS when searched.
+ * Entries are appended to the last segment, a new one is created when it is full.
+ * {@link #compact()} merges the sealed segments with less than half live entries.
+ */
+public final class Lc4jMmapEmbeddingStore implements EmbeddingStore<TextSegment>, AutoCloseable {
+	private static final Logger LOG = LogManager.getLogger(Lc4jMmapEmbeddingStore.class);
+	private static final String MANIFEST = "manifest";
+	private static final String NEXT_SEQ_PREFIX = "next=";
+	private static final String TOMBSTONES = "tombstones.log";
+
+	private final Path directory;
+	private final int segmentCapacity;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Lock compactionLock = new ReentrantLock();
+	private final List<MmapSegment> segments = new ArrayList<>(); // the last one is the active segment
+	private int dimension = -1; // known with the first embedding or the first segment
+	private int nextSeq;
+	private DataOutputStream tombstoneLog;
+
+	private record SlotRef(MmapSegment segment, int slot) {
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory the directory of the store, created if needed
+	 * @param segmentCapacity the number of entries of each segment
+	 */
+	public Lc4jMmapEmbeddingStore(final Path directory, final int segmentCapacity) {
+		Assertion.check()
+				.isNotNull(directory)
+				.isTrue(segmentCapacity > 0, "segmentCapacity must be positive");
+		//---
+		this.directory = directory;
+		this.segmentCapacity = segmentCapacity;
+		try {
+			Files.createDirectories(directory);
+			open();
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		}
+	}
+
+	private void open() throws IOException {
+		final var manifestPath = directory.resolve(MANIFEST);
+		final var liveSeqs = new HashSet<Integer>();
+		if (Files.exists(manifestPath)) {
+			for (final var line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+				if (line.startsWith(NEXT_SEQ_PREFIX)) {
+					nextSeq = Math.max(nextSeq, Integer.parseInt(line.substring(NEXT_SEQ_PREFIX.length()).trim()));
+				} else if (!line.isBlank()) {
+					final int seq = Integer.parseInt(line.trim());
+					final var segment = MmapSegment.open(directory, seq);
+					segments.add(segment);
+					liveSeqs.add(seq);
+					nextSeq = Math.max(nextSeq, seq + 1);
+					dimension = segment.dimension();
+				}
+			}
+		}
+		// files not in the manifest are leftovers of an interrupted compaction
+		try (Stream<Path> files = Files.list(directory)) {
+			for (final var file : files.toList()) {
+				final var seq = parseSeq(file);
+				if (seq >= 0) {
+					nextSeq = Math.max(nextSeq, seq + 1);
+					if (!liveSeqs.contains(seq)) {
+						Files.delete(file);
+					}
+				}
+			}
+		}
+
+		final var tombstonesPath = directory.resolve(TOMBSTONES);
+		boolean staleTombstones = false;
+		if (Files.exists(tombstonesPath)) {
+			try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tombstonesPath)))) {
+				while (true) {
+					final int seq = in.readInt();
+					final int slot = in.readInt();
+					final var segmentOpt = segments.stream()
+							.filter(segment -> segment.seq() == seq)
+							.findFirst();
+					if (segmentOpt.isPresent()) {
+						segmentOpt.get().tombstones().set(slot);
+					} else {
+						staleTombstones = true; // segment compacted away
+					}
+				}
+			} catch (final EOFException e) {
+				// end of log (a truncated last record is ignored)
+			}
+		}
+		tombstoneLog = openTombstoneLog(tombstonesPath);
+		if (staleTombstones) {
+			rewriteTombstoneLog(segments);
+		}
+	}
+
+	private static DataOutputStream openTombstoneLog(final Path tombstonesPath) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tombstonesPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+	}
+
+	private static int parseSeq(final Path file) {
+		final var name = file.getFileName().toString();
+		final int dot = name.indexOf('.');
+		if (dot <= 0 || !(name.endsWith(".vec") || name.endsWith(".idx") || name.endsWith(".meta"))) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(0, dot));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String add(final Embedding embedding) {
+		return add(embedding, null);
+	}
+
+	@Override
+	public void add(final String id, final Embedding embedding) {
+		addAll(List.of(id), List.of(embedding), null);
+	}
+
+	@Override
+	public String add(final Embedding embedding, final TextSegment textSegment) {
+		final var id = newId();
+		addAll(List.of(id), List.of(embedding), textSegment == null ? null : List.of(textSegment));
+		return id;
+	}
+
+	@Override
+	public List<String> addAll(final List<Embedding> embeddings) {
+		return addAll(embeddings, null);
+	}
+
+	@Override
+	public List<String> addAll(final List<Embedding> embeddings, final List<TextSegment> textSegments) {
+		final var newIds = embeddings.stream()
+				.map(e -> newId())
+				.toList();
+		addAll(newIds, embeddings, textSegments);
+		return newIds;
+	}
+
+	private void addAll(final List<String> newIds, final List<Embedding> embeddings, final List<TextSegment> textSegments) {
+		Assertion.check()
+				.isTrue(textSegments == null || textSegments.size() == embeddings.size(), "embeddings and segments must have the same size");
+		//---
+		lock.writeLock().lock();
+		try {
+			final var touchedSegments = new HashSet<MmapSegment>();
+			for (int i = 0; i < embeddings.size(); i++) {
+				final var vector = embeddings.get(i).vector();
+				if (dimension < 0) {
+					dimension = vector.length;
+				}
+				Assertion.check().isTrue(vector.length == dimension, "All embeddings must have the same dimension ({0})", dimension);
+				final var segment = activeSegment();
+				segment.append(newIds.get(i), VectorMath.normalizedCopy(vector), textSegments == null ? null : textSegments.get(i));
+				touchedSegments.add(segment);
+			}
+			for (final var segment : touchedSegments) {
+				segment.force();
+			}
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// must be called while holding the write lock
+	private MmapSegment activeSegment() throws IOException {
+		if (segments.isEmpty() || segments.get(segments.size() - 1).isFull()) {
+			final var segment = MmapSegment.create(directory, nextSeq++, dimension, segmentCapacity);
+			segments.add(segment);
+			writeManifest();
+		}
+		return segments.get(segments.size() - 1);
+	}
+
+	@Override
+	public void removeAll(final Collection<String> ids) {
+		final var idSet = new HashSet<>(ids);
+		removeMatching(entry -> idSet.contains(entry.id()));
+	}
+
+	@Override
+	public void removeAll(final Filter filter) {
+		Assertion.check().isNotNull(filter);
+		//---
+		removeMatching(entry -> entry.textSegment() != null && filter.test(entry.textSegment().metadata()));
+	}
+
+	@Override
+	public void removeAll() {
+		lock.writeLock().lock();
+		try {
+			for (final var segment : segments) {
+				for (int slot = 0; slot < segment.count(); slot++) {
+					deleteSlot(segment, slot);
+				}
+			}
+			tombstoneLog.flush();
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void removeMatching(final Predicate<MmapSegment.Entry> predicate) {
+		lock.writeLock().lock();
+		try {
+			for (final var segment : segments) {
+				for (int slot = 0; slot < segment.count(); slot++) {
+					if (!segment.isDeleted(slot) && predicate.test(segment.readEntry(slot))) {
+						deleteSlot(segment, slot);
+					}
+				}
+			}
+			tombstoneLog.flush();
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// must be called while holding the write lock
+	private void deleteSlot(final MmapSegment segment, final int slot) throws IOException {
+		if (!segment.isDeleted(slot)) {
+			segment.tombstones().set(slot);
+			tombstoneLog.writeInt(segment.seq());
+			tombstoneLog.writeInt(slot);
+		}
+	}
+
+	@Override
+	public EmbeddingSearchResult<TextSegment> search(final EmbeddingSearchRequest request) {
+		lock.readLock().lock();
+		try {
+			if (dimension < 0) {
+				return new EmbeddingSearchResult<>(List.of());
+			}
+			final var query = VectorMath.normalizedCopy(request.queryEmbedding().vector());
+			Assertion.check().isTrue(query.length == dimension, "Query embedding must have dimension {0}", dimension);
+			final float minCosine = (float) (request.minScore() * 2d - 1d);
+			final var filter = request.filter();
+
+			// slots are numbered across segments : first slot of the segment + slot (segments of previous runs may have another capacity)
+			final var collector = TopKCollector.forCurrentThread(request.maxResults());
+			final var scratch = new float[dimension];
+			final var firstSlots = new int[segments.size()];
+			int nextFirstSlot = 0;
+			for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+				final var segment = segments.get(segmentIndex);
+				final int count = segment.count();
+				firstSlots[segmentIndex] = nextFirstSlot;
+				for (int slot = 0; slot < count; slot++) {
+					if (segment.isDeleted(slot)) {
+						continue;
+					}
+					final float cosine = segment.dot(query, slot, scratch);
+					if (cosine < minCosine || cosine <= collector.threshold()) {
+						continue;
+					}
+					if (filter != null) {
+						final var textSegment = segment.readEntry(slot).textSegment();
+						if (textSegment == null || !filter.test(textSegment.metadata())) {
+							continue;
+						}
+					}
+					collector.offer(nextFirstSlot + slot, cosine);
+				}
+				nextFirstSlot = Math.addExact(nextFirstSlot, count);
+			}
+
+			collector.sortDescending();
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>(collector.size());
+			for (int rank = 0; rank < collector.size(); rank++) {
+				final int globalSlot = collector.slotAt(rank);
+				final int segmentIndex = segmentIndexOf(firstSlots, globalSlot);
+				final var slotRef = new SlotRef(segments.get(segmentIndex), globalSlot - firstSlots[segmentIndex]);
+				matches.add(toMatch(slotRef, VectorMath.toRelevanceScore(collector.scoreAt(rank))));
+			}
+			return new EmbeddingSearchResult<>(matches);
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// the last segment starting at or before the slot : empty segments share their first slot with the next one
+	private static int segmentIndexOf(final int[] firstSlots, final int globalSlot) {
+		int index = Arrays.binarySearch(firstSlots, globalSlot);
+		if (index < 0) {
+			return -index - 2;
+		}
+		while (index + 1 < firstSlots.length && firstSlots[index + 1] == globalSlot) {
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * Lists all the entries matching a filter.
+	 *
+	 * @param filter the filter
+	 * @return the matching entries (score is 1)
+	 */
+	public List<EmbeddingMatch<TextSegment>> findAll(final Filter filter) {
+		lock.readLock().lock();
+		try {
+			final var matches = new ArrayList<EmbeddingMatch<TextSegment>>();
+			for (final var segment : segments) {
+				for (int slot = 0; slot < segment.count(); slot++) {
+					if (segment.isDeleted(slot)) {
+						continue;
+					}
+					final var textSegment = segment.readEntry(slot).textSegment();
+					if (filter == null || textSegment != null && filter.test(textSegment.metadata())) {
+						matches.add(toMatch(new SlotRef(segment, slot), 1d));
+					}
+				}
+			}
+			return matches;
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return segments.stream()
+					.mapToInt(MmapSegment::liveCount)
+					.sum();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static EmbeddingMatch<TextSegment> toMatch(final SlotRef slotRef, final double score) throws IOException {
+		final var entry = slotRef.segment().readEntry(slotRef.slot());
+		return new EmbeddingMatch<>(score, entry.id(), Embedding.from(slotRef.segment().readVector(slotRef.slot())), entry.textSegment());
+	}
+
+	/**
+	 * Merges the sealed segments having less than half live entries into new segments, and removes their tombstones.
+	 * Searches and writes continue during the copy, the store is locked only to swap segments.
+	 *
+	 * @return the number of merged segments
+	 */
+	public int compact() {
+		compactionLock.lock();
+		try {
+			final List<MmapSegment> toMerge = new ArrayList<>();
+			final List<BitSet> tombstonesAtStart = new ArrayList<>();
+			lock.readLock().lock();
+			try {
+				// the active segment is never merged
+				for (final var segment : segments.subList(0, Math.max(0, segments.size() - 1))) {
+					if (segment.liveCount() < segmentCapacity / 2) {
+						toMerge.add(segment);
+						tombstonesAtStart.add((BitSet) segment.tombstones().clone());
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (toMerge.isEmpty() || toMerge.size() == 1 && toMerge.get(0).liveCount() == toMerge.get(0).count()) {
+				return 0; // nothing to reclaim
+			}
+
+			// copy live entries, old segments are immutable except for their tombstones
+			final List<MmapSegment> merged = new ArrayList<>();
+			final List<SlotRef[]> newLocations = new ArrayList<>();
+			MmapSegment target = null;
+			for (int i = 0; i < toMerge.size(); i++) {
+				final var segment = toMerge.get(i);
+				final var locations = new SlotRef[segment.count()];
+				for (int slot = 0; slot < segment.count(); slot++) {
+					if (tombstonesAtStart.get(i).get(slot)) {
+						continue;
+					}
+					if (target == null || target.isFull()) {
+						target = MmapSegment.create(directory, allocateSeq(), dimension, segmentCapacity);
+						merged.add(target);
+					}
+					final var entry = segment.readEntry(slot);
+					locations[slot] = new SlotRef(target, target.append(entry.id(), segment.readVector(slot), entry.textSegment()));
+				}
+				newLocations.add(locations);
+			}
+			for (final var segment : merged) {
+				segment.force();
+			}
+
+			lock.writeLock().lock();
+			try {
+				// report deletes done during the copy
+				for (int i = 0; i < toMerge.size(); i++) {
+					final var deletedMeanwhile = (BitSet) toMerge.get(i).tombstones().clone();
+					deletedMeanwhile.andNot(tombstonesAtStart.get(i));
+					final var locations = newLocations.get(i);
+					deletedMeanwhile.stream()
+							.forEach(slot -> locations[slot].segment().tombstones().set(locations[slot].slot()));
+				}
+				// log tombstones of the new segments before they become live (the log then holds both manifests),
+				// then only those of the remaining segments once the old ones are dropped from the manifest
+				final var loggedSegments = new ArrayList<>(segments);
+				loggedSegments.addAll(merged);
+				rewriteTombstoneLog(loggedSegments);
+				final int insertAt = segments.indexOf(toMerge.get(0));
+				segments.removeAll(toMerge);
+				segments.addAll(insertAt, merged);
+				writeManifest();
+				rewriteTombstoneLog(segments);
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			for (final var segment : toMerge) {
+				segment.delete();
+			}
+			LOG.info("Compacted {} vector segments into {}", toMerge.size(), merged.size());
+			return toMerge.size();
+		} catch (final IOException e) {
+			throw WrappedException.wrap(e);
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	private int allocateSeq() {
+		lock.writeLock().lock();
+		try {
+			return nextSeq++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// must be called while holding the write lock
+	private void writeManifest() throws IOException {
+		final var content = new StringBuilder(NEXT_SEQ_PREFIX).append(nextSeq).append('\n');
+		for (final var segment : segments) {
+			content.append(segment.seq()).append('\n');
+		}
+		final var tempPath = directory.resolve(MANIFEST + ".tmp");
+		Files.writeString(tempPath, content, StandardCharsets.UTF_8);
+		Files.move(tempPath, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// must be called while holding the write lock
+	private void rewriteTombstoneLog(final List<MmapSegment> loggedSegments) throws IOException {
+		tombstoneLog.close();
+		final var tempPath = directory.resolve(TOMBSTONES + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+			for (final var segment : loggedSegments) {
+				for (final int slot : segment.tombstones().stream().toArray()) {
+					out.writeInt(segment.seq());
+					out.writeInt(slot);
+				}
+			}
+		}
+		final var tombstonesPath = directory.resolve(TOMBSTONES);
+		Files.move(tempPath, tombstonesPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		tombstoneLog = openTombstoneLog(tombstonesPath);
+	}
+
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			tombstoneLog.close();
+			for (final var segment : segments) {
+				segment.force();
+				segment.close();
+			}
+			segments.clear();
+		} catch (final IOException e) {
+			throw new VSystemException(e, "Unable to close vector store {0}", directory);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static String newId() {
+		return UUID.randomUUID().toString();
+	}
+}
@@ -0,0 +1,284 @@
+package io.vertigo.ai.llm.plugin.lc4j.rag.storage.mmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import dev.langchain4j.data.segment.TextSegment;
+import io.vertigo.ai.llm.plugin.lc4j.rag.Lc4jSegmentCodec;
+import io.vertigo.ai.llm.plugin.lc4j.rag.inmemory.VectorMath;
+import io.vertigo.core.lang.VSystemException;
+
+/**
+ * One segment of a memory mapped store, made of three files :
+ * <ul>
+ * <li>{seq}.vec : header (magic, version, dimension, capacity, count) then capacity normalized float vectors, memory mapped</li>
+ * <li>{seq}.idx : offset of each entry in the .meta file, memory mapped</li>
+ * <li>{seq}.meta : entries id, text and metadata, appended and read with positional IO</li>
+ * </ul>
+ * Entries are appended until capacity is reached. The count of the header is only written by {@link #force()}, once the entries are on disk :
+ * entries appended since the last force are ignored on reopening (pages of a mapped file are written back in any order).
+ * Deleted entries are flagged in tombstones (persisted by the store in its tombstone log).
+ */
+final class MmapSegment {
+	private static final int MAGIC = 0x564C5653; // VLVS
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 20;
+	private static final int COUNT_POSITION = 16;
+
+	private final int seq;
+	private final int dimension;
+	private final int capacity;
+	private final Path directory;
+	private final FileChannel vecChannel;
+	private final FileChannel idxChannel;
+	private final FileChannel metaChannel;
+	private final MappedByteBuffer vecBuffer;
+	private final MappedByteBuffer idxBuffer;
+	private final FloatBuffer vectors;
+	private final LongBuffer offsets;
+	private final BitSet tombstones = new BitSet();
+	private volatile int count;
+
+	/**
+	 * A stored entry.
+	 *
+	 * @param id the embedding id
+	 * @param textSegment the text segment (null if none)
+	 */
+	record Entry(String id, TextSegment textSegment) {
+	}
+
+	private MmapSegment(final Path directory, final int seq, final int dimension, final int capacity, final boolean create) throws IOException {
+		this.directory = directory;
+		this.seq = seq;
+		this.dimension = dimension;
+		this.capacity = capacity;
+		final var openOptions = create
+				? new StandardOpenOption[] { StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE }
+				: new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+		vecChannel = FileChannel.open(vecPath(directory, seq), openOptions);
+		idxChannel = FileChannel.open(idxPath(directory, seq), openOptions);
+		metaChannel = FileChannel.open(metaPath(directory, seq), openOptions);
+
+		vecBuffer = vecChannel.map(MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * dimension * Float.BYTES);
+		vecBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		idxBuffer = idxChannel.map(MapMode.READ_WRITE, 0, (long) capacity * Long.BYTES);
+		idxBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		vectors = vecBuffer.slice(HEADER_BYTES, capacity * dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		offsets = idxBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		if (create) {
+			vecBuffer.putInt(0, MAGIC);
+			vecBuffer.putInt(4, VERSION);
+			vecBuffer.putInt(8, dimension);
+			vecBuffer.putInt(12, capacity);
+			vecBuffer.putInt(COUNT_POSITION, 0);
+			count = 0;
+		} else {
+			count = vecBuffer.getInt(COUNT_POSITION);
+		}
+	}
+
+	/**
+	 * Creates a new empty segment.
+	 */
+	static MmapSegment create(final Path directory, final int seq, final int dimension, final int capacity) throws IOException {
+		final long vecBytes = HEADER_BYTES + (long) capacity * dimension * Float.BYTES;
+		if (vecBytes > Integer.MAX_VALUE) {
+			throw new VSystemException("Segment of {0} vectors of dimension {1} exceeds 2GB, reduce segmentCapacity", capacity, dimension);
+		}
+		return new MmapSegment(directory, seq, dimension, capacity, true);
+	}
+
+	/**
+	 * Opens an existing segment, only the header is read.
+	 */
+	static MmapSegment open(final Path directory, final int seq) throws IOException {
+		final int dimension;
+		final int capacity;
+		try (var channel = FileChannel.open(vecPath(directory, seq), StandardOpenOption.READ)) {
+			final var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new VSystemException("Invalid vector segment file {0}", vecPath(directory, seq));
+			}
+			dimension = header.getInt(8);
+			capacity = header.getInt(12);
+		}
+		return new MmapSegment(directory, seq, dimension, capacity, false);
+	}
+
+	int seq() {
+		return seq;
+	}
+
+	int dimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the number of entries, including deleted ones
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * @return the number of entries not deleted
+	 */
+	int liveCount() {
+		return count - tombstones.cardinality();
+	}
+
+	boolean isFull() {
+		return count == capacity;
+	}
+
+	BitSet tombstones() {
+		return tombstones;
+	}
+
+	boolean isDeleted(final int slot) {
+		return tombstones.get(slot);
+	}
+
+	/**
+	 * Appends an entry, the segment must not be full.
+	 *
+	 * @param id the embedding id
+	 * @param normalizedVector the normalized vector
+	 * @param textSegment the text segment (nullable)
+	 * @return the slot of the entry
+	 */
+	int append(final String id, final float[] normalizedVector, final TextSegment textSegment) throws IOException {
+		final int slot = count;
+		final var record = encode(id, textSegment);
+		final long offset = metaChannel.size();
+		final var buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+		buffer.putInt(record.length).put(record).flip();
+		while (buffer.hasRemaining()) {
+			metaChannel.write(buffer, offset + buffer.position());
+		}
+		offsets.put(slot, offset);
+		vectors.put(slot * dimension, normalizedVector);
+		count = slot + 1;
+		return slot;
+	}
+
+	/**
+	 * Writes pending changes to disk, then the count of the header.
+	 */
+	void force() throws IOException {
+		metaChannel.force(false);
+		idxBuffer.force();
+		vecBuffer.force();
+		vecBuffer.putInt(COUNT_POSITION, count);
+		vecBuffer.force(0, HEADER_BYTES);
+	}
+
+	/**
+	 * Dot product of a normalized query with a stored vector.
+	 *
+	 * @param query the query
+	 * @param slot the slot
+	 * @param scratch a buffer of at least dimension floats
+	 * @return the cosine similarity
+	 */
+	float dot(final float[] query, final int slot, final float[] scratch) {
+		vectors.get(slot * dimension, scratch, 0, dimension);
+		return VectorMath.dot(query, 0, scratch, 0, dimension);
+	}
+
+	/**
+	 * @param slot the slot
+	 * @return a copy of the stored (normalized) vector
+	 */
+	float[] readVector(final int slot) {
+		final var vector = new float[dimension];
+		vectors.get(slot * dimension, vector);
+		return vector;
+	}
+
+	/**
+	 * Reads an entry from the .meta file.
+	 *
+	 * @param slot the slot
+	 * @return the entry
+	 */
+	Entry readEntry(final int slot) throws IOException {
+		final long offset = offsets.get(slot);
+		final var lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+		readFully(lengthBuffer, offset);
+		final var recordBuffer = ByteBuffer.allocate(lengthBuffer.getInt(0));
+		readFully(recordBuffer, offset + Integer.BYTES);
+		return decode(recordBuffer.array());
+	}
+
+	private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (metaChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new VSystemException("Unexpected end of segment file {0}", metaPath(directory, seq));
+			}
+		}
+	}
+
+	/**
+	 * Closes the files, the mappings are released by the GC.
+	 */
+	void close() throws IOException {
+		vecChannel.close();
+		idxChannel.close();
+		metaChannel.close();
+	}
+
+	/**
+	 * Closes and deletes the files of the segment.
+	 */
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(vecPath(directory, seq));
+		Files.deleteIfExists(idxPath(directory, seq));
+		Files.deleteIfExists(metaPath(directory, seq));
+	}
+
+	static Path vecPath(final Path directory, final int seq) {
+		return directory.resolve(seq + ".vec");
+	}
+
+	static Path idxPath(final Path directory, final int seq) {
+		return directory.resolve(seq + ".idx");
+	}
+
+	static Path metaPath(final Path directory, final int seq) {
+		return directory.resolve(seq + ".meta");
+	}
+
+	private static byte[] encode(final String id, final TextSegment textSegment) throws IOException {
+		final var bytes = new ByteArrayOutputStream();
+		try (var out = new DataOutputStream(bytes)) {
+			Lc4jSegmentCodec.writeString(out, id);
+			Lc4jSegmentCodec.writeSegment(out, textSegment);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Entry decode(final byte[] record) throws IOException {
+		try (var in = new DataInputStream(new ByteArrayInputStream(record))) {
+			final var id = Lc4jSegmentCodec.readString(in);
+			return new Entry(id, Lc4jSegmentCodec.readSegment(in));
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package io.vertigo.ai.llm.plugin.lc4j.tier;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import io.vertigo.core.lang.Assertion;
+import io.vertigo.core.param.ParamValue;
+
+/**
+ * Model tier served by OpenAI or Ollama, configured like Lc4jPlugin.
+ * <ul>
+ * <li>apiType : openai or ollama (default ollama, a small local model being the usual first tier)</li>
+ * <li>modelName, url, apiKey : the model (apiKey is required for openai, sent as a bearer token to ollama proxies)</li>
+ * <li>tierName : the name of the tier in metrics (default the model name)</li>
+ * </ul>
+ */
+public final class Lc4jChatModelTierPlugin implements Lc4jModelTierPlugin {
+
+	private final String tierName;
+	private final ChatLanguageModel chatModel;
+
+	@Inject
+	public Lc4jChatModelTierPlugin(
+			@ParamValue("apiType") final Optional<String> apiTypeOpt,
+			@ParamValue("modelName") final String modelName,
+			@ParamValue("url") final Optional<String> urlOpt,
+			@ParamValue("apiKey") final Optional<String> apiKeyOpt,
+			@ParamValue("tierName") final Optional<String> tierNameOpt) {
+		Assertion.check()
+				.isNotBlank(modelName);
+		//---
+		final var apiType = apiTypeOpt.orElse("ollama");
+		chatModel = switch (apiType.toLowerCase()) {
+			case "openai" -> {
+				Assertion.check()
+						.isTrue(apiKeyOpt.isPresent(), "OpenAI API Key must be provided");
+				// --
+				yield OpenAiChatModel.builder()
+						.baseUrl(urlOpt.orElse(null)) // null => default url
+						.apiKey(apiKeyOpt.get())
+						.modelName(modelName)
+						.temperature(0d)
+						.build();
+			}
+			case "ollama" -> OllamaChatModel.builder()
+					.baseUrl(urlOpt.orElse(null)) // null => default url
+					.modelName(modelName)
+					.customHeaders(apiKeyOpt
+							.map(key -> Map.of("Authorization", "Bearer " + key))
+							.orElseGet(Collections::emptyMap))
+					.temperature(0d)
+					.build();
+			default -> throw new IllegalArgumentException("Unsupported API type: " + apiType);
+		};
+		tierName = tierNameOpt.orElse(modelName);
+	}
+
+	@Override
+	public String getTierName() {
+		return tierName;
+	}
+
+	@Override
+	public ChatLanguageModel getChatModel() {
+		return chatModel;
+	}
+}
@@ -0,0 +1,19 @@
+package io.vertigo.ai.llm.plugin.lc4j.tier;
+
+import dev.langchain4j.model.chat.ChatLanguageModel;
+import io.vertigo.core.node.component.Plugin;
+
+/**
+ * Plugin providing a cheaper model, tried before the model of Lc4jPlugin for structured asks.
+ * Tiers are tried in declaration order, a request escalates to the next one when the answer can't be parsed or is incomplete.
+ */
+public interface Lc4jModelTierPlugin extends Plugin {
+
+	/**
+	 * @return the name of the tier, for metrics
+	 */
+	String getTierName();
+
+	ChatLanguageModel getChatModel();
+
+}
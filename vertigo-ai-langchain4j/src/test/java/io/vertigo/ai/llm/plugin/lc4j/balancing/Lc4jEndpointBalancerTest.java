@@ -0,0 +1,104 @@
+package io.vertigo.ai.llm.plugin.lc4j.balancing;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
+import io.vertigo.ai.llm.plugin.lc4j.Lc4jUtils;
+
+/**
+ * Ejection of endpoints, against stub Ollama servers.
+ */
+public final class Lc4jEndpointBalancerTest {
+	private static final int MAX_FAILURES = 3;
+	private static final int CALLS = 40;
+
+	@Test
+	public void testServerErrorEjects() throws IOException {
+		final var failing = startServer(500);
+		final var healthy = startServer(200);
+		try {
+			Assertions.assertEquals(MAX_FAILURES, countErrors(url(failing), url(healthy)));
+		} finally {
+			failing.stop(0);
+			healthy.stop(0);
+		}
+	}
+
+	@Test
+	public void testConnectionErrorEjects() throws IOException {
+		final int closedPort;
+		try (var socket = new ServerSocket(0)) {
+			closedPort = socket.getLocalPort();
+		}
+		final var healthy = startServer(200);
+		try {
+			Assertions.assertEquals(MAX_FAILURES, countErrors("http://127.0.0.1:" + closedPort, url(healthy)));
+		} finally {
+			healthy.stop(0);
+		}
+	}
+
+	@Test
+	public void testClientErrorKeeps() throws IOException {
+		final var rejecting = startServer(400);
+		final var healthy = startServer(200);
+		try {
+			// about half of the calls still go to the rejecting endpoint
+			Assertions.assertTrue(countErrors(url(rejecting), url(healthy)) > MAX_FAILURES);
+		} finally {
+			rejecting.stop(0);
+			healthy.stop(0);
+		}
+	}
+
+	private static int countErrors(final String... urls) {
+		final var config = new Lc4jEndpointBalancer.Config(MAX_FAILURES, Duration.ofMinutes(1), 0, Duration.ofMillis(100));
+		try (var balancer = new Lc4jEndpointBalancer<EmbeddingModel>(List.of(urls), url -> OllamaEmbeddingModel.builder()
+				.baseUrl(url)
+				.modelName("test")
+				.maxRetries(1)
+				.build(), Lc4jUtils::isOllamaServerError, config)) {
+			final var embeddingModel = new Lc4jBalancedEmbeddingModel(balancer);
+			int errors = 0;
+			for (int i = 0; i < CALLS; i++) {
+				try {
+					embeddingModel.embed("text");
+				} catch (final RuntimeException e) {
+					errors++;
+				}
+			}
+			return errors;
+		}
+	}
+
+	private static HttpServer startServer(final int status) throws IOException {
+		final var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			exchange.getRequestBody().readAllBytes();
+			final var body = (status == 200 ? "{\"model\":\"test\",\"embeddings\":[[0.1,0.2,0.3]]}" : "{\"error\":\"failed\"}")
+					.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		return server;
+	}
+
+	private static String url(final HttpServer server) {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+}